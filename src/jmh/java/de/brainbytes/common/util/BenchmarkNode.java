@@ -0,0 +1,37 @@
+package de.brainbytes.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain TreeNode for the benchmarks.
+ *
+ * @author Fabian Krippendorff
+ */
+final class BenchmarkNode extends TreeNode<BenchmarkNode> {
+
+    BenchmarkNode(ChildOrder childOrder) {
+        super(childOrder);
+    }
+
+    static List<BenchmarkNode> nodes(ChildOrder childOrder, int count) {
+        final List<BenchmarkNode> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(new BenchmarkNode(childOrder));
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the deepest node of a chain of the given depth below this node.
+     */
+    BenchmarkNode chain(int depth) throws ChildValidator.ChildValidationException {
+        BenchmarkNode node = this;
+        for (int i = 0; i < depth; i++) {
+            final BenchmarkNode child = new BenchmarkNode(ChildOrder.ORDERED);
+            node.addChild(child);
+            node = child;
+        }
+        return node;
+    }
+}
@@ -0,0 +1,63 @@
+package de.brainbytes.common.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding and removing children of a node with {@link #width} children - each benchmark restores the initial state,
+ * so the node's size stays constant.
+ *
+ * @author Fabian Krippendorff
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChildMutationBenchmark {
+
+    @Param({"ORDERED", "UNORDERED"})
+    public TreeNode.ChildOrder childOrder;
+
+    @Param({"10", "1000"})
+    public int width;
+
+    @Param({"100"})
+    public int batchSize;
+
+    private BenchmarkNode parent;
+    private BenchmarkNode emptyParent;
+    private BenchmarkNode child;
+    private List<BenchmarkNode> batch;
+
+    @Setup
+    public void setUp() throws TreeNode.ChildValidator.ChildValidationException {
+        parent = new BenchmarkNode(childOrder);
+        parent.addChildren(BenchmarkNode.nodes(childOrder, width));
+        emptyParent = new BenchmarkNode(childOrder);
+        child = new BenchmarkNode(childOrder);
+        batch = BenchmarkNode.nodes(childOrder, batchSize);
+    }
+
+    @Benchmark
+    public boolean addAndRemoveChild() throws TreeNode.ChildValidator.ChildValidationException {
+        parent.addChild(child);
+        return parent.removeChild(child);
+    }
+
+    @Benchmark
+    public boolean addAndRemoveChildren() throws TreeNode.ChildValidator.ChildValidationException {
+        parent.addChildren(batch);
+        return parent.removeChildren(batch);
+    }
+
+    @Benchmark
+    public int addAndClearChildren() throws TreeNode.ChildValidator.ChildValidationException {
+        emptyParent.addChildren(batch);
+        emptyParent.clearChildren();
+        return emptyParent.getChildCount();
+    }
+}
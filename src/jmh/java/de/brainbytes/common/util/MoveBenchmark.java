@@ -0,0 +1,59 @@
+package de.brainbytes.common.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving a node by {@link TreeNode#setParent(TreeNode)} back and forth - between siblings at the bottom of a chain of
+ * {@link #depth} nodes, and between the bottoms of two such chains, whose only common ancestor is the root.
+ *
+ * @author Fabian Krippendorff
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int depth;
+
+    private BenchmarkNode firstSibling;
+    private BenchmarkNode secondSibling;
+    private BenchmarkNode firstBranch;
+    private BenchmarkNode secondBranch;
+    private BenchmarkNode movedWithin;
+    private BenchmarkNode movedAcross;
+
+    @Setup
+    public void setUp() throws TreeNode.ChildValidator.ChildValidationException {
+        final BenchmarkNode root = new BenchmarkNode(TreeNode.ChildOrder.ORDERED);
+        final BenchmarkNode bottom = root.chain(depth);
+        firstSibling = new BenchmarkNode(TreeNode.ChildOrder.ORDERED);
+        secondSibling = new BenchmarkNode(TreeNode.ChildOrder.ORDERED);
+        bottom.addChild(firstSibling);
+        bottom.addChild(secondSibling);
+        firstBranch = root.chain(depth);
+        secondBranch = root.chain(depth);
+
+        movedWithin = new BenchmarkNode(TreeNode.ChildOrder.ORDERED);
+        movedWithin.setParent(firstSibling);
+        movedAcross = new BenchmarkNode(TreeNode.ChildOrder.ORDERED);
+        movedAcross.setParent(firstBranch);
+    }
+
+    @Benchmark
+    public void moveWithinSubtree() throws TreeNode.ChildValidator.ChildValidationException {
+        movedWithin.setParent(secondSibling);
+        movedWithin.setParent(firstSibling);
+    }
+
+    @Benchmark
+    public void moveAcrossSubtrees() throws TreeNode.ChildValidator.ChildValidationException {
+        movedAcross.setParent(secondBranch);
+        movedAcross.setParent(firstBranch);
+    }
+}
@@ -0,0 +1,79 @@
+package de.brainbytes.common.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding and removing {@link #width} children at the bottom of a chain of {@link #depth} nodes, each of which has
+ * {@link #observers} hierarchy observers - so every change is notified at every level.
+ *
+ * @author Fabian Krippendorff
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObserverFanOutBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int depth;
+
+    @Param({"1", "100"})
+    public int width;
+
+    @Param({"0", "1", "8"})
+    public int observers;
+
+    private BenchmarkNode bottom;
+    private List<BenchmarkNode> children;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws TreeNode.ChildValidator.ChildValidationException {
+        final BenchmarkNode root = new BenchmarkNode(TreeNode.ChildOrder.ORDERED);
+        bottom = root.chain(depth);
+        children = BenchmarkNode.nodes(TreeNode.ChildOrder.ORDERED, width);
+
+        for (BenchmarkNode node = bottom; node != null; node = node.getParent().orElse(null)) {
+            for (int i = 0; i < observers; i++) {
+                node.addObserver(new ConsumingObserver(blackhole)); // distinct instances, as observers form a set
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean addAndRemoveChildren() throws TreeNode.ChildValidator.ChildValidationException {
+        bottom.addChildren(children);
+        return bottom.removeChildren(children);
+    }
+
+    private static final class ConsumingObserver implements TreeNode.HierarchyObserver<BenchmarkNode> {
+
+        private final Blackhole blackhole;
+
+        private ConsumingObserver(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onChildrenAdded(BenchmarkNode eventSource, BenchmarkNode changedNode, Set<BenchmarkNode> addedChildren) {
+            blackhole.consume(addedChildren);
+        }
+
+        @Override
+        public void onChildrenRemoved(BenchmarkNode eventSource, BenchmarkNode changedNode, Set<BenchmarkNode> removedChildren) {
+            blackhole.consume(removedChildren);
+        }
+
+        @Override
+        public void onParentChanged(BenchmarkNode source, Optional<BenchmarkNode> newParent) {
+            blackhole.consume(newParent);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorator, that delivers hierarchy events to another observer asynchronously on an {@link Executor}, so the
+ * mutating thread only pays for an enqueue.
+ * <p>
+ * Events are buffered in a bounded queue and delivered in order by at most one task at a time. When the queue is
+ * full, the {@link Backpressure} policy decides, what happens to a new event.
+ * Register the decorator itself - or use {@link TreeNode#addObserver(TreeNode.HierarchyObserver, Executor)} - and
+ * remove it by the returned reference.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class AsyncHierarchyObserver<T extends TreeNode<T>> implements TreeNode.HierarchyObserver<T> {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TreeNode.HierarchyObserver<T> observer;
+    private final Executor executor;
+    private final int capacity;
+    private final Backpressure backpressure;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Deque<Event<T>> pending = new ArrayDeque<>();
+    private boolean draining = false;
+    private long dropped = 0;
+
+    public AsyncHierarchyObserver(TreeNode.HierarchyObserver<T> observer, Executor executor) {
+        this(observer, executor, DEFAULT_CAPACITY, Backpressure.BLOCK);
+    }
+
+    public AsyncHierarchyObserver(TreeNode.HierarchyObserver<T> observer, Executor executor, int capacity, Backpressure backpressure) {
+        if (observer == null) {
+            throw new NullPointerException("Observer may not be null!");
+        } else if (executor == null) {
+            throw new NullPointerException("Executor may not be null!");
+        } else if (backpressure == null) {
+            throw new NullPointerException("Backpressure may not be null!");
+        } else if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, but is " + capacity);
+        }
+        this.observer = observer;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+    }
+
+    public TreeNode.HierarchyObserver<T> getObserver() {
+        return observer;
+    }
+
+    /**
+     * @return the number of events waiting for delivery.
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of events discarded by {@link Backpressure#DROP_OLDEST}.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren, int[] indexes) {
+        enqueue(new Event<>(EventType.ADDED, eventSource, changedNode, addedChildren, indexes, null));
+    }
+
+    @Override
+    public void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren, int[] indexes) {
+        enqueue(new Event<>(EventType.REMOVED, eventSource, changedNode, removedChildren, indexes, null));
+    }
+
+    @Override
+    public void onParentChanged(T source, Optional<T> newParent) {
+        enqueue(new Event<>(EventType.PARENT_CHANGED, source, source, null, null, newParent));
+    }
+
+    private void enqueue(Event<T> event) {
+        boolean schedule;
+        lock.lock();
+        try {
+            if (backpressure == Backpressure.COALESCE && !pending.isEmpty() && pending.peekLast().mergeable(event)) {
+                pending.peekLast().coalesce(event); // merged once delivered, so a burst isn't copied per event
+            } else {
+                while (pending.size() >= capacity) {
+                    if (backpressure == Backpressure.DROP_OLDEST) {
+                        pending.pollFirst();
+                        dropped++;
+                    } else {
+                        notFull.awaitUninterruptibly();
+                    }
+                }
+                pending.addLast(event);
+            }
+            schedule = !draining;
+            draining = true;
+        } finally {
+            lock.unlock();
+        }
+
+        if (schedule) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(this::drain);
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                draining = false;
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                final Event<T> event;
+                lock.lock();
+                try {
+                    event = pending.pollFirst();
+                    if (event == null) {
+                        draining = false;
+                        drained = true;
+                        return;
+                    }
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    event.merged().deliverTo(observer);
+                } catch (RuntimeException e) {
+                    // a failing observer must not stall the events behind
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        } finally {
+            if (!drained) {
+                // an Error ends this task - the events behind are handed to a new one
+                boolean schedule;
+                lock.lock();
+                try {
+                    draining = !pending.isEmpty();
+                    schedule = draining;
+                } finally {
+                    lock.unlock();
+                }
+                if (schedule) {
+                    try {
+                        schedule();
+                    } catch (RuntimeException rejected) {
+                        // not to mask the error - the next event schedules again
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * What to do with a new event, when the queue is full.
+     */
+    public enum Backpressure {
+        /**
+         * The mutating thread waits for space - no event is lost. Observers must not change the hierarchy they
+         * observe synchronously, when using a blocking policy on a single-threaded executor.
+         */
+        BLOCK,
+        /**
+         * The oldest pending event is discarded - the observer may miss changes.
+         */
+        DROP_OLDEST,
+        /**
+         * Events are merged into the last pending event of the same type and node, whether the queue is full or not,
+         * so a slow observer receives fewer but larger events; blocks if there's no such event and the queue is full.
+         */
+        COALESCE
+    }
+
+    private enum EventType {
+        ADDED, REMOVED, PARENT_CHANGED
+    }
+
+    private static final class Event<T extends TreeNode<T>> {
+        private final EventType type;
+        private final T eventSource;
+        private final T changedNode;
+        private final Set<T> children;
+        private final int[] indexes;
+        private final Optional<T> newParent;
+        private List<Event<T>> coalesced = null; // later events to merge into this one - guarded by the queue's lock
+
+        private Event(EventType type, T eventSource, T changedNode, Set<T> children, int[] indexes, Optional<T> newParent) {
+            this.type = type;
+            this.eventSource = eventSource;
+            this.changedNode = changedNode;
+            this.children = children;
+            this.indexes = indexes;
+            this.newParent = newParent;
+        }
+
+        private void deliverTo(TreeNode.HierarchyObserver<T> observer) {
+            switch (type) {
+                case ADDED:
+                    observer.onChildrenAdded(eventSource, changedNode, children, indexes);
+                    break;
+                case REMOVED:
+                    observer.onChildrenRemoved(eventSource, changedNode, children, indexes);
+                    break;
+                case PARENT_CHANGED:
+                    observer.onParentChanged(eventSource, newParent);
+                    break;
+            }
+        }
+
+        private boolean mergeable(Event<T> later) {
+            return type == later.type && eventSource == later.eventSource && changedNode == later.changedNode
+                    && (indexes == null) == (later.indexes == null);
+        }
+
+        private void coalesce(Event<T> later) {
+            if (coalesced == null) {
+                coalesced = new ArrayList<>();
+            }
+            coalesced.add(later);
+        }
+
+        /**
+         * Combines this event with the coalesced ones - called once it is dequeued, so no more are added. Ordered
+         * events are merged pairwise in halves, so n coalesced events take O(n log n) instead of O(n^2).
+         */
+        private Event<T> merged() {
+            if (coalesced == null) {
+                return this;
+            } else if (type == EventType.PARENT_CHANGED) {
+                return coalesced.get(coalesced.size() - 1);
+            } else if (indexes == null) {
+                final Set<T> merged = new LinkedHashSet<>(children);
+                coalesced.forEach(later -> merged.addAll(later.children));
+                return new Event<>(type, eventSource, changedNode, Collections.unmodifiableSet(merged), null, null);
+            }
+            final List<Event<T>> events = new ArrayList<>(coalesced.size() + 1);
+            events.add(this);
+            events.addAll(coalesced);
+            return merge(events, 0, events.size());
+        }
+
+        private static <T extends TreeNode<T>> Event<T> merge(List<Event<T>> events, int from, int to) {
+            if (to - from == 1) {
+                return events.get(from);
+            }
+            final int middle = (from + to) >>> 1;
+            return merge(events, from, middle).merge(merge(events, middle, to));
+        }
+
+        /**
+         * Combines this ordered event with the later one as if both changes had happened at once.
+         */
+        private Event<T> merge(Event<T> later) {
+            // Indexes of added children refer to the state after adding, those of removed children to the state
+            // before removing - so the positions of the other event's children have to be shifted accordingly.
+            final int[] shifted = type == EventType.ADDED ? shift(indexes, later.indexes) : shift(later.indexes, indexes);
+            final int[] unshifted = type == EventType.ADDED ? later.indexes : indexes;
+            final List<T> shiftedChildren = new ArrayList<>(type == EventType.ADDED ? children : later.children);
+            final List<T> unshiftedChildren = new ArrayList<>(type == EventType.ADDED ? later.children : children);
+
+            final int size = shifted.length + unshifted.length;
+            final Set<T> mergedChildren = new LinkedHashSet<>();
+            final int[] mergedIndexes = new int[size];
+            for (int s = 0, u = 0; s + u < size; ) {
+                if (u == unshifted.length || (s < shifted.length && shifted[s] < unshifted[u])) {
+                    mergedIndexes[s + u] = shifted[s];
+                    mergedChildren.add(shiftedChildren.get(s++));
+                } else {
+                    mergedIndexes[s + u] = unshifted[u];
+                    mergedChildren.add(unshiftedChildren.get(u++));
+                }
+            }
+            return new Event<>(type, eventSource, changedNode, Collections.unmodifiableSet(mergedChildren), mergedIndexes, null);
+        }
+
+        /**
+         * @param positions ascending positions in a list before inserting at the (ascending, final) insertions.
+         * @return the positions after inserting - in one pass, as both are ascending.
+         */
+        private static int[] shift(int[] positions, int[] insertions) {
+            final int[] shifted = new int[positions.length];
+            int before = 0; // insertions before the current position
+            for (int i = 0; i < positions.length; i++) {
+                while (before < insertions.length && insertions[before] <= positions[i] + before) {
+                    before++;
+                }
+                shifted[i] = positions[i] + before;
+            }
+            return shifted;
+        }
+    }
+}
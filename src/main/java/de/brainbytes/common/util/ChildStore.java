@@ -0,0 +1,267 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+
+/**
+ * Storage of a {@link TreeNode}'s children.
+ * <p>
+ * Membership is tracked by the children's parent-reference inside {@link TreeNode}, so the store is never asked
+ * whether it contains a node - it only keeps the (possibly ordered) sequence of children.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+abstract class ChildStore<T extends TreeNode<T>> {
+
+    /**
+     * Position-argument for appending children at the end - the only position supported by unordered stores.
+     */
+    static final int APPEND = -1;
+
+    static <T extends TreeNode<T>> ChildStore<T> create(TreeNode.ChildOrder childOrder) {
+        return childOrder == TreeNode.ChildOrder.ORDERED ? new Ordered<>() : new Unordered<>();
+    }
+
+    abstract boolean isOrdered();
+
+    abstract int size();
+
+    abstract T get(int index);
+
+    /**
+     * @param child a node, that is known to be contained in this store.
+     */
+    abstract int indexOf(T child);
+
+    /**
+     * @return the child's index or -1 for unordered stores.
+     */
+    abstract int insert(int index, T child);
+
+    /**
+     * @return the first child's index or -1 for unordered stores.
+     */
+    abstract int insertAll(int index, Collection<? extends T> children);
+
+    /**
+     * @param child a node, that is known to be contained in this store.
+     * @return the child's former index or -1 for unordered stores.
+     */
+    abstract int remove(T child);
+
+    /**
+     * @return unmodifiable live view of the children.
+     */
+    abstract Collection<T> view();
+
+
+    private static final class Unordered<T extends TreeNode<T>> extends ChildStore<T> {
+
+        private final Set<T> children = new HashSet<>();
+        private final Collection<T> view = Collections.unmodifiableCollection(children);
+
+        @Override
+        boolean isOrdered() {
+            return false;
+        }
+
+        @Override
+        int size() {
+            return children.size();
+        }
+
+        @Override
+        T get(int index) {
+            throw new UnsupportedOperationException("Children are unordered!");
+        }
+
+        @Override
+        int indexOf(T child) {
+            throw new UnsupportedOperationException("Children are unordered!");
+        }
+
+        @Override
+        int insert(int index, T child) {
+            children.add(child);
+            return -1;
+        }
+
+        @Override
+        int insertAll(int index, Collection<? extends T> children) {
+            this.children.addAll(children);
+            return -1;
+        }
+
+        @Override
+        int remove(T child) {
+            children.remove(child);
+            return -1;
+        }
+
+        @Override
+        Collection<T> view() {
+            return view;
+        }
+    }
+
+    /**
+     * Gap buffer: positional access is O(1), inserts and removals only move the elements between the gap and the
+     * modified position - so clustered edits are O(1) and arbitrary ones a single {@code arraycopy}.
+     * <p>
+     * Every child knows its physical slot ({@link TreeNode#childSlot}), which keeps {@link #indexOf(TreeNode)} O(1);
+     * slots are updated only for elements actually moved across the gap.
+     */
+    private static final class Ordered<T extends TreeNode<T>> extends ChildStore<T> {
+
+        private static final int INITIAL_CAPACITY = 8;
+
+        private Object[] slots = new Object[INITIAL_CAPACITY];
+        private int gapStart = 0;
+        private int gapEnd = INITIAL_CAPACITY;
+
+        private final View view = new View();
+
+        @Override
+        boolean isOrdered() {
+            return true;
+        }
+
+        @Override
+        int size() {
+            return slots.length - (gapEnd - gapStart);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        T get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return (T) slots[index < gapStart ? index : index + (gapEnd - gapStart)];
+        }
+
+        @Override
+        int indexOf(T child) {
+            int slot = child.childSlot;
+            return slot < gapStart ? slot : slot - (gapEnd - gapStart);
+        }
+
+        @Override
+        int insert(int index, T child) {
+            int position = index == APPEND ? size() : index;
+            ensureGap(1);
+            moveGap(position);
+            slots[gapStart] = child;
+            child.childSlot = gapStart++;
+            view.changed();
+            return position;
+        }
+
+        @Override
+        int insertAll(int index, Collection<? extends T> children) {
+            int position = index == APPEND ? size() : index;
+            ensureGap(children.size());
+            moveGap(position);
+            for (T child : children) {
+                slots[gapStart] = child;
+                child.childSlot = gapStart++;
+            }
+            view.changed();
+            return position;
+        }
+
+        @Override
+        int remove(T child) {
+            int index = indexOf(child);
+            moveGap(index);
+            slots[gapEnd++] = null;
+            child.childSlot = -1;
+            view.changed();
+            return index;
+        }
+
+        @Override
+        Collection<T> view() {
+            return view;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void moveGap(int index) {
+            if (index < gapStart) {
+                int count = gapStart - index;
+                System.arraycopy(slots, index, slots, gapEnd - count, count);
+                gapStart = index;
+                gapEnd -= count;
+                Arrays.fill(slots, gapStart, Math.min(gapStart + count, gapEnd), null);
+                for (int slot = gapEnd; slot < gapEnd + count; slot++) {
+                    ((T) slots[slot]).childSlot = slot;
+                }
+            } else if (index > gapStart) {
+                int count = index - gapStart;
+                System.arraycopy(slots, gapEnd, slots, gapStart, count);
+                for (int slot = gapStart; slot < index; slot++) {
+                    ((T) slots[slot]).childSlot = slot;
+                }
+                gapStart = index;
+                gapEnd += count;
+                Arrays.fill(slots, Math.max(gapEnd - count, gapStart), gapEnd, null);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void ensureGap(int required) {
+            if (gapEnd - gapStart < required) {
+                int size = size();
+                int tail = slots.length - gapEnd;
+                Object[] grown = new Object[Math.max(slots.length * 2, size + required)];
+                System.arraycopy(slots, 0, grown, 0, gapStart);
+                System.arraycopy(slots, gapEnd, grown, grown.length - tail, tail);
+                slots = grown;
+                gapEnd = grown.length - tail;
+                for (int slot = gapEnd; slot < grown.length; slot++) {
+                    ((T) grown[slot]).childSlot = slot;
+                }
+            }
+        }
+
+        private final class View extends AbstractList<T> implements RandomAccess {
+
+            private void changed() {
+                modCount++;
+            }
+
+            @Override
+            public T get(int index) {
+                return Ordered.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return Ordered.this.size();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public int indexOf(Object o) {
+                // contained children are found by their slot; everything else is treated as absent
+                if (o instanceof TreeNode) {
+                    int slot = ((TreeNode) o).childSlot;
+                    if (slot >= 0 && slot < slots.length && slots[slot] == o) {
+                        return Ordered.this.indexOf((T) o);
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            public int lastIndexOf(Object o) {
+                return indexOf(o);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return indexOf(o) >= 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,807 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A {@link TreeNode}, that may be read and changed by several threads concurrently.
+ * <p>
+ * Each node has its own lock. A change locks all nodes involved - the parent, the children and their former
+ * parents - in the order of the nodes' creation, so concurrent changes can't deadlock. Changes, which only (un-)link
+ * leaves, run in parallel. Linking or unlinking a node with children changes the ancestry of its whole subtree, so
+ * these changes take an exclusive lock of the tree - of both trees, if the subtree moves between them - while changes
+ * of other trees proceed. That keeps the cycle detection correct: a leaf can't be an ancestor of its new parent, and
+ * the ancestors of a locked node only change exclusively.
+ * <p>
+ * Observers are notified after the nodes are unlocked, so they see the hierarchy as of the time of delivery. They may
+ * read and change it, but they can't synchronously move nodes with children, query aggregates or take snapshots, as
+ * that requires the exclusive lock - use {@link #addObserver(HierarchyObserver, java.util.concurrent.Executor)}
+ * instead. Validators are called while the nodes are locked - asynchronous ones are waited for as well - so they
+ * should only inspect the given parent and children.
+ * <p>
+ * Unlike the base class, {@link #getChildren()} returns a copy; {@link #snapshot()} provides a consistent view of a
+ * whole subtree for readers without locking. {@link #stream(TraversalOrder) Streams}, {@link #reduce(Object, Function,
+ * java.util.function.BinaryOperator) reductions} and {@link #visit(Function) visits} are weakly consistent: each node's
+ * children are copied when the node is reached, so concurrent changes don't fail them, but nodes moved meanwhile may
+ * be missed or reached twice. Concurrent nodes can't be changed within a
+ * {@link TreeNode#batch(HierarchyAction) batch}, which could neither be atomic towards other threads nor be rolled
+ * back safely.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public abstract class ConcurrentTreeNode<T extends ConcurrentTreeNode<T>> extends TreeNode<T> {
+
+    private static final AtomicLong LOCK_ORDER = new AtomicLong();
+    private static final Comparator<ConcurrentTreeNode<?>> BY_LOCK_ORDER = Comparator.comparingLong((ConcurrentTreeNode<?> node) -> node.lockOrder);
+    private static final ThreadLocal<int[]> HELD_TOPOLOGIES = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long lockOrder = LOCK_ORDER.getAndIncrement();
+    private volatile Topology topology = null; // shared by the tree's nodes - null only without parent and children
+
+    /**
+     * Creates a node with {@link ChildOrder#UNORDERED unordered} children.
+     */
+    protected ConcurrentTreeNode() {
+        super();
+    }
+
+    /**
+     * @param childOrder how the children of this node are stored.
+     */
+    protected ConcurrentTreeNode(ChildOrder childOrder) {
+        super(childOrder);
+    }
+
+    /**
+     * @param childKey extracts the keys of this node's children - see {@link TreeNode#TreeNode(ChildOrder, Function)}.
+     */
+    protected ConcurrentTreeNode(ChildOrder childOrder, Function<? super T, ?> childKey) {
+        super(childOrder, childKey);
+    }
+
+    @Override
+    public Optional<T> getParent() {
+        return locked(super::getParent);
+    }
+
+    /**
+     * Detaches this node from its parent, if {@code newParent} is null - otherwise adds it to the new parent.
+     */
+    @Override
+    public void setParent(T newParent) throws ChildValidator.ChildValidationException {
+        if (newParent != null) {
+            super.setParent(newParent);
+        } else {
+            Optional<T> parent;
+            while ((parent = getParent()).isPresent() && !parent.get().removeChild(self())) {
+                // the parent changed in between
+            }
+        }
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the children; a {@link List} for {@link ChildOrder#ORDERED ordered} children.
+     */
+    @Override
+    public Collection<T> getChildren() {
+        return locked(() -> hasOrderedChildren()
+                ? Collections.unmodifiableList(new ArrayList<>(super.getChildren()))
+                : Collections.unmodifiableSet(new HashSet<>(super.getChildren())));
+    }
+
+    @Override
+    public int getChildCount() {
+        return locked(super::getChildCount);
+    }
+
+    @Override
+    public T getChildAt(int index) {
+        return locked(() -> super.getChildAt(index));
+    }
+
+    @Override
+    public int indexOf(T child) {
+        return locked(() -> super.indexOf(child));
+    }
+
+    @Override
+    public Optional<T> getChild(Object key) {
+        return locked(() -> super.getChild(key));
+    }
+
+    /**
+     * Re-indexes this node under its parent's lock.
+     */
+    @Override
+    protected void keyChanged() {
+        while (true) {
+            final Optional<T> parent = getParent();
+            if (!parent.isPresent()) {
+                return;
+            }
+            final ConcurrentTreeNode<T> parentNode = parent.get();
+            parentNode.lock.lock();
+            try {
+                if (super.parentNode() == parentNode) {
+                    super.keyChanged();
+                    return;
+                }
+            } finally {
+                parentNode.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean isAncestorOf(T node) {
+        return node != null && lockedAncestries(node, () -> super.isAncestorOf(node));
+    }
+
+    @Override
+    public int getDepth() {
+        return lockedAncestry(super::getDepth);
+    }
+
+    @Override
+    public T getAncestorAtDepth(int depth) {
+        return lockedAncestry(() -> super.getAncestorAtDepth(depth));
+    }
+
+    @Override
+    public Optional<T> getLowestCommonAncestor(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        return lockedAncestries(node, () -> super.getLowestCommonAncestor(node));
+    }
+
+    @Override
+    public int getDistance(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        return lockedAncestries(node, () -> super.getDistance(node));
+    }
+
+    @Override
+    public List<T> getPathTo(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        return lockedAncestries(node, () -> super.getPathTo(node));
+    }
+
+    @Override
+    public List<T> getPathFromRoot() {
+        return lockedAncestry(super::getPathFromRoot);
+    }
+
+    /**
+     * Computing the aggregate fills the caches of the whole subtree, so it runs exclusively - and can't be queried
+     * synchronously by observers.
+     */
+    @Override
+    public <A> A aggregate(SubtreeAggregate<T, A> aggregate) {
+        return exclusively(() -> super.aggregate(aggregate));
+    }
+
+    /**
+     * Taking a snapshot fills the caches of the changed paths, so it runs exclusively - but the snapshot may then be
+     * read without any locking.
+     */
+    @Override
+    public TreeSnapshot<T> snapshot() {
+        return exclusively(() -> super.snapshot());
+    }
+
+    /**
+     * Propagates the metrics through the subtree, so it runs exclusively.
+     */
+    @Override
+    public void setMetrics(TreeMetrics metrics) {
+        exclusively(() -> {
+            super.setMetrics(metrics);
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<TreeMetrics> getMetrics() {
+        return lockedAncestry(super::getMetrics);
+    }
+
+    @Override
+    public void invalidateAggregates() {
+        lockedAncestry(() -> {
+            super.invalidateAggregates();
+            return null;
+        });
+    }
+
+    /**
+     * Re-indexing the observed nodes of the subtree only needs its nodes not to move, so leaves may still be
+     * (un-)linked meanwhile - each node is re-indexed under its lock. Re-indexings within a tree are serialized.
+     */
+    @Override
+    boolean changeObservers(BooleanSupplier change) {
+        while (true) {
+            final Topology topology = topology();
+            topology.lock(false);
+            topology.observers.lock();
+            try {
+                if (this.topology == topology) {
+                    return super.changeObservers(change);
+                }
+            } finally {
+                topology.observers.unlock();
+                topology.unlock(false);
+            }
+        }
+    }
+
+    @Override
+    Iterable<T> indexOwnObserved() {
+        return locked(() -> {
+            final List<T> children = new ArrayList<>();
+            super.indexOwnObserved().forEach(children::add);
+            return children;
+        });
+    }
+
+    @Override
+    public boolean addChild(T child) throws ChildValidator.ChildValidationException {
+        return change(Collections.singleton(child), null, () -> super.addChild(child));
+    }
+
+    @Override
+    public boolean addChild(int index, T child) throws ChildValidator.ChildValidationException {
+        return change(Collections.singleton(child), null, () -> super.addChild(index, child));
+    }
+
+    @Override
+    public boolean addChildren(Collection<? extends T> children) throws ChildValidator.ChildValidationException {
+        final Collection<T> copy = children == null ? null : new ArrayList<>(children);
+        return change(copy, null, () -> super.addChildren(copy));
+    }
+
+    @Override
+    public boolean addChildren(int index, Collection<? extends T> children) throws ChildValidator.ChildValidationException {
+        final Collection<T> copy = children == null ? null : new ArrayList<>(children);
+        return change(copy, null, () -> super.addChildren(index, copy));
+    }
+
+    @Override
+    public boolean moveChildren(Collection<? extends T> children, T newParent) throws ChildValidator.ChildValidationException {
+        final Collection<T> copy = new ArrayList<>(children);
+        return change(copy, newParent, () -> super.moveChildren(copy, newParent));
+    }
+
+    @Override
+    public boolean removeChild(T child) {
+        return uncheckedChange(Collections.singleton(child), () -> super.removeChild(child));
+    }
+
+    @Override
+    public T removeChildAt(int index) {
+        while (true) {
+            final T child = getChildAt(index);
+            final boolean removed = uncheckedChange(Collections.singleton(child),
+                    () -> super.indexOf(child) == index && super.removeChild(child));
+            if (removed) {
+                return child;
+            }
+        }
+    }
+
+    @Override
+    public boolean removeChildren(Collection<? extends T> children) {
+        final Collection<T> copy = new ArrayList<>(children);
+        return uncheckedChange(copy, () -> super.removeChildren(copy));
+    }
+
+    /**
+     * Removes all children at once - children added concurrently are either removed as well or added afterwards.
+     */
+    @Override
+    public void clearChildren() {
+        while (true) {
+            final Collection<T> children = getChildren();
+            final boolean cleared = uncheckedChange(children, () -> {
+                if (super.getChildCount() != children.size()) {
+                    return false; // children were added in between
+                }
+                super.removeChildren(children);
+                return true;
+            });
+            if (cleared) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Built children join this node's tree - locked like a change, as the building threads link the tree's levels
+     * concurrently.
+     */
+    @Override
+    void linkBuiltChildren(List<T> children) throws ChildValidator.ChildValidationException {
+        lockedBuild(children, () -> {
+            super.linkBuiltChildren(children);
+            for (T child : children) {
+                final ConcurrentTreeNode<T> node = child;
+                node.shareTopology(topology);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    void unlinkBuiltChildren(List<T> children) {
+        try {
+            lockedBuild(children, () -> {
+                super.unlinkBuiltChildren(children);
+                for (T child : children) {
+                    final ConcurrentTreeNode<T> node = child;
+                    node.shareOwnTopology();
+                }
+                return true;
+            });
+        } catch (ChildValidator.ChildValidationException e) {
+            throw new IllegalStateException("Unlinking children isn't validated!", e);
+        }
+    }
+
+    private void lockedBuild(List<T> children, Change link) throws ChildValidator.ChildValidationException {
+        final Set<ConcurrentTreeNode<T>> nodes = new TreeSet<>(BY_LOCK_ORDER);
+        nodes.add(this);
+        nodes.addAll(children);
+        final boolean exclusive = containsSubtrees(children);
+        while (true) {
+            topology(); // shared by the linked children
+            final Topologies topologies = new Topologies(nodes);
+            if (exclusive) {
+                requireExclusiveLockable(topologies.locks);
+            }
+            topologies.lock(exclusive);
+            try {
+                nodes.forEach(node -> node.lock.lock());
+                try {
+                    if (topology != null && topologies.isCurrent()) {
+                        link.apply();
+                        return;
+                    }
+                } finally {
+                    nodes.forEach(node -> node.lock.unlock());
+                }
+            } finally {
+                topologies.unlock();
+            }
+        }
+    }
+
+    /**
+     * Locks both ends of the move, as they might be leaves changing concurrently.
+     */
+    @Override
+    void beginMove(T from, T to) {
+        final Set<ConcurrentTreeNode<T>> nodes = new TreeSet<>(BY_LOCK_ORDER);
+        nodes.add(from);
+        nodes.add(to);
+        nodes.forEach(n -> n.lock.lock());
+        try {
+            super.beginMove(from, to);
+        } finally {
+            nodes.forEach(n -> n.lock.unlock());
+        }
+    }
+
+    private <R> R locked(Supplier<R> read) {
+        lock.lock();
+        try {
+            return read.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Depth and path may change by moving any ancestor, not only by moving this node.
+     */
+    private <R> R lockedAncestry(Supplier<R> read) {
+        while (true) {
+            final Topology topology = this.topology;
+            if (topology != null) {
+                topology.lock(false);
+            }
+            try {
+                lock.lock();
+                try {
+                    if (this.topology == topology) {
+                        return read.get();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                if (topology != null) {
+                    topology.unlock(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Like {@link #lockedAncestry(Supplier)} for the ancestries of this and another node - their ancestors have
+     * children, so they only move under the exclusive lock.
+     */
+    private <R> R lockedAncestries(T node, Supplier<R> read) {
+        final Set<ConcurrentTreeNode<T>> nodes = new TreeSet<>(BY_LOCK_ORDER);
+        nodes.add(this);
+        nodes.add(node);
+        while (true) {
+            final Topologies topologies = new Topologies(nodes);
+            topologies.lock(false);
+            try {
+                nodes.forEach(n -> n.lock.lock());
+                try {
+                    if (topologies.isCurrent()) {
+                        return read.get();
+                    }
+                } finally {
+                    nodes.forEach(n -> n.lock.unlock());
+                }
+            } finally {
+                topologies.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs the action under the exclusive lock of this node's tree.
+     */
+    private <R> R exclusively(Supplier<R> action) {
+        while (true) {
+            final Topology topology = topology();
+            requireExclusiveLockable(Collections.singleton(topology));
+            topology.lock(true);
+            try {
+                if (this.topology == topology) { // only changes exclusively, once the node is in a tree
+                    return action.get();
+                }
+            } finally {
+                topology.unlock(true);
+            }
+        }
+    }
+
+    /**
+     * @return the topology of this node's tree - a new one, if this node is on its own.
+     */
+    private Topology topology() {
+        final Topology topology = this.topology;
+        if (topology != null) {
+            return topology;
+        }
+        return locked(() -> {
+            if (this.topology == null) {
+                this.topology = new Topology();
+            }
+            return this.topology;
+        });
+    }
+
+    /**
+     * Lets the subtree share the given topology - called with the subtree's former topology locked exclusively, if
+     * it has children, so nobody reads the topologies meanwhile.
+     */
+    private void shareTopology(Topology topology) {
+        if (this.topology == topology) {
+            return;
+        }
+        final Deque<ConcurrentTreeNode<T>> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            final ConcurrentTreeNode<T> node = pending.pop();
+            node.topology = topology;
+            node.childNodes().forEach(pending::push);
+        }
+    }
+
+    /**
+     * Lets an unlinked subtree become a tree of its own. Its new topology is locked until all of its nodes share it,
+     * so no other thread changes the subtree while some of its nodes still refer to the former topology.
+     */
+    private void shareOwnTopology() {
+        if (isLeaf()) {
+            shareTopology(null);
+            return;
+        }
+        final Topology topology = new Topology();
+        topology.lock.writeLock().lock();
+        try {
+            shareTopology(topology);
+        } finally {
+            topology.lock.writeLock().unlock();
+        }
+    }
+
+    private boolean uncheckedChange(Collection<T> children, Change change) {
+        try {
+            return change(children, null, change);
+        } catch (ChildValidator.ChildValidationException e) {
+            throw new IllegalStateException("Removing children isn't validated!", e);
+        }
+    }
+
+    /**
+     * Locks all nodes involved in changing the given children, applies the change and notifies the observers. The
+     * nodes to lock are determined optimistically and re-checked once locked, retrying if they changed in between.
+     *
+     * @param newParent the children's new parent, if it isn't this node - or null.
+     */
+    private boolean change(Collection<T> children, T newParent, Change change) throws ChildValidator.ChildValidationException {
+        if (HierarchyBatch.current() != null) {
+            throw new UnsupportedOperationException("ConcurrentTreeNodes can't be changed within a batch!");
+        }
+        while (true) {
+            final LockedChange lockedChange = new LockedChange(children, newParent, change);
+            if (lockedChange.exclusive) {
+                requireExclusiveLockable(lockedChange.topologies.locks);
+            }
+            lockedChange.topologies.lock(lockedChange.exclusive);
+            try {
+                HierarchyBatch.defer(lockedChange); // until the nodes are unlocked
+            } finally {
+                lockedChange.topologies.unlock();
+            }
+            if (lockedChange.applied) {
+                return lockedChange.result;
+            }
+        }
+    }
+
+    /**
+     * The shared locks can't be upgraded, so observers - notified with a shared lock held - can't take exclusive
+     * ones. Neither can they take them of other trees, as these might wait for the shared lock to be released.
+     */
+    private static void requireExclusiveLockable(Collection<Topology> topologies) {
+        if (HELD_TOPOLOGIES.get()[0] > 0) {
+            for (Topology topology : topologies) {
+                if (!topology.lock.isWriteLockedByCurrentThread()) {
+                    throw new IllegalStateException("Observers of ConcurrentTreeNodes can't synchronously move nodes with children, query aggregates or take snapshots!");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return this node, the new parent, the children and their current parents in locking order.
+     */
+    private Set<ConcurrentTreeNode<T>> participants(Collection<T> children, T newParent) {
+        final Set<ConcurrentTreeNode<T>> nodes = new TreeSet<>(BY_LOCK_ORDER);
+        nodes.add(this);
+        if (newParent != null) {
+            nodes.add(newParent);
+        }
+        if (children != null) {
+            for (T child : children) {
+                if (child != null) {
+                    nodes.add(child);
+                    final T parent = child.parentNode();
+                    if (parent != null) {
+                        nodes.add(parent);
+                    }
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private static <T extends ConcurrentTreeNode<T>> boolean containsSubtrees(Collection<T> children) {
+        if (children != null) {
+            for (T child : children) {
+                if (child != null && !child.isLeaf()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T self() {
+        return (T) this;
+    }
+
+    @FunctionalInterface
+    private interface Change {
+        boolean apply() throws ChildValidator.ChildValidationException;
+    }
+
+    private final class LockedChange implements HierarchyAction {
+        private final Collection<T> children;
+        private final T newParent;
+        private final Change change;
+        private final ConcurrentTreeNode<T> target;
+        private final Set<ConcurrentTreeNode<T>> nodes;
+        private final Topologies topologies;
+        private final boolean exclusive;
+        private boolean applied = false;
+        private boolean result;
+
+        private LockedChange(Collection<T> children, T newParent, Change change) {
+            this.children = children;
+            this.newParent = newParent;
+            this.change = change;
+            this.target = newParent != null ? newParent : ConcurrentTreeNode.this;
+            this.nodes = participants(children, newParent);
+            target.topology(); // shared by the linked children
+            this.topologies = new Topologies(nodes);
+            this.exclusive = containsSubtrees(children);
+        }
+
+        @Override
+        public void run() throws ChildValidator.ChildValidationException {
+            nodes.forEach(node -> node.lock.lock());
+            try {
+                // the target's topology is gone, if it was unlinked as a leaf before the topologies were resolved
+                if (nodes.equals(participants(children, newParent)) && target.topology != null && topologies.isCurrent()
+                        && (exclusive || !containsSubtrees(children))) {
+                    try {
+                        result = change.apply();
+                    } catch (Throwable t) {
+                        HierarchyBatch.current().rollback(); // while the nodes are still locked
+                        throw t;
+                    }
+                    applied = true;
+                    if (result) {
+                        shareTopologies();
+                    }
+                }
+            } finally {
+                nodes.forEach(node -> node.lock.unlock());
+                topologies.downgrade(); // for notifying, so other threads may proceed meanwhile
+            }
+        }
+
+        /**
+         * Linked children join their parent's tree; unlinked leaves are on their own again and unlinked subtrees
+         * become trees of their own.
+         */
+        private void shareTopologies() {
+            final Topology former = ConcurrentTreeNode.this.topology;
+            for (T child : children) {
+                if (child != null) {
+                    final ConcurrentTreeNode<T> node = child, parent = child.parentNode();
+                    if (parent != null) {
+                        node.shareTopology(parent.topology);
+                    } else if (node.topology == former) {
+                        node.shareOwnTopology();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Guards the ancestries of one tree's nodes: changes of the tree's leaves share it, changes of its subtrees take
+     * it exclusively. Each tree has its own, so changes of different trees don't block each other.
+     */
+    private static final class Topology {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final ReentrantLock observers = new ReentrantLock(); // serializes re-indexing the observed nodes
+        private final long lockOrder = LOCK_ORDER.getAndIncrement();
+
+        /**
+         * A thread holding a topology already - as observer - barges in for further shared locks instead of queueing
+         * behind exclusive ones, which might wait for the locks it holds.
+         */
+        private void lock(boolean exclusive) {
+            if (exclusive) {
+                lock.writeLock().lock();
+            } else if (HELD_TOPOLOGIES.get()[0] == 0) {
+                lock.readLock().lock();
+            } else {
+                while (!lock.readLock().tryLock()) {
+                    Thread.yield();
+                }
+            }
+            HELD_TOPOLOGIES.get()[0]++;
+        }
+
+        private boolean tryLock(boolean exclusive) {
+            if ((exclusive ? lock.writeLock().tryLock() : lock.readLock().tryLock())) {
+                HELD_TOPOLOGIES.get()[0]++;
+                return true;
+            }
+            return false;
+        }
+
+        private void unlock(boolean exclusive) {
+            (exclusive ? lock.writeLock() : lock.readLock()).unlock();
+            HELD_TOPOLOGIES.get()[0]--;
+        }
+
+        private void downgrade() {
+            lock.readLock().lock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The distinct topologies of some nodes in locking order - resolved optimistically, so they are to be verified
+     * once the nodes are locked.
+     */
+    private static final class Topologies {
+        private final Map<ConcurrentTreeNode<?>, Topology> resolved = new IdentityHashMap<>();
+        private final List<Topology> locks;
+        private boolean exclusive = false;
+
+        private Topologies(Collection<? extends ConcurrentTreeNode<?>> nodes) {
+            final Set<Topology> distinct = new TreeSet<>(Comparator.comparingLong((Topology topology) -> topology.lockOrder));
+            for (ConcurrentTreeNode<?> node : nodes) {
+                final Topology topology = node.topology;
+                resolved.put(node, topology);
+                if (topology != null) {
+                    distinct.add(topology);
+                }
+            }
+            this.locks = new ArrayList<>(distinct);
+        }
+
+        /**
+         * Waits for one lock only and tries the others, releasing all if one isn't free - to wait for that one next.
+         * So changes never wait while holding a topology, which an observer holding another one might wait for.
+         */
+        private void lock(boolean exclusive) {
+            this.exclusive = exclusive;
+            int first = 0;
+            while (!locks.isEmpty()) {
+                locks.get(first).lock(exclusive);
+                int busy = -1;
+                for (int i = 0; i < locks.size() && busy < 0; i++) {
+                    if (i != first && !locks.get(i).tryLock(exclusive)) {
+                        busy = i;
+                    }
+                }
+                if (busy < 0) {
+                    return;
+                }
+                for (int i = 0; i < busy; i++) {
+                    if (i != first) {
+                        locks.get(i).unlock(exclusive);
+                    }
+                }
+                locks.get(first).unlock(exclusive);
+                first = busy;
+            }
+        }
+
+        private boolean isCurrent() {
+            for (Map.Entry<ConcurrentTreeNode<?>, Topology> node : resolved.entrySet()) {
+                if (node.getKey().topology != node.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void downgrade() {
+            if (exclusive) {
+                locks.forEach(Topology::downgrade);
+                exclusive = false;
+            }
+        }
+
+        private void unlock() {
+            locks.forEach(topology -> topology.unlock(exclusive));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package de.brainbytes.common.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Fork-join implementation of {@link TreeNode#reduce} and {@link TreeNode#visit}.
+ * <p>
+ * Each task walks its subtree with an explicit stack - so deep hierarchies don't overflow the call stack - and only
+ * forks a child's subtree as separate task, while the worker has hardly any tasks queued for stealing and forks
+ * aren't nested too deeply. Thus the number of tasks adapts to the available parallelism instead of the number of
+ * nodes.
+ *
+ * @author Fabian Krippendorff
+ */
+final class ForkJoinTraversal {
+
+    private static final int SURPLUS_TASKS = 3;
+    private static final int MAX_FORK_DEPTH = 64; // joining may run the forked task inline, nesting the call stack
+
+    private ForkJoinTraversal() {
+    }
+
+    static <T extends TreeNode<T>, R> R reduce(T root, R identity, Function<? super T, ? extends R> mapper, BinaryOperator<R> combiner, Predicate<? super R> until) {
+        final Reduction<T, R> reduction = new Reduction<>(identity, mapper, combiner, until);
+        final R result = invoke(new ReduceTask<>(root, reduction));
+        return reduction.terminated ? reduction.terminalResult : result;
+    }
+
+    static <T extends TreeNode<T>> boolean visit(T root, Function<? super T, TreeNode.VisitResult> visitor) {
+        final Termination termination = new Termination();
+        invoke(new VisitTask<>(root, visitor, termination));
+        return !termination.terminated;
+    }
+
+    private static <R> R invoke(ForkJoinTask<R> task) {
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+    }
+
+    /**
+     * State shared by all tasks of one traversal.
+     */
+    private static class Termination {
+        volatile boolean terminated = false;
+    }
+
+    private static final class Reduction<T, R> extends Termination {
+        private final R identity;
+        private final Function<? super T, ? extends R> mapper;
+        private final BinaryOperator<R> combiner;
+        private final Predicate<? super R> until;
+        private R terminalResult = null; // written before terminated
+
+        private Reduction(R identity, Function<? super T, ? extends R> mapper, BinaryOperator<R> combiner, Predicate<? super R> until) {
+            this.identity = identity;
+            this.mapper = mapper;
+            this.combiner = combiner;
+            this.until = until;
+        }
+    }
+
+    @SuppressWarnings("serial") // tasks aren't serialized
+    private static abstract class SubtreeTask<T extends TreeNode<T>, R> extends RecursiveTask<R> {
+        private final T root;
+        private final Termination termination;
+        private int forkDepth = 0;
+
+        SubtreeTask(T root, Termination termination) {
+            this.root = root;
+            this.termination = termination;
+        }
+
+        @Override
+        protected final R compute() {
+            final List<SubtreeTask<T, R>> forked = new ArrayList<>();
+            final Deque<T> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty() && !termination.terminated) {
+                final T node = pending.pop();
+                if (accept(node)) {
+                    for (T child : node.getChildren()) {
+                        if (!child.isLeaf() && forkDepth < MAX_FORK_DEPTH && getSurplusQueuedTaskCount() <= SURPLUS_TASKS) {
+                            final SubtreeTask<T, R> task = subtask(child);
+                            task.forkDepth = forkDepth + 1;
+                            task.fork();
+                            forked.add(task);
+                        } else {
+                            pending.push(child);
+                        }
+                    }
+                }
+            }
+            for (SubtreeTask<T, R> task : forked) {
+                final R taskResult = task.join();
+                if (!termination.terminated) {
+                    combine(taskResult);
+                }
+            }
+            return result();
+        }
+
+        /**
+         * @return whether to descend into the node's children.
+         */
+        abstract boolean accept(T node);
+
+        abstract SubtreeTask<T, R> subtask(T subtreeRoot);
+
+        abstract void combine(R subtaskResult);
+
+        abstract R result();
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ReduceTask<T extends TreeNode<T>, R> extends SubtreeTask<T, R> {
+        private final Reduction<T, R> reduction;
+        private R result;
+
+        private ReduceTask(T root, Reduction<T, R> reduction) {
+            super(root, reduction);
+            this.reduction = reduction;
+            this.result = reduction.identity;
+        }
+
+        @Override
+        boolean accept(T node) {
+            combine(reduction.mapper.apply(node));
+            return true;
+        }
+
+        @Override
+        SubtreeTask<T, R> subtask(T subtreeRoot) {
+            return new ReduceTask<>(subtreeRoot, reduction);
+        }
+
+        @Override
+        void combine(R value) {
+            result = reduction.combiner.apply(result, value);
+            if (reduction.until != null && reduction.until.test(result)) {
+                synchronized (reduction) {
+                    if (!reduction.terminated) {
+                        reduction.terminalResult = result;
+                        reduction.terminated = true;
+                    }
+                }
+            }
+        }
+
+        @Override
+        R result() {
+            return result;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class VisitTask<T extends TreeNode<T>> extends SubtreeTask<T, Void> {
+        private final Function<? super T, TreeNode.VisitResult> visitor;
+        private final Termination termination;
+
+        private VisitTask(T root, Function<? super T, TreeNode.VisitResult> visitor, Termination termination) {
+            super(root, termination);
+            this.visitor = visitor;
+            this.termination = termination;
+        }
+
+        @Override
+        boolean accept(T node) {
+            final TreeNode.VisitResult result = visitor.apply(node);
+            if (result == null) {
+                throw new NullPointerException("VisitResult may not be null!");
+            } else if (result == TreeNode.VisitResult.TERMINATE) {
+                termination.terminated = true;
+            }
+            return result == TreeNode.VisitResult.CONTINUE;
+        }
+
+        @Override
+        SubtreeTask<T, Void> subtask(T subtreeRoot) {
+            return new VisitTask<>(subtreeRoot, visitor, termination);
+        }
+
+        @Override
+        void combine(Void subtaskResult) {
+        }
+
+        @Override
+        Void result() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+
+/**
+ * State of a {@link TreeNode#batch(TreeNode.HierarchyAction) batch} running on the current thread: an undo-log for
+ * rolling back and the net changes per node, which are notified on commit.
+ * <p>
+ * A batch may span hierarchies of different node types, so nodes are handled as raw types here.
+ *
+ * @author Fabian Krippendorff
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+final class HierarchyBatch {
+
+    private static final ThreadLocal<HierarchyBatch> CURRENT = new ThreadLocal<>();
+
+    private final List<Change> undoLog = new ArrayList<>();
+    private final Map<TreeNode, ParentDelta> parentDeltas = new LinkedHashMap<>();
+    private final Map<TreeNode, TreeNode> originalParents = new LinkedHashMap<>();
+    private final boolean single; // a single change, which only defers its notifications
+    private boolean rollingBack = false;
+
+    private HierarchyBatch(boolean single) {
+        this.single = single;
+    }
+
+    static HierarchyBatch current() {
+        return CURRENT.get();
+    }
+
+    static void run(TreeNode.HierarchyAction action) throws TreeNode.ChildValidator.ChildValidationException {
+        final HierarchyBatch outer = CURRENT.get();
+        if (outer != null) {
+            outer.runWithSavepoint(action);
+            return;
+        }
+        run(new HierarchyBatch(false), action);
+    }
+
+    /**
+     * Runs a single change - made under locks, outside any batch - deferring its notifications until it returns.
+     * Like without a batch, parents nobody observes when they change aren't notified, so their children aren't
+     * copied either.
+     */
+    static void defer(TreeNode.HierarchyAction action) throws TreeNode.ChildValidator.ChildValidationException {
+        if (CURRENT.get() != null) {
+            throw new IllegalStateException("Changes can't be deferred within a batch!");
+        }
+        run(new HierarchyBatch(true), action);
+    }
+
+    private static void run(HierarchyBatch batch, TreeNode.HierarchyAction action) throws TreeNode.ChildValidator.ChildValidationException {
+        CURRENT.set(batch);
+        try {
+            batch.runWithSavepoint(action);
+        } finally {
+            CURRENT.remove();
+        }
+        batch.commit(); // outside the batch, so observers may change the hierarchy again
+    }
+
+    private void runWithSavepoint(TreeNode.HierarchyAction action) throws TreeNode.ChildValidator.ChildValidationException {
+        final int savepoint = undoLog.size();
+        try {
+            action.run();
+        } catch (Throwable t) {
+            rollback(savepoint);
+            throw t;
+        }
+    }
+
+    /**
+     * Reverts all changes right away - for actions, which release their locks before the batch could.
+     */
+    void rollback() {
+        rollback(0);
+    }
+
+    /**
+     * Reverts all changes after the savepoint by applying their inverse - recorded as net changes as well, so
+     * reverted changes cancel out.
+     */
+    private void rollback(int savepoint) {
+        rollingBack = true;
+        try {
+            for (int i = undoLog.size() - 1; i >= savepoint; i--) {
+                final Change change = undoLog.remove(i);
+                if (change.linked) {
+                    change.parent.unlinkChild(change.child, this);
+                } else {
+                    change.parent.linkChild(change.index, change.child, this);
+                }
+                change.child.indexAncestry();
+            }
+        } finally {
+            rollingBack = false;
+        }
+    }
+
+    void beforeChange(TreeNode parent) {
+        if (!parentDeltas.containsKey(parent)) {
+            parentDeltas.put(parent, new ParentDelta(parent, !single || parent.isChildChangeObserved()));
+        }
+    }
+
+    void linked(TreeNode parent, TreeNode child, int index) {
+        if (!rollingBack) {
+            undoLog.add(new Change(parent, child, index, true));
+        }
+        parentDeltas.get(parent).linked(child);
+        if (!originalParents.containsKey(child)) {
+            originalParents.put(child, null); // moved children are unlinked first, so this one had no parent
+        }
+    }
+
+    void unlinked(TreeNode parent, TreeNode child, int index) {
+        if (!rollingBack) {
+            undoLog.add(new Change(parent, child, index, false));
+        }
+        parentDeltas.get(parent).unlinked(child);
+        if (!originalParents.containsKey(child)) {
+            originalParents.put(child, parent);
+        }
+    }
+
+    private void commit() {
+        final List<TreeNode> movedChildren = new ArrayList<>();
+        originalParents.forEach((child, from) -> {
+            final Object to = child.getParent().orElse(null);
+            if (from != null && to != null && from != to) {
+                child.beginMove(from, (TreeNode) to);
+                movedChildren.add(child);
+            }
+        });
+        parentDeltas.values().forEach(ParentDelta::keepUnmovedChildren);
+        try {
+            parentDeltas.values().forEach(ParentDelta::notifyRemoved);
+            parentDeltas.values().forEach(ParentDelta::notifyAdded);
+        } finally {
+            movedChildren.forEach(TreeNode::endMove);
+        }
+        originalParents.forEach((child, from) -> {
+            if (child.getParent().orElse(null) != from) {
+                child.fireParentChanged();
+            }
+        });
+    }
+
+    private static final class Change {
+        private final TreeNode parent;
+        private final TreeNode child;
+        private final int index;
+        private final boolean linked;
+
+        private Change(TreeNode parent, TreeNode child, int index, boolean linked) {
+            this.parent = parent;
+            this.child = child;
+            this.index = index;
+            this.linked = linked;
+        }
+    }
+
+    private enum ChildState {
+        ADDED, REMOVED,
+        /**
+         * Removed and added again - only relevant for ordered children, where the position may have changed.
+         */
+        REINSERTED
+    }
+
+    private static final class ParentDelta {
+        private final TreeNode parent;
+        private final boolean observed;
+        private final Object[] childrenBefore; // only for ordered children, to determine the removed indexes
+        private final Map<TreeNode, ChildState> children = new LinkedHashMap<>();
+
+        /**
+         * Called before the parent's children change - in place, as the parent may be locked by the change.
+         */
+        private ParentDelta(TreeNode parent, boolean observed) {
+            this.parent = parent;
+            this.observed = observed;
+            this.childrenBefore = observed && parent.hasOrderedChildren() ? parent.childNodes().toArray() : null;
+        }
+
+        private void linked(TreeNode child) {
+            final ChildState state = children.get(child);
+            if (state == null) {
+                children.put(child, ChildState.ADDED);
+            } else if (childrenBefore != null) {
+                children.put(child, ChildState.REINSERTED);
+            } else {
+                children.remove(child); // removed and added again
+            }
+        }
+
+        private void unlinked(TreeNode child) {
+            final ChildState state = children.get(child);
+            if (state == ChildState.ADDED) {
+                children.remove(child); // added and removed again
+            } else {
+                children.put(child, ChildState.REMOVED);
+            }
+        }
+
+        /**
+         * Drops the reinsertions, that didn't change the order - e.g. by a nested rollback. A reinserted child kept
+         * its place, if it is in the same order relative to the unchanged children before and after, which is found
+         * by matching both orders. Comparing indexes alone wouldn't do, as the children around may have changed.
+         */
+        private void keepUnmovedChildren() {
+            if (!observed || childrenBefore == null || !children.containsValue(ChildState.REINSERTED)) {
+                return;
+            }
+            final List<Object> before = new ArrayList<>();
+            for (Object child : childrenBefore) {
+                if (isKept(child)) {
+                    before.add(child);
+                }
+            }
+            final List<Object> after = new ArrayList<>();
+            for (Object child : parent.getChildren()) {
+                if (isKept(child)) {
+                    after.add(child);
+                }
+            }
+            final Set<Object> moved = new HashSet<>();
+            int i = 0;
+            int j = 0;
+            while (i < before.size() && j < after.size()) {
+                final Object childBefore = before.get(i);
+                final Object childAfter = after.get(j);
+                if (moved.contains(childBefore)) {
+                    i++;
+                } else if (moved.contains(childAfter)) {
+                    j++;
+                } else if (childBefore == childAfter) {
+                    children.remove(childBefore); // unchanged or reinserted at its place
+                    i++;
+                    j++;
+                } else if (children.get(childBefore) == ChildState.REINSERTED) {
+                    moved.add(childBefore);
+                    i++;
+                } else { // unchanged children keep their order, so the other one was reinserted
+                    moved.add(childAfter);
+                    j++;
+                }
+            }
+        }
+
+        /**
+         * @return whether the child was contained before and after - either unchanged or reinserted.
+         */
+        private boolean isKept(Object child) {
+            final ChildState state = children.get(child);
+            return state == null || state == ChildState.REINSERTED;
+        }
+
+        private void notifyRemoved() {
+            if (!observed) {
+                return;
+            }
+            final Set<TreeNode> removed = new LinkedHashSet<>();
+            int[] indexes = null;
+            if (childrenBefore == null) {
+                children.forEach((child, state) -> {
+                    if (state == ChildState.REMOVED) {
+                        removed.add(child);
+                    }
+                });
+            } else {
+                indexes = new int[children.size()];
+                for (int i = 0; i < childrenBefore.length; i++) {
+                    final ChildState state = children.get(childrenBefore[i]);
+                    if (state == ChildState.REMOVED || state == ChildState.REINSERTED) {
+                        indexes[removed.size()] = i;
+                        removed.add((TreeNode) childrenBefore[i]);
+                    }
+                }
+                indexes = Arrays.copyOf(indexes, removed.size());
+            }
+            if (!removed.isEmpty()) {
+                parent.fireChildrenRemoved(Collections.unmodifiableSet(removed), indexes);
+            }
+        }
+
+        private void notifyAdded() {
+            if (!observed) {
+                return;
+            }
+            final List<TreeNode> added = new ArrayList<>();
+            children.forEach((child, state) -> {
+                if (state == ChildState.ADDED || state == ChildState.REINSERTED) {
+                    added.add(child);
+                }
+            });
+            if (added.isEmpty()) {
+                return;
+            }
+            int[] indexes = null;
+            if (childrenBefore != null) {
+                added.sort(Comparator.comparingInt(parent::indexOf));
+                indexes = new int[added.size()];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = parent.indexOf(added.get(i));
+                }
+            }
+            parent.fireChildrenAdded(Collections.unmodifiableSet(new LinkedHashSet<>(added)), indexes);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package de.brainbytes.common.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Numbers the changes of a subtree consecutively and retains the latest ones, so a subscriber gets a
+ * {@link TreeSnapshot snapshot} of the subtree and exactly the changes after it - none lost, none duplicated - and a
+ * reconnecting subscriber {@link #resume(long, Subscriber) resumes} from the last change it got, without a new
+ * snapshot, as long as the following changes are retained.
+ * <p>
+ * The changes are recorded by a {@link TreeNode.SubtreeObserver} at the root, so moves inside the subtree are
+ * changes as removal and addition. Subscribers are notified synchronously in the order of the sequence numbers,
+ * while the log is locked - so they should hand the changes on rather than change the hierarchy themselves.
+ * Observers can't subscribe synchronously, as the change they are notified of may not be recorded yet.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class HierarchyChangeLog<T extends TreeNode<T>> {
+
+    private final T root;
+    private final HierarchyEvent<T>[] changes; // ring buffer: change n at n % capacity
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final TreeNode.SubtreeObserver<T> observer = (eventSource, event) -> record(event);
+    private volatile long sequence = 0;
+
+    @SuppressWarnings("unchecked")
+    private HierarchyChangeLog(T root, int capacity) {
+        this.root = root;
+        this.changes = (HierarchyEvent<T>[]) new HierarchyEvent<?>[capacity];
+    }
+
+    /**
+     * Records the changes of the root's subtree from now on, until it is {@link #unregister() unregistered}.
+     *
+     * @param capacity number of the latest changes retained for resuming.
+     */
+    public static <T extends TreeNode<T>> HierarchyChangeLog<T> register(T root, int capacity) {
+        if (root == null) {
+            throw new NullPointerException("Root may not be null!");
+        } else if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity has to be positive: " + capacity);
+        }
+        final HierarchyChangeLog<T> log = new HierarchyChangeLog<>(root, capacity);
+        root.addSubtreeObserver(log.observer);
+        return log;
+    }
+
+    /**
+     * Stops recording - subscribers aren't notified anymore.
+     */
+    public boolean unregister() {
+        return root.removeSubtreeObserver(observer);
+    }
+
+    public T getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the sequence number of the latest change - or 0 before the first one.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the sequence number of the oldest change, that is still retained for resuming.
+     */
+    public synchronized long getOldestRetained() {
+        return Math.max(1, sequence - changes.length + 1);
+    }
+
+    /**
+     * Delivers a snapshot of the subtree to the subscriber and then each following change.
+     * <p>
+     * The snapshot is taken without locking the log, so changes may land meanwhile - then it is taken again.
+     *
+     * @throws IllegalStateException if called by an observer or within a {@link TreeNode#batch(TreeNode.HierarchyAction)
+     *                               batch} - the snapshot would contain changes, that aren't recorded yet, so they'd be
+     *                               delivered twice.
+     */
+    public Subscription subscribe(Subscriber<T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber may not be null!");
+        } else if (TreeNode.isNotifying() || HierarchyBatch.current() != null) {
+            throw new IllegalStateException("Can't subscribe while changes are notified or batched on this thread!");
+        }
+        while (true) {
+            final long before = sequence;
+            final TreeSnapshot<T> snapshot = root.snapshot(); // contains all changes recorded so far
+            synchronized (this) {
+                if (sequence == before) {
+                    final Subscription subscription = new Subscription(subscriber, before);
+                    subscriber.onSnapshot(snapshot, before);
+                    subscriptions.add(subscription);
+                    return subscription;
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers the retained changes after the given one to the subscriber and then each following change - or,
+     * if changes after the given one aren't retained anymore, a new snapshot like {@link #subscribe(Subscriber)}.
+     *
+     * @param sequence of the last change, the subscriber got.
+     * @throws IllegalArgumentException if the change didn't happen yet.
+     * @throws IllegalStateException    if a new snapshot is needed, but can't be taken - see
+     *                                  {@link #subscribe(Subscriber)}.
+     */
+    public Subscription resume(long sequence, Subscriber<T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber may not be null!");
+        }
+        synchronized (this) {
+            if (sequence < 0 || sequence > this.sequence) {
+                throw new IllegalArgumentException("Change " + sequence + " is out of range [0, " + this.sequence + "]!");
+            }
+            if (sequence + 1 >= getOldestRetained()) {
+                final Subscription subscription = new Subscription(subscriber, sequence);
+                for (long next = sequence + 1; next <= this.sequence; next++) {
+                    subscription.deliver(next, changes[index(next)]);
+                }
+                subscriptions.add(subscription);
+                return subscription;
+            }
+        }
+        return subscribe(subscriber);
+    }
+
+    private synchronized void record(HierarchyEvent<T> event) {
+        final long next = sequence + 1;
+        changes[index(next)] = event;
+        sequence = next;
+        for (Subscription subscription : subscriptions) {
+            subscription.deliver(next, event);
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % changes.length);
+    }
+
+    @Override
+    public String toString() {
+        return "HierarchyChangeLog[root=" + root + ", sequence=" + sequence + "]";
+    }
+
+    /**
+     * Receives the state of a subtree and its changes - each with the sequence number of the latest change it
+     * contains, to resume from.
+     */
+    public interface Subscriber<T extends TreeNode<T>> {
+
+        void onSnapshot(TreeSnapshot<T> snapshot, long sequence);
+
+        void onChange(HierarchyEvent<T> change, long sequence);
+    }
+
+    /**
+     * A subscriber's registration, which is to be used for cancelling it again.
+     */
+    public final class Subscription {
+
+        private final Subscriber<T> subscriber;
+        private volatile long delivered;
+
+        private Subscription(Subscriber<T> subscriber, long delivered) {
+            this.subscriber = subscriber;
+            this.delivered = delivered;
+        }
+
+        private void deliver(long sequence, HierarchyEvent<T> change) {
+            subscriber.onChange(change, sequence);
+            delivered = sequence;
+        }
+
+        /**
+         * @return the sequence number of the latest change delivered - to resume from.
+         */
+        public long getSequence() {
+            return delivered;
+        }
+
+        /**
+         * @return false, if the subscription was cancelled already.
+         */
+        public boolean cancel() {
+            return subscriptions.remove(this);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package de.brainbytes.common.util;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A single change of a hierarchy, as delivered to {@link TreeNode.SubtreeObserver}s.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class HierarchyEvent<T extends TreeNode<T>> {
+
+    public enum Type {
+        CHILDREN_ADDED, CHILDREN_REMOVED, PARENT_CHANGED
+    }
+
+    private final Type type;
+    private final T changedNode;
+    private final Set<T> children;
+    private final int[] indexes;
+    private final Optional<T> newParent;
+    private final List<T> path;
+
+    HierarchyEvent(Type type, T changedNode, Set<T> children, int[] indexes, Optional<T> newParent, List<T> path) {
+        this.type = type;
+        this.changedNode = changedNode;
+        this.children = children;
+        this.indexes = indexes;
+        this.newParent = newParent;
+        this.path = path;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the node, whose children changed - or whose parent changed for {@link Type#PARENT_CHANGED}.
+     */
+    public T getChangedNode() {
+        return changedNode;
+    }
+
+    /**
+     * @return the added or removed children, empty for {@link Type#PARENT_CHANGED}.
+     */
+    public Set<T> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the children's positions as in {@link TreeNode.HierarchyObserver} or {@code null} for unordered
+     * children and {@link Type#PARENT_CHANGED}.
+     */
+    public int[] getIndexes() {
+        return indexes == null ? null : indexes.clone();
+    }
+
+    /**
+     * @return the new parent for {@link Type#PARENT_CHANGED}, {@code null} for other types.
+     */
+    public Optional<T> getNewParent() {
+        return newParent;
+    }
+
+    /**
+     * @return the nodes from the root down to the changed node, as of the time of the change.
+     */
+    public List<T> getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return type + " at " + changedNode + ": " + (type == Type.PARENT_CHANGED ? newParent : children);
+    }
+}
@@ -0,0 +1,131 @@
+package de.brainbytes.common.util;
+
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Options restricting, which changes a {@link TreeNode.HierarchyObserver} is notified of - by the type of change, by
+ * the depth of the changed node below the observed one and by a predicate on the changed node.
+ * <p>
+ * Register an observer with {@link TreeNode#addObserver(TreeNode.HierarchyObserver, HierarchySubscription)}. The node
+ * checks the options before building or forwarding an event, so an observer pays nothing for changes it isn't
+ * interested in - and no event is built at all, if no observer is interested.
+ * <p>
+ * Subscriptions are immutable, each option returns a new one.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class HierarchySubscription<T extends TreeNode<T>> {
+
+    private static final HierarchySubscription<?> ALL = new HierarchySubscription<>(EnumSet.allOf(HierarchyEvent.Type.class), Integer.MAX_VALUE, null);
+
+    private final Set<HierarchyEvent.Type> types;
+    private final int maxDepth;
+    private final Predicate<? super T> filter;
+
+    private HierarchySubscription(Set<HierarchyEvent.Type> types, int maxDepth, Predicate<? super T> filter) {
+        this.types = types;
+        this.maxDepth = maxDepth;
+        this.filter = filter;
+    }
+
+    /**
+     * @return the subscription to all changes - to be restricted by the other options.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends TreeNode<T>> HierarchySubscription<T> all() {
+        return (HierarchySubscription<T>) ALL;
+    }
+
+    /**
+     * @return a subscription only to the given types of change - {@link HierarchyEvent.Type#PARENT_CHANGED} is only
+     * notified for the observed node itself.
+     */
+    public HierarchySubscription<T> types(HierarchyEvent.Type first, HierarchyEvent.Type... others) {
+        if (first == null || others == null) {
+            throw new NullPointerException("Types may not be null!");
+        }
+        return new HierarchySubscription<T>(EnumSet.of(first, others), maxDepth, filter);
+    }
+
+    /**
+     * @param maxDepth of the changed nodes below the observed node - 0 for changes of the observed node's own
+     *                 children only.
+     */
+    public HierarchySubscription<T> maxDepth(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Depth may not be negative: " + maxDepth);
+        }
+        return new HierarchySubscription<T>(types, maxDepth, filter);
+    }
+
+    /**
+     * @param filter accepting the changed nodes, whose changes are notified - in addition to previous filters.
+     */
+    public HierarchySubscription<T> filter(Predicate<? super T> filter) {
+        if (filter == null) {
+            throw new NullPointerException("Filter may not be null!");
+        }
+        final Predicate<? super T> previous = this.filter;
+        return new HierarchySubscription<T>(types, maxDepth, previous == null ? filter : node -> previous.test(node) && filter.test(node));
+    }
+
+    /**
+     * @param depth of the changed node below the observed one.
+     */
+    boolean accepts(HierarchyEvent.Type type, int depth, T changedNode) {
+        return types.contains(type) && depth <= maxDepth && (filter == null || filter.test(changedNode));
+    }
+
+    /**
+     * Decorator delivering only the subscribed changes - checked by {@link TreeNode} in advance and by the
+     * decorator itself for other notifiers.
+     */
+    static final class Subscribed<T extends TreeNode<T>> implements TreeNode.HierarchyObserver<T> {
+
+        private final TreeNode.HierarchyObserver<T> observer;
+        private final HierarchySubscription<T> subscription;
+
+        Subscribed(TreeNode.HierarchyObserver<T> observer, HierarchySubscription<T> subscription) {
+            if (observer == null) {
+                throw new NullPointerException("Observer may not be null!");
+            } else if (subscription == null) {
+                throw new NullPointerException("Subscription may not be null!");
+            }
+            this.observer = observer;
+            this.subscription = subscription;
+        }
+
+        boolean accepts(HierarchyEvent.Type type, int depth, T changedNode) {
+            return subscription.accepts(type, depth, changedNode);
+        }
+
+        TreeNode.HierarchyObserver<T> getObserver() {
+            return observer;
+        }
+
+        @Override
+        public void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren, int[] indexes) {
+            if (accepts(HierarchyEvent.Type.CHILDREN_ADDED, changedNode.getDepth() - eventSource.getDepth(), changedNode)) {
+                observer.onChildrenAdded(eventSource, changedNode, addedChildren, indexes);
+            }
+        }
+
+        @Override
+        public void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren, int[] indexes) {
+            if (accepts(HierarchyEvent.Type.CHILDREN_REMOVED, changedNode.getDepth() - eventSource.getDepth(), changedNode)) {
+                observer.onChildrenRemoved(eventSource, changedNode, removedChildren, indexes);
+            }
+        }
+
+        @Override
+        public void onParentChanged(T source, Optional<T> newParent) {
+            if (accepts(HierarchyEvent.Type.PARENT_CHANGED, 0, source)) {
+                observer.onParentChanged(source, newParent);
+            }
+        }
+    }
+}
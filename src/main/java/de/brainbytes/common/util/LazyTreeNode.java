@@ -0,0 +1,380 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+
+/**
+ * TreeNode mirroring an external hierarchy, whose children are {@link #loadChildren() loaded} on first access - so
+ * only visited branches take memory. Loading adds the children as usual, so observers are notified of their addition.
+ * <p>
+ * Loaded children may be {@link #unload() unloaded} again, which is notified as their removal, and are loaded anew on
+ * next access. With a {@link Budget}, the least recently used branches are unloaded automatically, as soon as more
+ * children are loaded than the budget allows - except branches, whose children were changed after loading, as the
+ * changes would get lost. Any access to the children, traversals included, loads them; only aggregates and snapshots
+ * cover just the loaded part of a subtree. Children linked by a {@link TreeBuilder} count as loaded and as changed.
+ * <p>
+ * Like TreeNode, lazy nodes aren't thread-safe - except for loading, so parallel traversals may load branches
+ * concurrently, but not together with a budget, which might unload branches under traversal.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public abstract class LazyTreeNode<T extends LazyTreeNode<T>> extends TreeNode<T> {
+
+    private final Budget budget;
+    private boolean loaded = false;
+    private boolean changedAfterLoading = false;
+    private boolean loadingOrUnloading = false;
+
+    /**
+     * Creates a node with {@link ChildOrder#UNORDERED unordered} children, which are never unloaded automatically.
+     */
+    protected LazyTreeNode() {
+        this(ChildOrder.UNORDERED, null);
+    }
+
+    /**
+     * @param budget shared by the nodes, whose children are unloaded automatically - or null.
+     */
+    protected LazyTreeNode(ChildOrder childOrder, Budget budget) {
+        super(childOrder);
+        this.budget = budget;
+    }
+
+    /**
+     * @return the children from the external hierarchy - new nodes without parent, as the former ones might have
+     * been unloaded.
+     */
+    protected abstract Collection<? extends T> loadChildren();
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Loads the children, unless they are loaded already.
+     *
+     * @throws IllegalStateException if a validator rejects the loaded children.
+     */
+    public void load() {
+        final boolean loadedNow;
+        synchronized (this) {
+            loadedNow = !loaded && !loadingOrUnloading && loadNow();
+        }
+        if (budget != null) {
+            if (loadedNow) {
+                budget.loaded(this); // may unload other nodes, so outside this node's lock
+            } else if (loaded) {
+                budget.used(this);
+            }
+        }
+    }
+
+    private boolean loadNow() {
+        loadingOrUnloading = true; // observers of the children being loaded see the children loaded so far
+        try {
+            final Collection<? extends T> children = loadChildren();
+            if (children == null) {
+                throw new NullPointerException("Loaded children of " + this + " may not be null!");
+            }
+            super.addChildren(children);
+            loaded = true;
+            return true;
+        } catch (ChildValidator.ChildValidationException e) {
+            throw new IllegalStateException("Loaded children of " + this + " were rejected!", e);
+        } finally {
+            loadingOrUnloading = false;
+        }
+    }
+
+    /**
+     * Removes the loaded children, which are loaded anew on next access - changes below them get lost.
+     *
+     * @return false, if the children weren't loaded.
+     */
+    public synchronized boolean unload() {
+        if (!loaded) {
+            return false;
+        }
+        final List<T> children = new ArrayList<>(super.getChildren());
+        loadingOrUnloading = true;
+        try {
+            super.removeChildren(children);
+        } finally {
+            loadingOrUnloading = false;
+        }
+        loaded = false;
+        changedAfterLoading = false;
+        if (budget != null) {
+            budget.unloaded(this, children);
+        }
+        return true;
+    }
+
+    /**
+     * Built children take the place of the loaded ones, so they aren't loaded on top - but they are kept like changes
+     * after loading, as loading couldn't restore them once unloaded.
+     */
+    @Override
+    synchronized void linkBuiltChildren(List<T> children) throws ChildValidator.ChildValidationException {
+        super.linkBuiltChildren(children);
+        loaded = true;
+        changed();
+    }
+
+    @Override
+    synchronized void unlinkBuiltChildren(List<T> children) {
+        super.unlinkBuiltChildren(children);
+        loaded = false;
+        changedAfterLoading = false;
+        if (budget != null) {
+            budget.unloaded(this, children);
+        }
+    }
+
+    @Override
+    void discardCaches() {
+        super.discardCaches();
+        if (loaded && !loadingOrUnloading) {
+            changed();
+        }
+    }
+
+    /**
+     * Marks the children as changed after loading - told the budget once per loading, so it needn't look for changes.
+     */
+    private void changed() {
+        if (!changedAfterLoading) {
+            changedAfterLoading = true;
+            if (budget != null) {
+                budget.changed(this);
+            }
+        }
+    }
+
+    private Collection<T> loadedChildren() {
+        return super.getChildren();
+    }
+
+    @Override
+    boolean isLeaf() {
+        load();
+        return super.isLeaf();
+    }
+
+    @Override
+    public Collection<T> getChildren() {
+        load();
+        return super.getChildren();
+    }
+
+    @Override
+    public int getChildCount() {
+        load();
+        return super.getChildCount();
+    }
+
+    @Override
+    public T getChildAt(int index) {
+        load();
+        return super.getChildAt(index);
+    }
+
+    @Override
+    public int indexOf(T child) {
+        load();
+        return super.indexOf(child);
+    }
+
+    @Override
+    public boolean addChild(T child) throws ChildValidator.ChildValidationException {
+        load();
+        return super.addChild(child);
+    }
+
+    @Override
+    public boolean addChild(int index, T child) throws ChildValidator.ChildValidationException {
+        load();
+        return super.addChild(index, child);
+    }
+
+    @Override
+    public boolean addChildren(Collection<? extends T> children) throws ChildValidator.ChildValidationException {
+        load();
+        return super.addChildren(children);
+    }
+
+    @Override
+    public boolean addChildren(int index, Collection<? extends T> children) throws ChildValidator.ChildValidationException {
+        load();
+        return super.addChildren(index, children);
+    }
+
+    @Override
+    public boolean moveChildren(Collection<? extends T> children, T newParent) throws ChildValidator.ChildValidationException {
+        load();
+        if (newParent != null) {
+            newParent.load();
+        }
+        return super.moveChildren(children, newParent);
+    }
+
+    @Override
+    public boolean removeChild(T child) {
+        load();
+        return super.removeChild(child);
+    }
+
+    @Override
+    public boolean removeChildren(Collection<? extends T> children) {
+        load();
+        return super.removeChildren(children);
+    }
+
+    @Override
+    public void clearChildren() {
+        load();
+        super.clearChildren();
+    }
+
+    /**
+     * Limit for the number of loaded children of the nodes sharing it, which are unloaded in least recently used
+     * order - using a node's children uses its ancestors as well, so they are unloaded only after it.
+     */
+    public static final class Budget {
+
+        private final int maxLoadedChildren;
+        private final LinkedHashMap<LazyTreeNode<?>, Integer> loadedNodes = new LinkedHashMap<>(16, 0.75f, true);
+        private final Set<LazyTreeNode<?>> changedNodes = new HashSet<>(); // loaded nodes changed after loading
+        private long loadedChildren = 0;
+
+        public Budget(int maxLoadedChildren) {
+            if (maxLoadedChildren < 0) {
+                throw new IllegalArgumentException("Budget may not be negative: " + maxLoadedChildren);
+            }
+            this.maxLoadedChildren = maxLoadedChildren;
+        }
+
+        /**
+         * @return the number of children loaded by the nodes sharing this budget.
+         */
+        public synchronized long getLoadedChildren() {
+            return loadedChildren;
+        }
+
+        private synchronized void used(LazyTreeNode<?> node) {
+            for (LazyTreeNode<?> used = node; used != null && loadedNodes.get(used) != null; used = (LazyTreeNode<?>) used.parentNode()) {
+                // accessed for the access order
+            }
+        }
+
+        private synchronized void changed(LazyTreeNode<?> node) {
+            changedNodes.add(node);
+        }
+
+        /**
+         * Selects the least recently used branches to unload, until the excess is freed - each with its loaded
+         * subtree, so branches below selected ones aren't counted twice.
+         */
+        private void loaded(LazyTreeNode<?> node) {
+            final Map<LazyTreeNode<?>, Long> evicted = new LinkedHashMap<>();
+            synchronized (this) {
+                final int children = node.loadedChildren().size();
+                loadedNodes.put(node, children);
+                loadedChildren += children;
+                used(node);
+                long excess = loadedChildren - maxLoadedChildren;
+                final Set<LazyTreeNode<?>> kept = excess > 0 ? changedBranches() : Collections.emptySet();
+                for (LazyTreeNode<?> candidate : loadedNodes.keySet()) { // least recently used first
+                    if (excess <= 0) {
+                        break;
+                    } else if (candidate != node && !candidate.isAncestorOfNode(node) && !kept.contains(candidate)
+                            && !isBelow(candidate, evicted.keySet())) {
+                        for (Iterator<Map.Entry<LazyTreeNode<?>, Long>> below = evicted.entrySet().iterator(); below.hasNext(); ) {
+                            final Map.Entry<LazyTreeNode<?>, Long> selected = below.next();
+                            if (candidate.isAncestorOfNode(selected.getKey())) { // unloaded along with the candidate
+                                excess += selected.getValue();
+                                below.remove();
+                            }
+                        }
+                        final long freed = loadedBelow(candidate);
+                        evicted.put(candidate, freed);
+                        excess -= freed;
+                    }
+                }
+            }
+            for (LazyTreeNode<?> candidate : evicted.keySet()) {
+                candidate.unload(); // notifies observers, so outside the lock
+            }
+        }
+
+        /**
+         * @return the changed nodes and their ancestors, which are kept, as unloading them would lose the changes -
+         * each node is visited once, however many changed nodes are below it.
+         */
+        private Set<LazyTreeNode<?>> changedBranches() {
+            final Set<LazyTreeNode<?>> kept = new HashSet<>();
+            for (LazyTreeNode<?> changed : changedNodes) {
+                for (LazyTreeNode<?> node = changed; node != null && kept.add(node); node = (LazyTreeNode<?>) node.parentNode()) {
+                    // marks the path up to the first node marked already
+                }
+            }
+            return kept;
+        }
+
+        private static boolean isBelow(LazyTreeNode<?> node, Set<LazyTreeNode<?>> ancestors) {
+            for (LazyTreeNode<?> ancestor = (LazyTreeNode<?>) node.parentNode(); ancestor != null; ancestor = (LazyTreeNode<?>) ancestor.parentNode()) {
+                if (ancestors.contains(ancestor)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the children loaded by the node and its loaded descendants - unchanged, so as many as were loaded.
+         */
+        private long loadedBelow(LazyTreeNode<?> node) {
+            long children = 0;
+            final Deque<LazyTreeNode<?>> pending = new ArrayDeque<>();
+            pending.push(node);
+            while (!pending.isEmpty()) {
+                final LazyTreeNode<?> loaded = pending.pop();
+                if (loadedNodes.containsKey(loaded)) {
+                    children += loaded.loadedChildren().size();
+                }
+                loaded.loadedChildren().forEach(pending::push);
+            }
+            return children;
+        }
+
+        /**
+         * Forgets the node and all loaded nodes below its unloaded children.
+         */
+        private synchronized void unloaded(LazyTreeNode<?> node, Collection<? extends LazyTreeNode<?>> children) {
+            final Integer nodeChildren = loadedNodes.remove(node);
+            if (nodeChildren != null) {
+                loadedChildren -= nodeChildren;
+            }
+            changedNodes.remove(node);
+            final Deque<LazyTreeNode<?>> pending = new ArrayDeque<>(children);
+            while (!pending.isEmpty()) {
+                final LazyTreeNode<?> unloaded = pending.pop();
+                final Integer unloadedChildren = loadedNodes.remove(unloaded);
+                if (unloadedChildren != null) {
+                    loadedChildren -= unloadedChildren;
+                }
+                changedNodes.remove(unloaded);
+                unloaded.loadedChildren().forEach(pending::push);
+            }
+        }
+    }
+
+    private boolean isAncestorOfNode(LazyTreeNode<?> node) {
+        for (LazyTreeNode<?> ancestor = node; ancestor != null; ancestor = (LazyTreeNode<?>) ancestor.parentNode()) {
+            if (ancestor == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,343 @@
+package de.brainbytes.common.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A tree encoded by a {@link TreeCodec}, mapped into memory. Its {@link Entry entries} locate the encoded nodes by
+ * the index at the end of the file, so any subtree is {@link Entry#load() loaded} without decoding the others and
+ * without the tree being read onto the heap.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class MappedTree<T extends TreeNode<T>> {
+
+    private final ByteBuffer buffer;
+    private final IntBuffer offsets;
+    private final IntBuffer subtreeSizes;
+    private final int size;
+    private final TreeCodec.PayloadCodec<T> payloadCodec;
+
+    private MappedTree(ByteBuffer buffer, TreeCodec.PayloadCodec<T> payloadCodec) throws IOException {
+        final int length = buffer.capacity();
+        if (length < TreeCodec.HEADER_LENGTH + TreeCodec.TRAILER_LENGTH
+                || buffer.getInt(0) != TreeCodec.MAGIC || buffer.getInt(Integer.BYTES) != TreeCodec.VERSION) {
+            throw new IOException("Unknown format!");
+        }
+        this.size = buffer.getInt(length - TreeCodec.TRAILER_LENGTH);
+        final int indexOffset = buffer.getInt(length - Integer.BYTES);
+        if (size <= 0 || indexOffset < TreeCodec.HEADER_LENGTH
+                || (long) indexOffset + 2L * Integer.BYTES * size + TreeCodec.TRAILER_LENGTH != length) {
+            throw new IOException("Corrupt index!");
+        }
+        this.buffer = buffer;
+        this.offsets = slice(buffer, indexOffset, size).asIntBuffer();
+        this.subtreeSizes = slice(buffer, indexOffset + Integer.BYTES * size, size).asIntBuffer();
+        this.payloadCodec = payloadCodec;
+    }
+
+    static <T extends TreeNode<T>> MappedTree<T> open(Path file, TreeCodec.PayloadCodec<T> payloadCodec) throws IOException {
+        if (file == null) {
+            throw new NullPointerException("File may not be null!");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File " + file + " is too large to be mapped!");
+            }
+            // the mapping stays valid after closing the channel
+            return new MappedTree<>(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), payloadCodec);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int ints) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + ints * Integer.BYTES);
+        return slice.slice();
+    }
+
+    /**
+     * @return the number of nodes in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    public Entry getRoot() {
+        return new Entry(0);
+    }
+
+    /**
+     * @param index the node's position in pre-order.
+     */
+    public Entry getEntry(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return new Entry(index);
+    }
+
+    /**
+     * @param offset the {@link Entry#getOffset() offset} of an encoded node - found in O(log n).
+     */
+    public Entry getEntryAt(int offset) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int middleOffset = offsets.get(middle);
+            if (middleOffset < offset) {
+                low = middle + 1;
+            } else if (middleOffset > offset) {
+                high = middle - 1;
+            } else {
+                return new Entry(middle);
+            }
+        }
+        throw new IllegalArgumentException("No node at offset " + offset + "!");
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte next = buffer.get();
+            value |= (next & 0x7F) << shift;
+            if (next >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * An encoded node - only its position is kept, everything else is read from the mapped file on demand.
+     */
+    public final class Entry {
+
+        private final int index;
+
+        private Entry(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return the node's position in pre-order.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public int getOffset() {
+            return offsets.get(index);
+        }
+
+        /**
+         * @return the number of nodes in the subtree, including this one.
+         */
+        public int getSubtreeSize() {
+            return subtreeSizes.get(index);
+        }
+
+        public int getChildCount() {
+            final ByteBuffer record = buffer.duplicate();
+            record.position(getOffset());
+            return readVarInt(record);
+        }
+
+        /**
+         * @return the children, skipping their subtrees by the index.
+         */
+        public List<Entry> getChildren() {
+            final int count = getChildCount();
+            final List<Entry> children = new ArrayList<>(count);
+            for (int child = index + 1; children.size() < count; child += subtreeSizes.get(child)) {
+                children.add(new Entry(child));
+            }
+            return children;
+        }
+
+        /**
+         * @return the decoded node alone, without children.
+         */
+        public T readNode() throws IOException {
+            final ByteBuffer record = buffer.duplicate();
+            record.position(getOffset());
+            readVarInt(record);
+            return readPayload(record);
+        }
+
+        /**
+         * Decodes the subtree sequentially, as its nodes are stored contiguously.
+         *
+         * @throws IOException also if a decoded node rejects a decoded child.
+         */
+        public T load() throws IOException {
+            final ByteBuffer records = buffer.duplicate();
+            records.position(getOffset());
+            final Deque<T> parents = new ArrayDeque<>();
+            final Deque<int[]> remainingChildren = new ArrayDeque<>();
+            T root = null;
+            for (int i = getSubtreeSize(); i > 0; i--) {
+                final int childCount = readVarInt(records);
+                final T node = readPayload(records);
+                if (parents.isEmpty()) {
+                    root = node;
+                } else {
+                    try {
+                        parents.peek().addChild(node);
+                    } catch (TreeNode.ChildValidator.ChildValidationException e) {
+                        throw new IOException("Decoded node " + node + " was rejected as child of " + parents.peek() + "!", e);
+                    }
+                    if (--remainingChildren.peek()[0] == 0) {
+                        parents.pop();
+                        remainingChildren.pop();
+                    }
+                }
+                if (childCount > 0) {
+                    parents.push(node);
+                    remainingChildren.push(new int[]{childCount});
+                }
+            }
+            return root;
+        }
+
+        /**
+         * Reads the payload at the record's position and moves behind it.
+         */
+        private T readPayload(ByteBuffer record) throws IOException {
+            final int length = readVarInt(record);
+            final ByteBuffer payload = record.slice();
+            payload.limit(length);
+            record.position(record.position() + length);
+            return payloadCodec.read(new BufferInput(payload));
+        }
+
+        @Override
+        public String toString() {
+            return "Entry " + index + " at offset " + getOffset();
+        }
+    }
+
+    /**
+     * DataInput on a buffer, big-endian like {@link java.io.DataOutputStream}.
+     */
+    private static final class BufferInput implements DataInput {
+
+        private final ByteBuffer buffer;
+
+        private BufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private ByteBuffer require(int bytes) throws EOFException {
+            if (buffer.remaining() < bytes) {
+                throw new EOFException("Payload has " + buffer.remaining() + " bytes left, but " + bytes + " are read!");
+            }
+            return buffer;
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            require(len).get(b, off, len);
+        }
+
+        @Override
+        public int skipBytes(int n) {
+            final int skipped = Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            return require(Byte.BYTES).get();
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xFF;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            return require(Short.BYTES).getShort();
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xFFFF;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return require(Character.BYTES).getChar();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            return require(Integer.BYTES).getInt();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            return require(Long.BYTES).getLong();
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return require(Float.BYTES).getFloat();
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return require(Double.BYTES).getDouble();
+        }
+
+        @Override
+        public String readLine() {
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+            final StringBuilder line = new StringBuilder();
+            while (buffer.hasRemaining()) {
+                final char next = (char) (buffer.get() & 0xFF);
+                if (next == '\n') {
+                    break;
+                } else if (next == '\r') {
+                    if (buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') {
+                        buffer.get();
+                    }
+                    break;
+                }
+                line.append(next);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package de.brainbytes.common.util;
+
+import java.util.function.IntBinaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ * Common {@link TreeNode.SubtreeAggregate}s.
+ *
+ * @author Fabian Krippendorff
+ */
+public final class SubtreeAggregates {
+
+    @SuppressWarnings("rawtypes")
+    private static final TreeNode.SubtreeAggregate SIZE = new IntAggregate(0, Integer::sum, (node, children) -> children + 1);
+    @SuppressWarnings("rawtypes")
+    private static final TreeNode.SubtreeAggregate HEIGHT = new IntAggregate(-1, Math::max, (node, children) -> children + 1);
+    @SuppressWarnings("rawtypes")
+    private static final TreeNode.SubtreeAggregate LEAF_COUNT = new IntAggregate(0, Integer::sum, (node, children) -> node.getChildCount() == 0 ? 1 : children);
+
+    private SubtreeAggregates() {
+    }
+
+    /**
+     * @return the number of nodes in the subtree, including its root.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends TreeNode<T>> TreeNode.SubtreeAggregate<T, Integer> size() {
+        return SIZE;
+    }
+
+    /**
+     * @return the number of edges on the longest path down from the subtree's root, i.e. 0 for a leaf.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends TreeNode<T>> TreeNode.SubtreeAggregate<T, Integer> height() {
+        return HEIGHT;
+    }
+
+    /**
+     * @return the number of nodes without children in the subtree.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends TreeNode<T>> TreeNode.SubtreeAggregate<T, Integer> leafCount() {
+        return LEAF_COUNT;
+    }
+
+    /**
+     * @return the sum of the nodes' values in the subtree - a new aggregate, which is to be kept for querying, so its
+     * values are cached. If a node's value changes, it has to {@link TreeNode#invalidateAggregates() invalidate}
+     * the aggregates.
+     */
+    public static <T extends TreeNode<T>> TreeNode.SubtreeAggregate<T, Long> sum(ToLongFunction<? super T> value) {
+        if (value == null) {
+            throw new NullPointerException("Value function may not be null!");
+        }
+        return new TreeNode.SubtreeAggregate<T, Long>() {
+            @Override
+            public Long identity() {
+                return 0L;
+            }
+
+            @Override
+            public Long combine(Long first, Long second) {
+                return first + second;
+            }
+
+            @Override
+            public Long ofNode(T node, Long childrenValue) {
+                return value.applyAsLong(node) + childrenValue;
+            }
+        };
+    }
+
+    private interface IntNodeValue {
+        int of(TreeNode<?> node, int childrenValue);
+    }
+
+    private static final class IntAggregate<T extends TreeNode<T>> implements TreeNode.SubtreeAggregate<T, Integer> {
+        private final int identity;
+        private final IntBinaryOperator combiner;
+        private final IntNodeValue nodeValue;
+
+        private IntAggregate(int identity, IntBinaryOperator combiner, IntNodeValue nodeValue) {
+            this.identity = identity;
+            this.combiner = combiner;
+            this.nodeValue = nodeValue;
+        }
+
+        @Override
+        public Integer identity() {
+            return identity;
+        }
+
+        @Override
+        public Integer combine(Integer first, Integer second) {
+            return combiner.applyAsInt(first, second);
+        }
+
+        @Override
+        public Integer ofNode(T node, Integer childrenValue) {
+            return nodeValue.of(node, childrenValue);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds {@link TreeNode} hierarchies from flat records, each referencing its parent's id - e.g. rows of a database
+ * table - in time linear to the number of records.
+ * <p>
+ * Unlike adding each node to its parent, building groups the children by parent, checks the hierarchy for circles
+ * once and links it top-down, so each parent validates all its children in one pass and the new nodes' ancestry is
+ * indexed in O(1) each. Nothing is notified while building; the finished tree may be
+ * {@link #buildInto(TreeNode, Stream) published} by a single addition of its roots. Optionally, the nodes are
+ * created and each level is linked {@link #parallel() in parallel}.
+ * <p>
+ * Children of {@link TreeNode.ChildOrder#ORDERED ordered} nodes are linked in the order of their records.
+ *
+ * @param <R> Type of the records.
+ * @param <I> Type of the records' ids.
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class TreeBuilder<R, I, T extends TreeNode<T>> {
+
+    private static final int PARALLEL_LEVEL_SIZE = 1 << 10; // smaller levels are linked sequentially
+
+    private final Function<? super R, ? extends I> id;
+    private final Function<? super R, ? extends I> parentId;
+    private final Function<? super R, ? extends T> factory;
+    private final boolean parallel;
+
+    /**
+     * @param id       of a record - unique among the records of one tree.
+     * @param parentId of a record - or null for a root.
+     * @param factory  creating a record's node - without parent.
+     */
+    public TreeBuilder(Function<? super R, ? extends I> id, Function<? super R, ? extends I> parentId, Function<? super R, ? extends T> factory) {
+        this(id, parentId, factory, false);
+    }
+
+    private TreeBuilder(Function<? super R, ? extends I> id, Function<? super R, ? extends I> parentId, Function<? super R, ? extends T> factory, boolean parallel) {
+        if (id == null) {
+            throw new NullPointerException("Id function may not be null!");
+        } else if (parentId == null) {
+            throw new NullPointerException("Parent id function may not be null!");
+        } else if (factory == null) {
+            throw new NullPointerException("Factory may not be null!");
+        }
+        this.id = id;
+        this.parentId = parentId;
+        this.factory = factory;
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return a builder creating the nodes in parallel and linking large levels of the hierarchy in parallel - so
+     * the factory and the nodes' validators have to be thread-safe.
+     */
+    public TreeBuilder<R, I, T> parallel() {
+        return new TreeBuilder<>(id, parentId, factory, true);
+    }
+
+    /**
+     * @return the roots of the built trees in the order of their records.
+     * @throws IllegalArgumentException if ids are duplicated, parents are missing or the records form a circle.
+     */
+    public List<T> build(Stream<? extends R> records) throws TreeNode.ChildValidator.ChildValidationException {
+        if (records == null) {
+            throw new NullPointerException("Records may not be null!");
+        }
+        final List<Entry<I, T>> entries = (parallel ? records.parallel() : records.sequential())
+                .map(this::entry)
+                .collect(Collectors.toList());
+
+        // group the children by parent
+        final Map<I, Entry<I, T>> entriesById = new HashMap<>(entries.size() * 4 / 3 + 1);
+        for (Entry<I, T> entry : entries) {
+            if (entriesById.putIfAbsent(entry.id, entry) != null) {
+                throw new IllegalArgumentException("Duplicate id '" + entry.id + "'!");
+            }
+        }
+        final List<Entry<I, T>> roots = new ArrayList<>();
+        for (Entry<I, T> entry : entries) {
+            if (entry.parentId == null) {
+                roots.add(entry);
+            } else {
+                final Entry<I, T> parent = entriesById.get(entry.parentId);
+                if (parent == null) {
+                    throw new IllegalArgumentException("Parent '" + entry.parentId + "' of '" + entry.id + "' is missing!");
+                }
+                parent.addChild(entry);
+            }
+        }
+
+        // each node has one parent, so the nodes not reachable from the roots form circles
+        final List<List<Entry<I, T>>> levels = new ArrayList<>();
+        int reachable = 0;
+        for (List<Entry<I, T>> level = roots; !level.isEmpty(); level = childrenOf(level)) {
+            levels.add(level);
+            reachable += level.size();
+        }
+        if (reachable < entries.size()) {
+            throw new IllegalArgumentException("Circle detected: " + (entries.size() - reachable) + " records aren't descendants of any root!");
+        }
+
+        final Queue<Entry<I, T>> linked = new ConcurrentLinkedQueue<>();
+        try {
+            for (List<Entry<I, T>> level : levels) {
+                link(level, linked);
+            }
+        } catch (TreeNode.ChildValidator.ChildValidationException | RuntimeException e) {
+            unlink(linked);
+            throw e;
+        }
+        return roots.stream().map(root -> root.node).collect(Collectors.toList());
+    }
+
+    /**
+     * Builds the trees and adds their roots at once to the parent - notifying its observers once of the whole
+     * hierarchy.
+     *
+     * @return the roots of the built trees in the order of their records.
+     */
+    public List<T> buildInto(T parent, Stream<? extends R> records) throws TreeNode.ChildValidator.ChildValidationException {
+        if (parent == null) {
+            throw new NullPointerException("Parent may not be null!");
+        }
+        final List<T> roots = build(records);
+        parent.addChildren(roots);
+        return roots;
+    }
+
+    private Entry<I, T> entry(R record) {
+        final I recordId = id.apply(record);
+        final T node = factory.apply(record);
+        if (recordId == null) {
+            throw new NullPointerException("Id of record " + record + " is null!");
+        } else if (node == null) {
+            throw new NullPointerException("Node of record " + record + " is null!");
+        } else if (node.getParent().isPresent()) {
+            throw new IllegalArgumentException("Node of record " + record + " has a parent already!");
+        }
+        return new Entry<>(recordId, parentId.apply(record), node);
+    }
+
+    private static <I, T extends TreeNode<T>> List<Entry<I, T>> childrenOf(List<Entry<I, T>> level) {
+        final List<Entry<I, T>> children = new ArrayList<>();
+        for (Entry<I, T> entry : level) {
+            if (entry.children != null) {
+                children.addAll(entry.children);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @param linked receives the entries, whose children were linked.
+     */
+    private void link(List<Entry<I, T>> level, Queue<Entry<I, T>> linked) throws TreeNode.ChildValidator.ChildValidationException {
+        final AtomicReference<TreeNode.ChildValidator.ChildValidationException> failure = new AtomicReference<>();
+        (parallel && level.size() >= PARALLEL_LEVEL_SIZE ? level.parallelStream() : level.stream()).forEach(entry -> {
+            if (entry.children != null && failure.get() == null) {
+                try {
+                    entry.node.linkBuiltChildren(entry.childNodes());
+                    linked.add(entry);
+                } catch (TreeNode.ChildValidator.ChildValidationException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Takes the trees apart again, bottom-up - so nodes created with a parent, like the ones of a {@link TreeStore},
+     * aren't left behind linked.
+     */
+    private static <I, T extends TreeNode<T>> void unlink(Queue<Entry<I, T>> linked) {
+        final List<Entry<I, T>> entries = new ArrayList<>(linked);
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            final Entry<I, T> entry = entries.get(i);
+            entry.node.unlinkBuiltChildren(entry.childNodes());
+        }
+    }
+
+    private static final class Entry<I, T extends TreeNode<T>> {
+
+        private final I id;
+        private final I parentId;
+        private final T node;
+        private List<Entry<I, T>> children = null;
+
+        private Entry(I id, I parentId, T node) {
+            this.id = id;
+            this.parentId = parentId;
+            this.node = node;
+        }
+
+        private List<T> childNodes() {
+            return children.stream().map(child -> child.node).collect(Collectors.toList());
+        }
+
+        private void addChild(Entry<I, T> child) {
+            if (children == null) {
+                children = new ArrayList<>();
+            }
+            children.add(child);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package de.brainbytes.common.util;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Compact binary encoding of {@link TreeNode} subtrees, with the nodes' own data encoded by a {@link PayloadCodec}.
+ * <p>
+ * The nodes are written in pre-order, each as its number of children and its payload's length - both as varints -
+ * followed by the payload. An index of all nodes' offsets and subtree sizes follows the nodes, so a
+ * {@link MappedTree} can open any subtree without decoding the ones before. Writing and reading are iterative, so
+ * the depth of the hierarchy is no limit; the encoding of a tree is limited to 2 GB, which can be mapped at once.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class TreeCodec<T extends TreeNode<T>> {
+
+    static final int MAGIC = 0x54524545; // "TREE"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 2 * Integer.BYTES;
+    static final int TRAILER_LENGTH = 2 * Integer.BYTES; // number of nodes and offset of the index
+
+    private final PayloadCodec<T> payloadCodec;
+
+    public TreeCodec(PayloadCodec<T> payloadCodec) {
+        if (payloadCodec == null) {
+            throw new NullPointerException("PayloadCodec may not be null!");
+        }
+        this.payloadCodec = payloadCodec;
+    }
+
+    /**
+     * Writes the subtree to the stream, which is flushed, but not closed. The subtree may not change meanwhile.
+     */
+    @SuppressWarnings("unchecked")
+    public void write(T root, OutputStream out) throws IOException {
+        if (root == null) {
+            throw new NullPointerException("Root may not be null!");
+        } else if (out == null) {
+            throw new NullPointerException("OutputStream may not be null!");
+        }
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadData = new DataOutputStream(payload);
+        final IntArray offsets = new IntArray();
+        final IntArray subtreeSizes = new IntArray(); // child counts, until all nodes are written
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        long offset = HEADER_LENGTH;
+        final Deque<T> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            final T node = pending.pop();
+            final Object[] children = node.getChildren().toArray();
+            payload.reset();
+            payloadCodec.write(node, payloadData);
+            payloadData.flush();
+
+            offsets.add(checkedOffset(offset));
+            subtreeSizes.add(children.length);
+            offset += writeVarInt(data, children.length);
+            offset += writeVarInt(data, payload.size());
+            payload.writeTo(data);
+            offset += payload.size();
+            for (int i = children.length - 1; i >= 0; i--) {
+                pending.push((T) children[i]);
+            }
+        }
+
+        // backwards, each node's children already know their subtree's size
+        for (int i = subtreeSizes.size - 1; i >= 0; i--) {
+            int size = 1;
+            for (int child = i + 1, count = subtreeSizes.values[i]; count > 0; count--) {
+                size += subtreeSizes.values[child];
+                child += subtreeSizes.values[child];
+            }
+            subtreeSizes.values[i] = size;
+        }
+
+        final int indexOffset = checkedOffset(offset);
+        for (int i = 0; i < offsets.size; i++) {
+            data.writeInt(offsets.values[i]);
+        }
+        for (int i = 0; i < subtreeSizes.size; i++) {
+            data.writeInt(subtreeSizes.values[i]);
+        }
+        checkedOffset(offset + 2L * Integer.BYTES * offsets.size + TRAILER_LENGTH);
+        data.writeInt(offsets.size);
+        data.writeInt(indexOffset);
+        data.flush();
+    }
+
+    private static int checkedOffset(long offset) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Encoded tree exceeds 2 GB!");
+        }
+        return (int) offset;
+    }
+
+    private static int writeVarInt(DataOutput out, int value) throws IOException {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+            bytes++;
+        }
+        out.writeByte(value);
+        return bytes;
+    }
+
+    /**
+     * Maps the file for reading - nodes are decoded only when requested.
+     */
+    public MappedTree<T> open(Path file) throws IOException {
+        return MappedTree.open(file, payloadCodec);
+    }
+
+    /**
+     * Decodes the whole tree from the file.
+     */
+    public T read(Path file) throws IOException {
+        return open(file).getRoot().load();
+    }
+
+    /**
+     * Encodes and decodes a node's own data - not its children, which are handled by the {@link TreeCodec}.
+     */
+    public interface PayloadCodec<T extends TreeNode<T>> {
+
+        void write(T node, DataOutput out) throws IOException;
+
+        /**
+         * @return a new node without parent and children.
+         */
+        T read(DataInput in) throws IOException;
+    }
+
+    private static final class IntArray {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1));
+            }
+            values[size++] = value;
+        }
+    }
+}
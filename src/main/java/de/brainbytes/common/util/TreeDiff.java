@@ -0,0 +1,382 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Structural comparison of {@link TreeNode} hierarchies, whose nodes are identified across trees by a key - unique
+ * within each tree.
+ * <p>
+ * Each subtree has a Merkle-style {@link #hash(TreeNode) hash} over the keys and the hierarchy, including the order
+ * of {@link TreeNode.ChildOrder#ORDERED ordered} children. It is cached as {@link TreeNode#aggregate(TreeNode.SubtreeAggregate)
+ * aggregate}, so a change only discards the hashes along the path to the root, which are recomputed on next use from
+ * the still cached hashes of unchanged subtrees. The {@link #diff(TreeNode, TreeNode) diff} descends only into
+ * subtrees with different hashes, so identical subtrees in place are skipped in O(1), and yields an edit script,
+ * which {@link #apply(TreeNode, List, Function) applied} to a copy of the first tree turns it into the second one.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class TreeDiff<T extends TreeNode<T>> {
+
+    private static final long BASE = 0x9E3779B97F4A7C15L;
+
+    private final Function<? super T, ?> key;
+    private final TreeNode.SubtreeAggregate<T, Digest> digest;
+
+    /**
+     * @param key identifying corresponding nodes in different trees - its {@link Object#hashCode() hash} makes up the
+     *            structural hash, so a node's key must not change while it is part of a compared tree.
+     */
+    public TreeDiff(Function<? super T, ?> key) {
+        if (key == null) {
+            throw new NullPointerException("Key function may not be null!");
+        }
+        this.key = key;
+        this.digest = new TreeNode.SubtreeAggregate<T, Digest>() {
+            @Override
+            public Digest identity() {
+                return Digest.IDENTITY;
+            }
+
+            @Override
+            public Digest combine(Digest first, Digest second) {
+                return new Digest(first.sequence * second.power + second.sequence, first.power * second.power,
+                        first.sum + second.sum);
+            }
+
+            @Override
+            public Digest ofNode(T node, Digest childrenValue) {
+                final long children = node.hasOrderedChildren() ? childrenValue.sequence : childrenValue.sum;
+                final long hash = mix(mix(Objects.hashCode(key.apply(node))) + BASE * children + node.getChildCount());
+                return new Digest(hash, BASE, hash);
+            }
+        };
+    }
+
+    /**
+     * @return the structural hash of the node's subtree - equal for subtrees with equal keys in equal hierarchy.
+     */
+    public long hash(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        return node.aggregate(digest).sequence;
+    }
+
+    /**
+     * Compares the subtrees, which may not change meanwhile, top down - pairing the children of paired nodes by their
+     * keys and skipping pairs with equal hashes. Only the subtrees of unpaired children are searched for nodes moved
+     * elsewhere, so the effort is proportional to the changed parts of the trees.
+     *
+     * @return the edits turning the source's subtree into the target's one: additions and moves top down, so parents
+     * and preceding siblings are in place, followed by the removals of the topmost nodes missing in the target.
+     * @throws IllegalArgumentException if the roots have different keys.
+     */
+    public List<Edit<T>> diff(T source, T target) {
+        if (source == null) {
+            throw new NullPointerException("Source may not be null!");
+        } else if (target == null) {
+            throw new NullPointerException("Target may not be null!");
+        } else if (!Objects.equals(key.apply(source), key.apply(target))) {
+            throw new IllegalArgumentException("Roots have different keys: " + key.apply(source) + " and " + key.apply(target) + "!");
+        }
+        final List<Edit<T>> edits = new ArrayList<>();
+        if (hash(source) == hash(target)) {
+            return edits;
+        }
+
+        // pair nodes in place, collecting the subtrees of unpaired children on both sides
+        final Map<Object, T> sourceRegion = new HashMap<>();
+        final Map<Object, T> targetRegion = new HashMap<>();
+        final List<T> sourceRegionRoots = new ArrayList<>();
+        final Deque<Map.Entry<T, T>> pending = new ArrayDeque<>(); // target node with its source node or null
+        pending.push(new AbstractMap.SimpleImmutableEntry<>(target, source));
+        while (!pending.isEmpty()) {
+            final T targetNode = pending.peek().getKey();
+            final T sourceNode = pending.pop().getValue();
+            final Map<Object, T> sourceChildren = new LinkedHashMap<>();
+            for (T child : sourceNode.getChildren()) {
+                sourceChildren.put(key.apply(child), child);
+            }
+            for (T targetChild : targetNode.getChildren()) {
+                final T sourceChild = sourceChildren.remove(key.apply(targetChild));
+                if (sourceChild == null) {
+                    index(targetChild, targetRegion);
+                } else if (hash(sourceChild) != hash(targetChild)) {
+                    pending.push(new AbstractMap.SimpleImmutableEntry<>(targetChild, sourceChild));
+                }
+            }
+            for (T sourceChild : sourceChildren.values()) {
+                index(sourceChild, sourceRegion);
+                sourceRegionRoots.add(sourceChild);
+            }
+        }
+
+        // add and move the target's children of changed nodes, each after its target predecessor
+        pending.push(new AbstractMap.SimpleImmutableEntry<>(target, source));
+        while (!pending.isEmpty()) {
+            final T targetNode = pending.peek().getKey();
+            final T sourceNode = pending.pop().getValue();
+            final Object parentKey = key.apply(targetNode);
+            final List<T> sourceChildren = sourceNode == null ? Collections.emptyList() : new ArrayList<>(sourceNode.getChildren());
+            final Map<Object, Integer> sourceIndexes = new HashMap<>();
+            for (int i = 0; i < sourceChildren.size(); i++) {
+                sourceIndexes.put(key.apply(sourceChildren.get(i)), i);
+            }
+            final List<T> targetChildren = new ArrayList<>(targetNode.getChildren());
+            final int[] keptIndexes = new int[targetChildren.size()];
+            for (int i = 0; i < keptIndexes.length; i++) {
+                keptIndexes[i] = sourceIndexes.getOrDefault(key.apply(targetChildren.get(i)), -1);
+            }
+            final boolean[] stable = targetNode.hasOrderedChildren() ? increasingSubsequence(keptIndexes) : kept(keptIndexes);
+
+            Object previousKey = null;
+            for (int i = 0; i < targetChildren.size(); i++) {
+                final T child = targetChildren.get(i);
+                final Object childKey = key.apply(child);
+                final T sourceChild;
+                if (keptIndexes[i] >= 0) {
+                    sourceChild = sourceChildren.get(keptIndexes[i]);
+                    if (!stable[i]) {
+                        edits.add(new Edit<>(Edit.Type.MOVE, childKey, parentKey, previousKey, child));
+                    }
+                } else {
+                    sourceChild = sourceRegion.get(childKey);
+                    edits.add(new Edit<>(sourceChild == null ? Edit.Type.ADD : Edit.Type.MOVE, childKey, parentKey, previousKey, child));
+                }
+                if (sourceChild == null || hash(sourceChild) != hash(child)) {
+                    pending.push(new AbstractMap.SimpleImmutableEntry<>(child, sourceChild));
+                }
+                if (targetNode.hasOrderedChildren()) {
+                    previousKey = childKey;
+                }
+            }
+        }
+
+        // remove the topmost nodes missing in the target, after their descendants in the target were moved away
+        for (T regionRoot : sourceRegionRoots) {
+            regionRoot.stream(TreeNode.TraversalOrder.PRE_ORDER).forEach(node -> {
+                final Object nodeKey = key.apply(node);
+                if (!targetRegion.containsKey(nodeKey) && (node == regionRoot
+                        || targetRegion.containsKey(key.apply(node.getParent().get())))) {
+                    edits.add(new Edit<>(Edit.Type.REMOVE, nodeKey, null, null, node));
+                }
+            });
+        }
+        return edits;
+    }
+
+    private void index(T subtreeRoot, Map<Object, T> region) {
+        subtreeRoot.stream(TreeNode.TraversalOrder.PRE_ORDER).forEach(node -> region.put(key.apply(node), node));
+    }
+
+    private static boolean[] kept(int[] keptIndexes) {
+        final boolean[] kept = new boolean[keptIndexes.length];
+        for (int i = 0; i < keptIndexes.length; i++) {
+            kept[i] = keptIndexes[i] >= 0;
+        }
+        return kept;
+    }
+
+    /**
+     * @return a longest increasing subsequence of the non-negative indexes - the kept children, which don't need to
+     * be moved - in O(n log n).
+     */
+    private static boolean[] increasingSubsequence(int[] keptIndexes) {
+        final int[] tails = new int[keptIndexes.length]; // position of the smallest tail per subsequence length
+        final int[] predecessors = new int[keptIndexes.length];
+        int length = 0;
+        for (int i = 0; i < keptIndexes.length; i++) {
+            if (keptIndexes[i] < 0) {
+                continue;
+            }
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (keptIndexes[tails[middle]] < keptIndexes[i]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            predecessors[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        final boolean[] stable = new boolean[keptIndexes.length];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = predecessors[i]) {
+            stable[i] = true;
+        }
+        return stable;
+    }
+
+    /**
+     * Applies the edits of a {@link #diff(TreeNode, TreeNode) diff} to the subtree, which is indexed by key first, as
+     * one {@link TreeNode#batch(TreeNode.HierarchyAction) batch} - so observers are notified of the net changes and
+     * nothing is changed, if an edit fails.
+     *
+     * @param copy creating the node to be added for a node of the diff's target, without children.
+     * @throws IllegalArgumentException if an edit refers to a key, that isn't in the subtree.
+     */
+    public void apply(T root, List<Edit<T>> edits, Function<? super T, ? extends T> copy) throws TreeNode.ChildValidator.ChildValidationException {
+        if (root == null) {
+            throw new NullPointerException("Root may not be null!");
+        } else if (edits == null) {
+            throw new NullPointerException("List of edits may not be null!");
+        } else if (copy == null) {
+            throw new NullPointerException("Copy function may not be null!");
+        }
+        final Map<Object, T> nodes = new HashMap<>();
+        index(root, nodes);
+        TreeNode.batch(() -> {
+            for (Edit<T> edit : edits) {
+                switch (edit.getType()) {
+                    case ADD:
+                        final T added = copy.apply(edit.getNode());
+                        if (added == null) {
+                            throw new NullPointerException("Copy of " + edit.getNode() + " may not be null!");
+                        }
+                        nodes.put(edit.getKey(), added);
+                        insert(nodes, added, edit);
+                        break;
+                    case MOVE:
+                        insert(nodes, requireNode(nodes, edit.getKey()), edit);
+                        break;
+                    case REMOVE:
+                        final T removed = requireNode(nodes, edit.getKey());
+                        if (removed.getParent().isPresent()) {
+                            removed.getParent().get().removeChild(removed);
+                        }
+                        break;
+                }
+            }
+        });
+    }
+
+    private void insert(Map<Object, T> nodes, T node, Edit<T> edit) throws TreeNode.ChildValidator.ChildValidationException {
+        final T parent = requireNode(nodes, edit.getParentKey());
+        if (!parent.hasOrderedChildren()) {
+            parent.addChild(node);
+            return;
+        }
+        if (node.getParent().orElse(null) == parent) {
+            parent.removeChild(node);
+        }
+        final int index = edit.getPreviousSiblingKey() == null ? 0 : parent.indexOf(requireNode(nodes, edit.getPreviousSiblingKey())) + 1;
+        parent.addChild(index, node);
+    }
+
+    private T requireNode(Map<Object, T> nodes, Object nodeKey) {
+        final T node = nodes.get(nodeKey);
+        if (node == null) {
+            throw new IllegalArgumentException("No node with key " + nodeKey + " in the tree!");
+        }
+        return node;
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreading the bits of the value.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Hash of a sequence of children, combined polynomially for ordered children and as sum for unordered ones.
+     */
+    private static final class Digest {
+
+        private static final Digest IDENTITY = new Digest(0, 1, 0);
+
+        private final long sequence;
+        private final long power;
+        private final long sum;
+
+        private Digest(long sequence, long power, long sum) {
+            this.sequence = sequence;
+            this.power = power;
+            this.sum = sum;
+        }
+    }
+
+    /**
+     * A step of an edit script, identifying the nodes by their keys.
+     */
+    public static final class Edit<T extends TreeNode<T>> {
+
+        public enum Type {
+            /**
+             * Adds a copy of the node as child of the parent.
+             */
+            ADD,
+            /**
+             * Moves the node with its subtree to the parent, which may be its current one for a new position.
+             */
+            MOVE,
+            /**
+             * Removes the node with its remaining subtree from its parent.
+             */
+            REMOVE
+        }
+
+        private final Type type;
+        private final Object key;
+        private final Object parentKey;
+        private final Object previousSiblingKey;
+        private final T node;
+
+        private Edit(Type type, Object key, Object parentKey, Object previousSiblingKey, T node) {
+            this.type = type;
+            this.key = key;
+            this.parentKey = parentKey;
+            this.previousSiblingKey = previousSiblingKey;
+            this.node = node;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        /**
+         * @return the key of the new parent or null for removals.
+         */
+        public Object getParentKey() {
+            return parentKey;
+        }
+
+        /**
+         * @return the key of the sibling to be placed after for ordered children - or null to be placed first, for
+         * unordered children and for removals.
+         */
+        public Object getPreviousSiblingKey() {
+            return previousSiblingKey;
+        }
+
+        /**
+         * @return the target's node for additions and moves, the source's node for removals.
+         */
+        public T getNode() {
+            return node;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case REMOVE:
+                    return "REMOVE " + key;
+                default:
+                    return type + " " + key + " to " + parentKey + (previousSiblingKey == null ? "" : " after " + previousSiblingKey);
+            }
+        }
+    }
+}
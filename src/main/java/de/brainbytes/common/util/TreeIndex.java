@@ -0,0 +1,161 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Secondary index from an attribute's value to the nodes having it, for a subtree - so {@link TreeQuery queries}
+ * find selective matches without scanning the subtree.
+ * <p>
+ * The index observes its root and follows additions and removals in the subtree, moves inside it don't change it.
+ * Hierarchy changes don't tell about changed attributes, though - {@link #update(TreeNode) update} a node after
+ * changing its attribute. The index is thread-safe, but queries see it as of the latest notification.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @param <K> Type of the attribute's values.
+ * @author Fabian Krippendorff
+ */
+public final class TreeIndex<T extends TreeNode<T>, K> {
+
+    private final T root;
+    private final Function<? super T, ? extends K> attribute;
+    private final Map<K, Set<T>> nodesByKey = new HashMap<>();
+    private final Map<T, K> keysByNode = new IdentityHashMap<>();
+    private final TreeNode.HierarchyObserver<T> observer;
+
+    private TreeIndex(T root, Function<? super T, ? extends K> attribute) {
+        this.root = root;
+        this.attribute = attribute;
+        this.observer = new IndexingObserver();
+    }
+
+    /**
+     * Indexes the root and its descendants by the attribute and keeps the index current, until it is
+     * {@link #unregister() unregistered}.
+     */
+    public static <T extends TreeNode<T>, K> TreeIndex<T, K> register(T root, Function<? super T, ? extends K> attribute) {
+        if (root == null) {
+            throw new NullPointerException("Root may not be null!");
+        } else if (attribute == null) {
+            throw new NullPointerException("Attribute may not be null!");
+        }
+        final TreeIndex<T, K> index = new TreeIndex<>(root, attribute);
+        synchronized (index) {
+            root.addObserver(index.observer);
+            index.addSubtree(root);
+        }
+        return index;
+    }
+
+    /**
+     * Stops following the hierarchy - the index keeps its state as of now.
+     */
+    public boolean unregister() {
+        return root.removeObserver(observer);
+    }
+
+    public T getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the indexed nodes having the value - a copy, in unspecified order.
+     */
+    public synchronized Set<T> get(K key) {
+        final Set<T> nodes = nodesByKey.get(key);
+        return nodes == null ? Collections.emptySet() : Collections.unmodifiableSet(new LinkedHashSet<>(nodes));
+    }
+
+    /**
+     * @return the number of indexed nodes having the value.
+     */
+    public synchronized int count(K key) {
+        final Set<T> nodes = nodesByKey.get(key);
+        return nodes == null ? 0 : nodes.size();
+    }
+
+    /**
+     * @return the number of indexed nodes.
+     */
+    public synchronized int size() {
+        return keysByNode.size();
+    }
+
+    /**
+     * Re-indexes the node after its attribute changed - nodes outside the index are ignored.
+     */
+    public synchronized void update(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        if (keysByNode.containsKey(node)) {
+            add(node);
+        }
+    }
+
+    /**
+     * @return whether the node and its descendants are indexed.
+     */
+    boolean covers(T node) {
+        return node == root || root.isAncestorOf(node);
+    }
+
+    /**
+     * @return whether the node has the value - as indexed, if it is indexed.
+     */
+    synchronized boolean matches(T node, K key) {
+        if (keysByNode.containsKey(node)) {
+            return Objects.equals(keysByNode.get(node), key);
+        }
+        return Objects.equals(attribute.apply(node), key);
+    }
+
+    private void addSubtree(T node) {
+        node.stream(TreeNode.TraversalOrder.PRE_ORDER).forEach(this::add);
+    }
+
+    private void removeSubtree(T node) {
+        node.stream(TreeNode.TraversalOrder.PRE_ORDER).forEach(this::remove);
+    }
+
+    private void add(T node) {
+        remove(node);
+        final K key = attribute.apply(node);
+        keysByNode.put(node, key);
+        nodesByKey.computeIfAbsent(key, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(node);
+    }
+
+    private void remove(T node) {
+        if (!keysByNode.containsKey(node)) {
+            return;
+        }
+        final K key = keysByNode.remove(node);
+        final Set<T> nodes = nodesByKey.get(key);
+        nodes.remove(node);
+        if (nodes.isEmpty()) {
+            nodesByKey.remove(key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TreeIndex[root=" + root + ", size=" + size() + "]";
+    }
+
+    private final class IndexingObserver implements TreeNode.HierarchyObserver<T> {
+
+        @Override
+        public void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren) {
+            synchronized (TreeIndex.this) {
+                addedChildren.forEach(TreeIndex.this::addSubtree);
+            }
+        }
+
+        @Override
+        public void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren) {
+            synchronized (TreeIndex.this) {
+                removedChildren.forEach(TreeIndex.this::removeSubtree);
+            }
+        }
+    }
+}
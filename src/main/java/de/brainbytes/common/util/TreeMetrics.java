@@ -0,0 +1,271 @@
+package de.brainbytes.common.util;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the changes in a {@link TreeNode} hierarchy, which records them once
+ * {@link TreeNode#setMetrics(TreeMetrics) set} at its root - or at any node for its subtree, or for all hierarchies
+ * of a {@link TreeStore#setMetrics(TreeMetrics) TreeStore}. Nodes without metrics only check a field for null, so
+ * uninstrumented trees pay nothing else.
+ * <p>
+ * Adds and moves are counted at the new parent's metrics, removals at the former parent's. Validations are timed
+ * only for nodes with validators, notifications only if observers are registered - the fan-out is the number of
+ * observer callbacks per notification. Recording is thread-safe and lock-free; the metrics may be
+ * {@link #register(String) published} as MBean.
+ *
+ * @author Fabian Krippendorff
+ */
+public final class TreeMetrics implements TreeMetricsMBean {
+
+    private final LongAdder adds = new LongAdder();
+    private final LongAdder removes = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder rejectedValidations = new LongAdder();
+    private final Histogram validatorLatency = new Histogram();
+    private final Histogram observerDispatchLatency = new Histogram();
+    private final Histogram fanOut = new Histogram();
+
+    private ObjectName registeredName = null;
+
+    void added(int count) {
+        adds.add(count);
+    }
+
+    void removed(int count) {
+        removes.add(count);
+    }
+
+    void moved(int count) {
+        moves.add(count);
+    }
+
+    void validated(long nanos, boolean rejected) {
+        validatorLatency.record(nanos);
+        if (rejected) {
+            rejectedValidations.increment();
+        }
+    }
+
+    void notified(long nanos, int callbacks) {
+        observerDispatchLatency.record(nanos);
+        fanOut.record(callbacks);
+    }
+
+    /**
+     * Registers the metrics at the platform MBeanServer as {@code de.brainbytes.common.util:type=TreeMetrics,name=<treeName>}.
+     *
+     * @throws IllegalStateException if they are registered already.
+     */
+    public synchronized ObjectName register(String treeName) throws JMException {
+        if (treeName == null) {
+            throw new NullPointerException("Name of tree may not be null!");
+        } else if (registeredName != null) {
+            throw new IllegalStateException("Metrics are registered already as " + registeredName + "!");
+        }
+        final ObjectName name = new ObjectName(getClass().getPackage().getName() + ":type=TreeMetrics,name=" + ObjectName.quote(treeName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        registeredName = name;
+        return name;
+    }
+
+    /**
+     * @return false, if the metrics weren't registered.
+     */
+    public synchronized boolean unregister() throws JMException {
+        if (registeredName == null) {
+            return false;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(registeredName)) {
+            server.unregisterMBean(registeredName);
+        }
+        registeredName = null;
+        return true;
+    }
+
+    @Override
+    public long getAdds() {
+        return adds.sum();
+    }
+
+    @Override
+    public long getRemoves() {
+        return removes.sum();
+    }
+
+    @Override
+    public long getMoves() {
+        return moves.sum();
+    }
+
+    @Override
+    public long getRejectedValidations() {
+        return rejectedValidations.sum();
+    }
+
+    @Override
+    public long getValidations() {
+        return validatorLatency.getCount();
+    }
+
+    public Histogram getValidatorLatency() {
+        return validatorLatency;
+    }
+
+    @Override
+    public double getValidatorLatencyMean() {
+        return validatorLatency.getMean();
+    }
+
+    @Override
+    public long getValidatorLatencyP99() {
+        return validatorLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getValidatorLatencyMax() {
+        return validatorLatency.getMax();
+    }
+
+    @Override
+    public long getNotifications() {
+        return observerDispatchLatency.getCount();
+    }
+
+    public Histogram getObserverDispatchLatency() {
+        return observerDispatchLatency;
+    }
+
+    @Override
+    public double getObserverDispatchLatencyMean() {
+        return observerDispatchLatency.getMean();
+    }
+
+    @Override
+    public long getObserverDispatchLatencyP99() {
+        return observerDispatchLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getObserverDispatchLatencyMax() {
+        return observerDispatchLatency.getMax();
+    }
+
+    public Histogram getFanOut() {
+        return fanOut;
+    }
+
+    @Override
+    public double getFanOutMean() {
+        return fanOut.getMean();
+    }
+
+    @Override
+    public long getFanOutP99() {
+        return fanOut.getPercentile(0.99);
+    }
+
+    @Override
+    public long getFanOutMax() {
+        return fanOut.getMax();
+    }
+
+    /**
+     * Resets all counters and histograms - recordings running meanwhile may partly survive.
+     */
+    @Override
+    public void reset() {
+        adds.reset();
+        removes.reset();
+        moves.reset();
+        rejectedValidations.reset();
+        validatorLatency.reset();
+        observerDispatchLatency.reset();
+        fanOut.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "TreeMetrics[adds=" + getAdds() + ", removes=" + getRemoves() + ", moves=" + getMoves()
+                + ", rejectedValidations=" + getRejectedValidations() + ", notifications=" + getNotifications() + "]";
+    }
+
+    /**
+     * Histogram of non-negative values in buckets of powers of two - so percentiles are approximated by the upper
+     * bound of their bucket, i.e. within a factor of two.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = Long.SIZE + 1; // bucket i holds values of i significant bits
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+        }
+
+        void record(long value) {
+            final long recorded = Math.max(0, value);
+            counts.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(recorded));
+            count.increment();
+            sum.add(recorded);
+            max.accumulate(recorded);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return the mean value or 0 without values.
+         */
+        public double getMean() {
+            final long values = count.sum();
+            return values == 0 ? 0 : (double) sum.sum() / values;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile.
+         * @return the upper bound of the bucket, that contains the percentile - or 0 without values.
+         */
+        public long getPercentile(double quantile) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("Quantile " + quantile + " is out of range [0, 1]!");
+            }
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            final long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1, getMax());
+                }
+            }
+            return 0;
+        }
+
+        private void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package de.brainbytes.common.util;
+
+/**
+ * JMX view of {@link TreeMetrics} - latencies are in nanoseconds, percentiles are approximated by powers of two.
+ *
+ * @author Fabian Krippendorff
+ */
+public interface TreeMetricsMBean {
+
+    long getAdds();
+
+    long getRemoves();
+
+    long getMoves();
+
+    long getRejectedValidations();
+
+    long getValidations();
+
+    double getValidatorLatencyMean();
+
+    long getValidatorLatencyP99();
+
+    long getValidatorLatencyMax();
+
+    long getNotifications();
+
+    double getObserverDispatchLatencyMean();
+
+    long getObserverDispatchLatencyP99();
+
+    long getObserverDispatchLatencyMax();
+
+    double getFanOutMean();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+
+    void reset();
+}
@@ -1,9 +1,17 @@
 package de.brainbytes.common.util;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+import java.util.function.BinaryOperator;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @param <T> Type of the concrete TreeNode-Implementation.
@@ -12,46 +20,86 @@ import java.util.stream.Collectors;
 public abstract class TreeNode<T extends TreeNode<T>> {
 
     private T parent = null;
-    private Set<T> children = new HashSet<>();
+    private final ChildStore<T> children;
+    int childSlot = -1; // physical position inside the parent's ordered ChildStore, maintained by the store
 
-    private Set<HierarchyObserver<T>> hierarchyObservers = new CopyOnWriteArraySet<>();
-    private Set<ChildValidator<T>> childValidators = new CopyOnWriteArraySet<>();
-    private Moving isMoving = null;
-    private HierarchyObserver<T> childHierarchyObservationForwarder = new HierarchyObserver<T>() {
-        @Override
-        public void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren) {
+    // index of the children by their keys, if they are keyed - and the key, this node is indexed by at its parent
+    private final Function<? super T, ?> childKey;
+    private Map<Object, T> childrenByKey = null;
+    private Object key = null;
 
-            boolean moveInSubtree = false;
+    // ancestry index: depth and a skew-binary jump pointer (see ancestorAtDepth), maintained on (un-)linking
+    private int depth = 0;
+    private TreeNode<T> jump = this;
 
-            if (addedChildren.size() == 1) {
-                TreeNode<T> addedChild = addedChildren.iterator().next();
-                if (addedChild.isMoving != null && TreeNode.this.subtreeContains(addedChild.isMoving.from)) {
-                    moveInSubtree = true;
-                }
-            }
+    private final Set<HierarchyObserver<T>> hierarchyObservers;
+    private final Set<ChildValidator<T>> childValidators;
+    // created on first registration, as most nodes have neither - null reads as empty
+    private volatile Set<AsyncChildValidator<T>> asyncChildValidators = null;
+    private volatile Set<SubtreeObserver<T>> subtreeObservers = null;
+    // nearest node at or above this one with any observers - or null, so unobserved changes are detected in O(1)
+    private TreeNode<T> observed = null;
+    private int moveScopeDepth = NOT_MOVING; // while moving: depth of the lowest common ancestor of old and new parent
 
-            if (!moveInSubtree) {
-                notifyObservers(o -> o.onChildrenAdded(TreeNode.this, changedNode, addedChildren));
-            }
-        }
+    // cached subtree aggregates and snapshot; if a node has none, neither have its ancestors
+    private Map<SubtreeAggregate<T, ?>, Object> aggregates = null;
+    private TreeSnapshot<T> snapshot = null;
 
-        @Override
-        public void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren) {
+    // metrics set at this node and the ones recorded to - set here or inherited, maintained with the ancestry index
+    private TreeMetrics ownMetrics = null;
+    private TreeMetrics metrics = null;
 
-            boolean moveInSubtree = false;
+    private static final int NOT_MOVING = -1;
+    private static final ThreadLocal<int[]> NOTIFYING = ThreadLocal.withInitial(() -> new int[1]); // nesting depth per thread
 
-            if (removedChildren.size() == 1) {
-                TreeNode<T> addedChild = removedChildren.iterator().next();
-                if (addedChild.isMoving != null && TreeNode.this.subtreeContains(addedChild.isMoving.to)) {
-                    moveInSubtree = true;
-                }
-            }
+    /**
+     * Creates a node with {@link ChildOrder#UNORDERED unordered} children.
+     */
+    protected TreeNode() {
+        this(ChildOrder.UNORDERED);
+    }
 
-            if (!moveInSubtree) {
-                notifyObservers(o -> o.onChildrenRemoved(TreeNode.this, changedNode, removedChildren));
-            }
+    /**
+     * @param childOrder how the children of this node are stored.
+     */
+    protected TreeNode(ChildOrder childOrder) {
+        this(childStore(childOrder), null);
+    }
+
+    /**
+     * @param childKey extracts the keys of this node's children, which have to be unique among them - so children are
+     *                 {@link #getChild(Object) looked up} by key in O(1). Children announce changes of their keys by
+     *                 {@link #keyChanged()}.
+     */
+    protected TreeNode(ChildOrder childOrder, Function<? super T, ?> childKey) {
+        this(childStore(childOrder), childKey(childKey));
+    }
+
+    /**
+     * @param children null for views, which keep the hierarchy elsewhere and override every method accessing it - so
+     *                 they hold neither children nor listeners themselves.
+     */
+    TreeNode(ChildStore<T> children, Function<? super T, ?> childKey) {
+        this.children = children;
+        this.childKey = childKey;
+        final boolean view = children == null;
+        this.hierarchyObservers = view ? null : new CopyOnWriteArraySet<>();
+        this.childValidators = view ? null : new CopyOnWriteArraySet<>();
+    }
+
+    private static <T extends TreeNode<T>> ChildStore<T> childStore(ChildOrder childOrder) {
+        if (childOrder == null) {
+            throw new NullPointerException("ChildOrder may not be null!");
         }
-    };
+        return ChildStore.create(childOrder);
+    }
+
+    private static <K> K childKey(K childKey) {
+        if (childKey == null) {
+            throw new NullPointerException("Key extractor may not be null!");
+        }
+        return childKey;
+    }
 
     private boolean subtreeContains(T node) {
 
@@ -59,163 +107,1302 @@ public abstract class TreeNode<T extends TreeNode<T>> {
             throw new NullPointerException("Node to check is null!");
         }
 
-        TreeNode<T> traverseNode = node;
+        return this == node || isAncestorOf(node);
+    }
 
-        while (traverseNode != null) {
-            if (this == traverseNode) {
-                return true;
+    /**
+     * @return true, if this node is a (transitive) parent of the given node - answered in O(log depth).
+     */
+    public boolean isAncestorOf(T node) {
+        return node != null && node(node).depth > this.depth && node(node).ancestorAtDepth(this.depth) == this;
+    }
+
+    /**
+     * @return the number of ancestors, i.e. 0 for a root.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return this node's ancestor at the given depth - or this node itself for its own depth - in O(log depth).
+     * @throws IllegalArgumentException if the depth is negative or greater than this node's depth.
+     */
+    public T getAncestorAtDepth(int depth) {
+        if (depth < 0 || depth > this.depth) {
+            throw new IllegalArgumentException("Depth " + depth + " is out of range [0, " + this.depth + "]!");
+        }
+        return ancestorAtDepth(depth).self();
+    }
+
+    /**
+     * @return the deepest node, that is an ancestor of both nodes or one of them - or empty for nodes of different
+     * trees - in O(log depth).
+     */
+    @SuppressWarnings("unchecked")
+    public Optional<T> getLowestCommonAncestor(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        return Optional.ofNullable((T) lowestCommonAncestor(this, node));
+    }
+
+    /**
+     * @return the number of edges on the path between both nodes or -1 for nodes of different trees - in
+     * O(log depth).
+     */
+    public int getDistance(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        final TreeNode<?> commonAncestor = lowestCommonAncestor(this, node);
+        return commonAncestor == null ? -1 : depth + node(node).depth - 2 * commonAncestor.depth;
+    }
+
+    /**
+     * @return the nodes on the path from this node up to the lowest common ancestor and down to the given node, both
+     * ends included - or an empty list for nodes of different trees.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> getPathTo(T node) {
+        if (node == null) {
+            throw new NullPointerException("Node may not be null!");
+        }
+        final TreeNode<?> commonAncestor = lowestCommonAncestor(this, node);
+        if (commonAncestor == null) {
+            return Collections.emptyList();
+        }
+        final T[] path = (T[]) new TreeNode<?>[depth + node(node).depth - 2 * commonAncestor.depth + 1];
+        int up = 0;
+        for (TreeNode<T> ancestor = this; ancestor != commonAncestor; ancestor = ancestor.parent) {
+            path[up++] = ancestor.self();
+        }
+        int down = path.length - 1;
+        for (TreeNode<T> ancestor = node; ancestor != commonAncestor; ancestor = ancestor.parent) {
+            path[down--] = ancestor.self();
+        }
+        path[up] = (T) commonAncestor;
+        return Collections.unmodifiableList(Arrays.asList(path));
+    }
+
+    /**
+     * @return the lowest common ancestor (or self) of both nodes or null for nodes of different trees - in O(log depth).
+     */
+    private static TreeNode<?> lowestCommonAncestor(TreeNode<?> a, TreeNode<?> b) {
+        TreeNode<?> first = a.depth > b.depth ? a.ancestorAtDepth(b.depth) : a;
+        TreeNode<?> second = b.depth > a.depth ? b.ancestorAtDepth(a.depth) : b;
+        while (first != second) {
+            if (first.parent == null) {
+                return null;
+            } else if (first.jump != second.jump) { // jumps on equal depths reach equal depths
+                first = first.jump;
+                second = second.jump;
+            } else {
+                first = first.parent;
+                second = second.parent;
             }
-            traverseNode = traverseNode.getParent().orElse(null);
         }
+        return first;
+    }
 
-        return false;
+    /**
+     * Climbs along the jump pointers, each of which skips a (skew-binary) power of two levels, so the ancestor is
+     * reached in O(log depth) steps.
+     */
+    private TreeNode<T> ancestorAtDepth(int targetDepth) {
+        TreeNode<T> node = this;
+        while (node.depth > targetDepth) {
+            node = node.jump.depth < targetDepth ? node.parent : node.jump;
+        }
+        return node;
+    }
+
+    /**
+     * Recomputes depth and jump pointer for this node and - top down - its subtree. Each node's pointer only depends
+     * on its parent's, so linking a leaf is O(1) and relinking a subtree is linear in its size.
+     */
+    void indexAncestry() {
+        if (children.size() == 0) {
+            indexOwnAncestry(); // leaves are (re-)linked most, so without a stack
+            return;
+        }
+        final Deque<TreeNode<T>> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            final TreeNode<T> node = pending.pop();
+            node.indexOwnAncestry();
+            for (T child : node.children.view()) {
+                pending.push(child);
+            }
+        }
+    }
+
+    private void indexOwnAncestry() {
+        metrics = ownMetrics != null || parent == null ? ownMetrics : node(parent).metrics;
+        observed = hasObservers() ? this : parent == null ? null : node(parent).observed;
+        if (parent == null) {
+            depth = 0;
+            jump = this;
+        } else {
+            final TreeNode<T> parentJump = node(parent).jump;
+            depth = node(parent).depth + 1;
+            jump = node(parent).depth - parentJump.depth == parentJump.depth - parentJump.jump.depth
+                    ? parentJump.jump : parent;
+        }
     }
 
     public Optional<T> getParent() {
         return Optional.ofNullable(parent);
     }
 
+    /**
+     * Records the changes of this node's subtree to the metrics - unless a descendant has its own - or stops recording
+     * them for null, so they are recorded to the ancestors' metrics again, if any. See {@link TreeMetrics}.
+     */
+    public void setMetrics(TreeMetrics metrics) {
+        this.ownMetrics = metrics;
+        indexAncestry();
+    }
+
+    /**
+     * @return the metrics recorded to for this node - its own or the nearest ancestor's.
+     */
+    public Optional<TreeMetrics> getMetrics() {
+        return Optional.ofNullable(metrics);
+    }
+
+    // unguarded reads for subclasses, that take care of concurrency themselves
+    T parentNode() {
+        return parent;
+    }
+
+    boolean isLeaf() {
+        return children.size() == 0;
+    }
+
+    Collection<T> childNodes() {
+        return children.view();
+    }
+
     public void setParent(final T newParent) throws ChildValidator.ChildValidationException  {
         if (newParent == this) {
             throw new IllegalArgumentException("TreeNode " + this + " cannot be parent to itself!");
-        } else if (this.parent != newParent && isMoving == null) {
+        } else if (this.parent != newParent) {
+            if (newParent != null) {
+                newParent.addChild(self());
+            } else {
+                this.parent.removeChild(self());
+            }
+        }
+    }
 
-            if (this.parent != null && newParent != null) {
-                this.isMoving = new Moving(this.parent, newParent);
+    /**
+     * @return unmodifiable live view of the children; for {@link ChildOrder#ORDERED ordered} children this is a
+     * {@link List} with constant-time positional access.
+     */
+    public Collection<T> getChildren() {
+        return children.view();
+    }
+
+    public int getChildCount() {
+        return children.size();
+    }
+
+    public boolean hasOrderedChildren() {
+        return children.isOrdered();
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the children are unordered.
+     */
+    public T getChildAt(int index) {
+        requireOrderedChildren();
+        return children.get(index);
+    }
+
+    /**
+     * @return the child's position or -1, if it is no child of this node.
+     * @throws UnsupportedOperationException if the children are unordered.
+     */
+    public int indexOf(T child) {
+        requireOrderedChildren();
+        return child != null && node(child).parent == this ? children.indexOf(child) : -1;
+    }
+
+    public boolean hasKeyedChildren() {
+        return childKey != null;
+    }
+
+    /**
+     * @return the child with the given key.
+     * @throws UnsupportedOperationException if the children aren't keyed.
+     */
+    public Optional<T> getChild(Object key) {
+        requireKeyedChildren();
+        return Optional.ofNullable(childrenByKey == null ? null : childrenByKey.get(key));
+    }
+
+    /**
+     * @return the descendant reached by looking up the keys one after another, starting at this node - in O(depth).
+     * @throws UnsupportedOperationException if the children of a node on the path aren't keyed.
+     */
+    public Optional<T> resolve(Iterable<?> keys) {
+        if (keys == null) {
+            throw new NullPointerException("Keys may not be null!");
+        }
+        T node = self();
+        for (Object key : keys) {
+            final Optional<T> child = node.getChild(key);
+            if (!child.isPresent()) {
+                return child;
             }
+            node = child.get();
+        }
+        return Optional.of(node);
+    }
 
-            getParent().ifPresent(p -> ((TreeNode) p).removeChild(this));
+    /**
+     * Resolves a path like {@code "region/site/rack/host"} by its segments as keys - empty segments, like the one
+     * before a leading '/', are skipped.
+     *
+     * @see #resolve(Iterable)
+     */
+    public Optional<T> resolve(String path) {
+        if (path == null) {
+            throw new NullPointerException("Path may not be null!");
+        }
+        final List<String> keys = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                keys.add(segment);
+            }
+        }
+        return resolve(keys);
+    }
+
+    /**
+     * Announces, that this node's key changed, so its parent re-indexes it.
+     *
+     * @throws IllegalArgumentException if a sibling has the new key - the node is still indexed by its former key.
+     */
+    protected void keyChanged() {
+        if (parent != null) {
+            node(parent).reindexChild(self());
+        }
+    }
 
-            this.parent = newParent;
+    void reindexChild(T child) {
+        if (childKey != null) {
+            final Object newKey = keyOf(child);
+            if (!newKey.equals(node(child).key)) {
+                checkChildKeys(Collections.singleton(child));
+                childrenByKey.remove(node(child).key);
+                childrenByKey.put(newKey, child);
+                node(child).key = newKey;
+            }
+        }
+    }
 
-            if(getParent().isPresent())
-                ((TreeNode)getParent().get()).addChild(this);
+    private Object keyOf(T child) {
+        final Object key = childKey.apply(child);
+        if (key == null) {
+            throw new NullPointerException("Key of child " + child + " may not be null!");
+        }
+        return key;
+    }
 
-            notifyObservers(o -> o.onParentChanged(this, getParent()));
+    /**
+     * @throws IllegalArgumentException if the children's keys collide with each other or with other children's.
+     */
+    private void checkChildKeys(Collection<T> newChildren) {
+        if (childKey != null) {
+            final Set<Object> keys = new HashSet<>();
+            for (T child : newChildren) {
+                final Object key = keyOf(child);
+                final T sibling = childrenByKey == null ? null : childrenByKey.get(key);
+                if ((sibling != null && sibling != child) || !keys.add(key)) {
+                    throw new IllegalArgumentException("Duplicate key '" + key + "' among children of " + this + "!");
+                }
+            }
+        }
+    }
 
-            this.isMoving = null; // clean up
+    private void indexChild(T child) {
+        if (childKey != null) {
+            if (childrenByKey == null) {
+                childrenByKey = new HashMap<>();
+            }
+            node(child).key = keyOf(child);
+            childrenByKey.put(node(child).key, child);
         }
     }
 
-    public Collection<T> getChildren() {
-        return Collections.unmodifiableCollection(children);
+    private void unindexChild(T child) {
+        if (childKey != null) {
+            childrenByKey.remove(node(child).key);
+            node(child).key = null;
+        }
     }
 
     public boolean addChild(T child) throws ChildValidator.ChildValidationException {
+        return attachChild(ChildStore.APPEND, child);
+    }
+
+    /**
+     * Inserts the child at the given position, shifting subsequent children.
+     *
+     * @throws UnsupportedOperationException if the children are unordered.
+     */
+    public boolean addChild(int index, T child) throws ChildValidator.ChildValidationException {
+        requireOrderedChildren();
+        return attachChild(index, child);
+    }
+
+    private boolean attachChild(int index, T child) throws ChildValidator.ChildValidationException {
         if (child == null) {
             throw new NullPointerException("Added child may not be null!");
-        } else if(((TreeNode) child).subtreeContains(this)){
+        } else if (node(child).parent == this) {
+            return false;
+        } else if (node(child).subtreeContains(self())) {
             throw new IllegalArgumentException("Circle detected: Child is already contained in Tree above designated Parent!");
-        }else {
-            for (ChildValidator<T> validator : this.childValidators) {
-                validator.validateChild((T) this, child);
-            }
+        }
+        checkPositionIndex(index);
+        if (childKey != null) {
+            checkChildKeys(Collections.singleton(child));
+        }
+        if (hasChildValidators()) {
+            validateChildren(Collections.singleton(child));
         }
 
-        boolean added = this.children.add(child);
-        if (added) {
-            ((TreeNode) child).setParent(this);
-            child.addObserver(this.childHierarchyObservationForwarder);
+        final HierarchyBatch batch = HierarchyBatch.current();
+        final T oldParent = node(child).parent;
+        // relink completely before notifying, so observers at both ends see a consistent hierarchy
+        final int oldIndex = oldParent != null ? node(oldParent).unlinkChild(child, batch) : -1;
+        final int position = linkChild(index, child, batch);
+        node(child).indexAncestry();
+        if (metrics != null) {
+            if (oldParent == null) {
+                metrics.added(1);
+            } else {
+                metrics.moved(1);
+            }
+        }
 
-            notifyObservers(o -> o.onChildrenAdded(this, this, Collections.singleton(child)));
+        if (batch == null) {
+            if (oldParent != null) {
+                node(child).beginMove(oldParent, self());
+            }
+            try {
+                if (oldParent != null) {
+                    node(oldParent).fireChildRemoved(child, oldIndex);
+                }
+                fireChildAdded(child, position);
+            } finally {
+                node(child).endMove();
+            }
+            node(child).fireParentChanged();
         }
-        return added;
+
+        return true;
     }
 
     public boolean addChildren(final Collection<? extends T> children) throws ChildValidator.ChildValidationException {
+        return attachChildren(ChildStore.APPEND, children);
+    }
+
+    /**
+     * Inserts the children at the given position in the collection's iteration order, shifting subsequent children.
+     *
+     * @throws UnsupportedOperationException if the children are unordered.
+     */
+    public boolean addChildren(int index, final Collection<? extends T> children) throws ChildValidator.ChildValidationException {
+        requireOrderedChildren();
+        return attachChildren(index, children);
+    }
+
+    private boolean attachChildren(int index, final Collection<? extends T> children) throws ChildValidator.ChildValidationException {
         // null-check for collection and contained elements
         if (children == null) {
             throw new NullPointerException("Collection of DataSources to be added may not be null!");
-        } else {
-            for (T child : children) {
-                if (child == null) {
-                    throw new NullPointerException("Collection of DataSources to be added may not contain null-elements!");
-                } else {
-                    for (ChildValidator<T> validator : this.childValidators) {
-                        validator.validateChild((T) this, child);
-                    }
-                }
+        }
+        for (T child : children) {
+            if (child == null) {
+                throw new NullPointerException("Collection of DataSources to be added may not contain null-elements!");
             }
         }
 
         // add only children, that aren't already contained
-        final Set<? extends T> filteredChildren = children.stream().filter(c -> !this.children.contains(c)).collect(Collectors.toSet());
+        final Set<T> filteredChildren = new LinkedHashSet<>();
+        for (T child : children) {
+            if (node(child).parent != this) {
+                filteredChildren.add(child);
+            }
+        }
 
-        // add new children
-        boolean added = this.children.addAll(filteredChildren);
+        // validate everything before changing anything
+        for (T child : filteredChildren) {
+            if (node(child).subtreeContains(self())) {
+                throw new IllegalArgumentException("Circle detected: Child is already contained in Tree above designated Parent!");
+            }
+        }
+        checkPositionIndex(index);
+        if (filteredChildren.isEmpty()) {
+            return false;
+        }
+        checkChildKeys(filteredChildren);
+        validateChildren(Collections.unmodifiableSet(filteredChildren));
 
-        if (added) {
-            filteredChildren.forEach(child -> {
-                try {
-                    ((TreeNode) child).setParent(this);
-                } catch (ChildValidator.ChildValidationException e) {
-                    throw new IllegalStateException("Validator had approved before, but now: " + e);
+        // relink completely before notifying, so observers at both ends see a consistent hierarchy
+        final HierarchyBatch batch = HierarchyBatch.current();
+        final List<T> oldParents = new ArrayList<>(filteredChildren.size());
+        final int[] oldIndexes = new int[filteredChildren.size()];
+        int i = 0;
+        for (T child : filteredChildren) {
+            final T oldParent = node(child).parent;
+            oldParents.add(oldParent);
+            oldIndexes[i++] = oldParent != null ? node(oldParent).unlinkChild(child, batch) : -1;
+        }
+
+        final int position = linkChildren(index, filteredChildren, batch);
+        if (metrics != null) {
+            int moved = 0;
+            for (T oldParent : oldParents) {
+                moved += oldParent != null ? 1 : 0;
+            }
+            metrics.added(filteredChildren.size() - moved);
+            metrics.moved(moved);
+        }
+
+        if (batch == null) {
+            i = 0;
+            for (T child : filteredChildren) {
+                final T oldParent = oldParents.get(i);
+                if (oldParent != null) {
+                    node(oldParent).fireChildRemoved(child, oldIndexes[i]);
                 }
-                ((TreeNode) child).addObserver(this.childHierarchyObservationForwarder);
-            });
-            notifyObservers(o -> o.onChildrenAdded(this, this, Collections.unmodifiableSet(new HashSet<>(filteredChildren))));
+                i++;
+            }
+            if (isObserved(HierarchyEvent.Type.CHILDREN_ADDED)) {
+                fireChildrenAdded(Collections.unmodifiableSet(filteredChildren), indexes(position, filteredChildren.size()));
+            }
+
+            for (T child : filteredChildren) {
+                node(child).fireParentChanged();
+            }
         }
 
-        return added;
+        return true;
     }
 
-    public boolean removeChild(T child) {
-        boolean removed = children.remove(child);
-        if (removed) {
-            try {
-                child.setParent(null);
-            } catch (ChildValidator.ChildValidationException e) {
-                throw new IllegalStateException("ChildValidation should not run on setting parent null.");
+    /**
+     * Moves the given children of this node to the end of the new parent's children at once: with one check for
+     * circles, validating all before moving any, relinking in linear time and notifying one removal at this node and
+     * one addition at the new parent. Nodes, that aren't children of this node, are ignored.
+     *
+     * @return true, if any child was moved.
+     */
+    public boolean moveChildren(final Collection<? extends T> children, final T newParent) throws ChildValidator.ChildValidationException {
+        if (children == null) {
+            throw new NullPointerException("Collection of children to be moved may not be null!");
+        } else if (newParent == null) {
+            throw new NullPointerException("New parent may not be null!");
+        } else if (newParent == this) {
+            return false;
+        }
+
+        final List<T> movedChildren = new ArrayList<>();
+        for (T child : new LinkedHashSet<>(children)) {
+            if (child != null && node(child).parent == this) {
+                movedChildren.add(child);
+            }
+        }
+        if (movedChildren.isEmpty()) {
+            return false;
+        }
+        if (this.children.isOrdered()) {
+            movedChildren.sort(Comparator.comparingInt(this.children::indexOf));
+        }
+
+        // all children share this parent, so only the one on the path to the new parent can be its ancestor
+        if (isAncestorOf(newParent) && movedChildren.contains(node(newParent).ancestorAtDepth(depth + 1))) {
+            throw new IllegalArgumentException("Circle detected: Child is already contained in Tree above designated Parent!");
+        }
+        node(newParent).checkChildKeys(movedChildren);
+        node(newParent).validateChildren(Collections.unmodifiableList(movedChildren));
+
+        final HierarchyBatch batch = HierarchyBatch.current();
+        int[] indexes = null;
+        if (this.children.isOrdered()) {
+            indexes = new int[movedChildren.size()];
+            for (int i = movedChildren.size() - 1; i >= 0; i--) { // backwards keeps the gap moving in one direction
+                indexes[i] = unlinkChild(movedChildren.get(i), batch);
+            }
+        } else {
+            for (T child : movedChildren) {
+                unlinkChild(child, batch);
+            }
+        }
+        final int position = node(newParent).linkChildren(ChildStore.APPEND, movedChildren, batch);
+        if (node(newParent).metrics != null) {
+            node(newParent).metrics.moved(movedChildren.size());
+        }
+
+        if (batch == null) {
+            if (isObserved(HierarchyEvent.Type.CHILDREN_REMOVED) || node(newParent).isObserved(HierarchyEvent.Type.CHILDREN_ADDED)) {
+                final Set<T> moved = Collections.unmodifiableSet(new LinkedHashSet<>(movedChildren));
+                final TreeNode<?> commonAncestor = lowestCommonAncestor(this, newParent);
+                for (T child : movedChildren) {
+                    node(child).moveScopeDepth = commonAncestor == null ? NOT_MOVING : commonAncestor.depth;
+                }
+                try {
+                    fireChildrenRemoved(moved, indexes);
+                    node(newParent).fireChildrenAdded(moved, indexes(position, moved.size()));
+                } finally {
+                    movedChildren.forEach(child -> node(child).endMove());
+                }
             }
-            child.removeObserver(this.childHierarchyObservationForwarder);
-            notifyObservers(o -> o.onChildrenRemoved(this, this, Collections.singleton(child)));
+            for (T child : movedChildren) {
+                node(child).fireParentChanged();
+            }
+        }
+        return true;
+    }
+
+    public boolean removeChild(T child) {
+        if (child == null || node(child).parent != this) {
+            return false;
+        }
+        final HierarchyBatch batch = HierarchyBatch.current();
+        final int index = unlinkChild(child, batch);
+        node(child).indexAncestry();
+        if (metrics != null) {
+            metrics.removed(1);
+        }
+        if (batch == null) {
+            fireChildRemoved(child, index);
+            node(child).fireParentChanged();
         }
-        return removed;
+        return true;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the children are unordered.
+     */
+    public T removeChildAt(int index) {
+        T child = getChildAt(index);
+        removeChild(child);
+        return child;
     }
 
     public boolean removeChildren(final Collection<? extends T> children) {
 
         // remove only elements that were contained.
-        final Set<? extends T> filteredChildren = children.stream().filter(c -> this.children.contains(c)).collect(Collectors.toSet());
+        final Set<T> filteredChildren = new LinkedHashSet<>();
+        for (T child : children) {
+            if (child != null && node(child).parent == this) {
+                filteredChildren.add(child);
+            }
+        }
 
-        boolean removed = this.children.removeAll(filteredChildren);
+        if (filteredChildren.isEmpty()) {
+            return false;
+        }
 
-        if (removed) {
-            filteredChildren.forEach(child -> {
-                try {
-                    child.setParent(null);
-                } catch (ChildValidator.ChildValidationException e) {
-                    throw new IllegalStateException("ChildValidation should not run on setting parent null.");
-                }
-                child.removeObserver(this.childHierarchyObservationForwarder);
-            });
-            notifyObservers(o -> o.onChildrenRemoved(this, this, Collections.unmodifiableSet(new HashSet<>(filteredChildren))));
+        final HierarchyBatch batch = HierarchyBatch.current();
+        Collection<T> removedChildren = filteredChildren;
+        int[] indexes = null;
+        if (this.children.isOrdered()) {
+            final List<T> ordered = new ArrayList<>(filteredChildren);
+            ordered.sort(Comparator.comparingInt(this.children::indexOf));
+            indexes = new int[ordered.size()];
+            for (int i = ordered.size() - 1; i >= 0; i--) { // backwards keeps the gap moving in one direction
+                indexes[i] = unlinkChild(ordered.get(i), batch);
+            }
+            removedChildren = ordered;
+        } else {
+            for (T child : filteredChildren) {
+                unlinkChild(child, batch);
+            }
         }
-        return removed;
+        removedChildren.forEach(child -> node(child).indexAncestry());
+        if (metrics != null) {
+            metrics.removed(removedChildren.size());
+        }
+
+        if (batch == null) {
+            if (isObserved(HierarchyEvent.Type.CHILDREN_REMOVED)) {
+                // unordered children are notified in the set they were filtered into, ordered ones in their order
+                fireChildrenRemoved(Collections.unmodifiableSet(removedChildren == filteredChildren
+                        ? filteredChildren : new LinkedHashSet<>(removedChildren)), indexes);
+            }
+            for (T child : removedChildren) {
+                node(child).fireParentChanged();
+            }
+        }
+        return true;
     }
 
     synchronized public void clearChildren() {
-        removeChildren(children);
+        removeChildren(children.view());
 
-        if (!children.isEmpty()) {
+        if (children.size() != 0) {
             throw new IllegalStateException("TreeNode has still Children after clearing!");
         }
     }
 
+    /**
+     * Runs the action as one transaction on the hierarchy: all notifications for changes made by the current thread
+     * are deferred until the action completes and then delivered as one consolidated delta per changed node - net
+     * removed children, net added children and one {@code onParentChanged} per child, that ended up at another
+     * parent. Children added and removed again are not notified at all, children moved within an observed subtree
+     * are not forwarded beyond it.
+     * <p>
+     * If the action fails, all of its changes are rolled back without any notification and the exception is
+     * rethrown. Nested batches join the outer one, rolling back only their own changes on failure.
+     */
+    public static void batch(HierarchyAction action) throws ChildValidator.ChildValidationException {
+        if (action == null) {
+            throw new NullPointerException("Action may not be null!");
+        }
+        HierarchyBatch.run(action);
+    }
+
+    void fireChildrenAdded(Set<T> addedChildren, int[] indexes) {
+        dispatchChildrenChange(HierarchyEvent.Type.CHILDREN_ADDED, addedChildren, indexes);
+    }
+
+    void fireChildrenRemoved(Set<T> removedChildren, int[] indexes) {
+        dispatchChildrenChange(HierarchyEvent.Type.CHILDREN_REMOVED, removedChildren, indexes);
+    }
+
+    // single children are wrapped only if observed, so unobserved changes of single children don't allocate
+    private void fireChildAdded(T child, int index) {
+        if (isObserved(HierarchyEvent.Type.CHILDREN_ADDED)) {
+            fireChildrenAdded(Collections.singleton(child), indexes(index, 1));
+        }
+    }
+
+    private void fireChildRemoved(T child, int index) {
+        if (isObserved(HierarchyEvent.Type.CHILDREN_REMOVED)) {
+            fireChildrenRemoved(Collections.singleton(child), indexes(index, 1));
+        }
+    }
+
+    /**
+     * @return whether any observer at this node or above would be notified of this node's children changing.
+     */
+    boolean isChildChangeObserved() {
+        return isObserved(HierarchyEvent.Type.CHILDREN_REMOVED) || isObserved(HierarchyEvent.Type.CHILDREN_ADDED);
+    }
+
+    /**
+     * @return whether any observer at this node or above would be notified of the type of change of this node - as
+     * far as their subscriptions tell without the changed children. Only observed nodes are visited, so it's O(1)
+     * without any.
+     */
+    private boolean isObserved(HierarchyEvent.Type type) {
+        for (TreeNode<T> node = observed; node != null; node = node.observedAbove()) {
+            if (node.hasSubtreeObservers()) {
+                return true;
+            }
+            if ((node == this || type != HierarchyEvent.Type.PARENT_CHANGED) && notifiesObservers(node, type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean notifiesObservers(TreeNode<T> node, HierarchyEvent.Type type) {
+        if (node.hierarchyObservers.isEmpty()) {
+            return false;
+        }
+        for (HierarchyObserver<T> observer : node.hierarchyObservers) {
+            if (subscribed(observer, node, type) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the observer to notify of the type of change of this node, if it is subscribed to it at the node it is
+     * registered at - otherwise null.
+     */
+    @SuppressWarnings("unchecked")
+    private HierarchyObserver<T> subscribed(HierarchyObserver<T> observer, TreeNode<T> node, HierarchyEvent.Type type) {
+        if (observer instanceof HierarchySubscription.Subscribed) {
+            final HierarchySubscription.Subscribed<T> subscribed = (HierarchySubscription.Subscribed<T>) observer;
+            return subscribed.accepts(type, depth - node.depth, self()) ? subscribed.getObserver() : null;
+        }
+        return observer;
+    }
+
+    /**
+     * @return the nearest observed ancestor - or null.
+     */
+    private TreeNode<T> observedAbove() {
+        return parent == null ? null : node(parent).observed;
+    }
+
+    /**
+     * @return whether observers are being notified of a change on the current thread - so the change may not have
+     * reached all of them yet.
+     */
+    static boolean isNotifying() {
+        return NOTIFYING.get()[0] > 0;
+    }
+
+    /**
+     * Counts a notification in progress on the current thread, until it is {@link #endNotifying() ended}.
+     */
+    static void beginNotifying() {
+        NOTIFYING.get()[0]++;
+    }
+
+    static void endNotifying() {
+        NOTIFYING.get()[0]--;
+    }
+
+    private boolean hasObservers() {
+        return !hierarchyObservers.isEmpty() || hasSubtreeObservers();
+    }
+
+    private boolean hasSubtreeObservers() {
+        final Set<SubtreeObserver<T>> subtreeObservers = this.subtreeObservers;
+        return subtreeObservers != null && !subtreeObservers.isEmpty();
+    }
+
+    /**
+     * Delivers the change in one pass up the observed ancestors - to this node's observers and, as forwarded change,
+     * to the observers of all ancestors. Children moving inside an ancestor's subtree are neither added to nor removed from
+     * that subtree, so they aren't forwarded to it.
+     */
+    private void dispatchChildrenChange(HierarchyEvent.Type type, Set<T> children, int[] indexes) {
+        final boolean added = type == HierarchyEvent.Type.CHILDREN_ADDED;
+        final int scopeDepth = moveScopeDepth(children);
+        final long start = metrics != null ? System.nanoTime() : 0;
+        beginNotifying();
+        try {
+            int callbacks = 0;
+            HierarchyEvent<T> event = null;
+
+            for (TreeNode<T> node = observed; node != null; node = node.observedAbove()) {
+                if (notifiesObservers(node, type)) {
+                    Set<T> forwarded = children;
+                    int[] forwardedIndexes = indexes;
+                    if (node != this && node.depth <= scopeDepth) {
+                        forwardedIndexes = indexes == null ? null : new int[indexes.length];
+                        forwarded = childrenOutsideMoves(node.depth, children, indexes, forwardedIndexes);
+                        forwardedIndexes = indexes == null ? null : Arrays.copyOf(forwardedIndexes, forwarded.size());
+                    }
+                    if (!forwarded.isEmpty()) {
+                        for (HierarchyObserver<T> registered : node.hierarchyObservers) {
+                            final HierarchyObserver<T> observer = subscribed(registered, node, type);
+                            if (observer == null) {
+                                continue;
+                            }
+                            callbacks++;
+                            if (added) {
+                                observer.onChildrenAdded(node.self(), self(), forwarded, forwardedIndexes);
+                            } else {
+                                observer.onChildrenRemoved(node.self(), self(), forwarded, forwardedIndexes);
+                            }
+                        }
+                    }
+                }
+                final Set<SubtreeObserver<T>> subtreeObservers = node.subtreeObservers;
+                if (subtreeObservers != null && !subtreeObservers.isEmpty()) {
+                    if (event == null) {
+                        event = new HierarchyEvent<>(type, self(), children, indexes, null, getPathFromRoot());
+                    }
+                    callbacks += subtreeObservers.size();
+                    for (SubtreeObserver<T> observer : subtreeObservers) {
+                        observer.onSubtreeChanged(node.self(), event);
+                    }
+                }
+            }
+            if (metrics != null) {
+                metrics.notified(System.nanoTime() - start, callbacks);
+            }
+        } finally {
+            endNotifying();
+        }
+    }
+
+    /**
+     * @return the deepest move scope of the children or {@link #NOT_MOVING}.
+     */
+    private static <T extends TreeNode<T>> int moveScopeDepth(Set<T> children) {
+        int scopeDepth = NOT_MOVING;
+        for (T child : children) {
+            scopeDepth = Math.max(scopeDepth, node(child).moveScopeDepth);
+        }
+        return scopeDepth;
+    }
+
+    private static <T extends TreeNode<T>> Set<T> childrenOutsideMoves(int depth, Set<T> children, int[] indexes, int[] remainingIndexes) {
+        final Set<T> remaining = new LinkedHashSet<>();
+        int i = 0;
+        for (T child : children) {
+            if (node(child).moveScopeDepth < depth) {
+                if (indexes != null) {
+                    remainingIndexes[remaining.size()] = indexes[i];
+                }
+                remaining.add(child);
+            }
+            i++;
+        }
+        return Collections.unmodifiableSet(remaining);
+    }
+
+    void fireParentChanged() {
+        if (!isObserved(HierarchyEvent.Type.PARENT_CHANGED)) {
+            return;
+        }
+        beginNotifying();
+        try {
+            final long start = metrics != null ? System.nanoTime() : 0;
+            int callbacks = 0;
+            final Optional<T> newParent = getParent();
+            for (HierarchyObserver<T> registered : hierarchyObservers) {
+                final HierarchyObserver<T> observer = subscribed(registered, this, HierarchyEvent.Type.PARENT_CHANGED);
+                if (observer != null) {
+                    callbacks++;
+                    observer.onParentChanged(self(), newParent);
+                }
+            }
+            HierarchyEvent<T> event = null;
+            for (TreeNode<T> node = observed; node != null; node = node.observedAbove()) {
+                final Set<SubtreeObserver<T>> subtreeObservers = node.subtreeObservers;
+                if (subtreeObservers != null && !subtreeObservers.isEmpty()) {
+                    if (event == null) {
+                        event = new HierarchyEvent<>(HierarchyEvent.Type.PARENT_CHANGED, self(), Collections.emptySet(), null, newParent, getPathFromRoot());
+                    }
+                    callbacks += subtreeObservers.size();
+                    for (SubtreeObserver<T> observer : subtreeObservers) {
+                        observer.onSubtreeChanged(node.self(), event);
+                    }
+                }
+            }
+            if (metrics != null) {
+                metrics.notified(System.nanoTime() - start, callbacks);
+            }
+        } finally {
+            endNotifying();
+        }
+    }
+
+    /**
+     * Marks this node as moving from one parent to another until {@link #endMove()}, so common ancestors of both
+     * won't notice the move.
+     */
+    void beginMove(T from, T to) {
+        final TreeNode<?> commonAncestor = lowestCommonAncestor(from, to);
+        this.moveScopeDepth = commonAncestor == null ? NOT_MOVING : commonAncestor.depth;
+    }
+
+    void endMove() {
+        this.moveScopeDepth = NOT_MOVING;
+    }
+
+    int linkChild(int index, T child, HierarchyBatch batch) {
+        if (batch != null) {
+            batch.beforeChange(this);
+        }
+        int position = children.insert(index, child);
+        node(child).parent = self();
+        indexChild(child);
+        discardCaches();
+        if (batch != null) {
+            batch.linked(this, child, position);
+        }
+        return position;
+    }
+
+    private int linkChildren(int index, Collection<T> children, HierarchyBatch batch) {
+        if (batch != null) {
+            batch.beforeChange(this);
+        }
+        final int position = this.children.insertAll(index, children);
+        discardCaches();
+        int i = position;
+        for (T child : children) {
+            node(child).parent = self();
+            indexChild(child);
+            node(child).indexAncestry();
+            if (batch != null) {
+                batch.linked(this, child, position < 0 ? -1 : i++);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Links the children to this node of a tree under construction, which is linked top-down and checked for circles
+     * as a whole - so the children are validated, but neither checked for circles nor notified. See
+     * {@link TreeBuilder}.
+     */
+    void linkBuiltChildren(List<T> children) throws ChildValidator.ChildValidationException {
+        checkChildKeys(children);
+        validateChildren(Collections.unmodifiableList(children));
+        this.children.insertAll(ChildStore.APPEND, children);
+        discardCaches();
+        for (T child : children) {
+            node(child).parent = self();
+            indexChild(child);
+            node(child).indexAncestry(); // children are leaves yet, unless created with own children
+        }
+        if (metrics != null) {
+            metrics.added(children.size());
+        }
+    }
+
+    /**
+     * Unlinks children {@link #linkBuiltChildren(List) linked} to a tree under construction again, as building it
+     * failed - so they aren't notified either.
+     */
+    void unlinkBuiltChildren(List<T> children) {
+        for (T child : children) {
+            unlinkChild(child, null);
+            node(child).indexAncestry();
+        }
+        if (metrics != null) {
+            metrics.removed(children.size());
+        }
+    }
+
+    int unlinkChild(T child, HierarchyBatch batch) {
+        if (batch != null) {
+            batch.beforeChange(this);
+        }
+        int index = children.remove(child);
+        node(child).parent = null;
+        unindexChild(child);
+        discardCaches();
+        if (batch != null) {
+            batch.unlinked(this, child, index);
+        }
+        return index;
+    }
+
+    private void requireKeyedChildren() {
+        if (childKey == null) {
+            throw new UnsupportedOperationException("Children of TreeNode " + this + " aren't keyed!");
+        }
+    }
+
+    private void requireOrderedChildren() {
+        if (!children.isOrdered()) {
+            throw new UnsupportedOperationException("Children of TreeNode " + this + " are unordered!");
+        }
+    }
+
+    private void checkPositionIndex(int index) {
+        if (index != ChildStore.APPEND && (index < 0 || index > children.size())) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + children.size());
+        }
+    }
+
+    private static int[] indexes(int first, int count) {
+        if (first < 0) {
+            return null;
+        }
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = first + i;
+        }
+        return indexes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T self() {
+        return (T) this;
+    }
+
+    private static <T extends TreeNode<T>> TreeNode<T> node(T node) {
+        return node;
+    }
+
+    /**
+     * Registers the observer for the changes of this node's subtree. Each node caches its nearest observed node, so
+     * changes of unobserved nodes are detected in O(1) - in turn, registering a node's first observer or
+     * unregistering its last one re-indexes its subtree, except for the subtrees of observed descendants. Further
+     * observers of an observed node are registered in O(1).
+     */
     public HierarchyObserver<T> addObserver(HierarchyObserver<T> hierarchyObserver) {
         if (hierarchyObserver == null) {
             throw new NullPointerException("Observer may not be null!");
         }
-        this.hierarchyObservers.add(hierarchyObserver);
+        WeakHierarchyObserver.purge(hierarchyObservers);
+        changeObservers(() -> this.hierarchyObservers.add(hierarchyObserver));
         return hierarchyObserver;
     }
 
+    /**
+     * Registers the observer for asynchronous notification on the executor, in order and with a bounded queue - see
+     * {@link AsyncHierarchyObserver} for other capacities and backpressure policies.
+     *
+     * @return the registered decorator, which is to be used for removing the observer again.
+     */
+    public HierarchyObserver<T> addObserver(HierarchyObserver<T> hierarchyObserver, Executor executor) {
+        return addObserver(new AsyncHierarchyObserver<>(hierarchyObserver, executor));
+    }
+
+    /**
+     * Registers the observer {@link WeakHierarchyObserver.Strength#WEAK weakly} or
+     * {@link WeakHierarchyObserver.Strength#SOFT softly}, so it is unregistered automatically, once it is collected -
+     * see {@link WeakHierarchyObserver}.
+     *
+     * @return the registered decorator, which is to be used for removing the observer again.
+     */
+    public HierarchyObserver<T> addObserver(HierarchyObserver<T> hierarchyObserver, WeakHierarchyObserver.Strength strength) {
+        return addObserver(new WeakHierarchyObserver<>(this, hierarchyObserver, strength));
+    }
+
+    /**
+     * Registers the observer only for the changes it is subscribed to - see {@link HierarchySubscription}.
+     *
+     * @return the registered decorator, which is to be used for removing the observer again.
+     */
+    public HierarchyObserver<T> addObserver(HierarchyObserver<T> hierarchyObserver, HierarchySubscription<T> subscription) {
+        return addObserver(new HierarchySubscription.Subscribed<>(hierarchyObserver, subscription));
+    }
+
     public boolean removeObserver(HierarchyObserver<T> hierarchyObserver) {
-        return this.hierarchyObservers.remove(hierarchyObserver);
+        return changeObservers(() -> this.hierarchyObservers.remove(hierarchyObserver));
+    }
+
+    public SubtreeObserver<T> addSubtreeObserver(SubtreeObserver<T> subtreeObserver) {
+        if (subtreeObserver == null) {
+            throw new NullPointerException("Observer may not be null!");
+        }
+        changeObservers(() -> subtreeObservers().add(subtreeObserver));
+        return subtreeObserver;
     }
 
-    private void notifyObservers(Consumer<? super HierarchyObserver> notification) {
-        this.hierarchyObservers.forEach(notification);
+    public boolean removeSubtreeObserver(SubtreeObserver<T> subtreeObserver) {
+        return changeObservers(() -> {
+            final Set<SubtreeObserver<T>> subtreeObservers = this.subtreeObservers;
+            return subtreeObservers != null && subtreeObservers.remove(subtreeObserver);
+        });
+    }
+
+    /**
+     * Creates the set on first use - synchronized, as concurrent nodes register observers on several threads.
+     */
+    private Set<SubtreeObserver<T>> subtreeObservers() {
+        Set<SubtreeObserver<T>> subtreeObservers = this.subtreeObservers;
+        if (subtreeObservers == null) {
+            synchronized (this) {
+                if ((subtreeObservers = this.subtreeObservers) == null) {
+                    this.subtreeObservers = subtreeObservers = new CopyOnWriteArraySet<>();
+                }
+            }
+        }
+        return subtreeObservers;
+    }
+
+    /**
+     * Registers or unregisters observers of this node. If it gets its first or loses its last observer, the nearest
+     * observed node is re-indexed top down through the subtree - except for the subtrees of observed descendants,
+     * which are their own nearest observed node. That's linear in the re-indexed nodes, but only when a node's
+     * observed state flips; maintaining counts up the ancestors instead would cost O(depth) on every change.
+     *
+     * @return the change's result.
+     */
+    boolean changeObservers(BooleanSupplier change) {
+        final boolean wasObserved = hasObservers();
+        final boolean result = change.getAsBoolean();
+        if (hasObservers() != wasObserved) {
+            final Deque<TreeNode<T>> pending = new ArrayDeque<>();
+            pending.push(this);
+            while (!pending.isEmpty()) {
+                for (T child : pending.pop().indexOwnObserved()) {
+                    if (!node(child).hasObservers()) {
+                        pending.push(child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the children, whose nearest observed node is to be re-indexed next.
+     */
+    Iterable<T> indexOwnObserved() {
+        observed = hasObservers() ? this : observedAbove();
+        return children.view();
+    }
+
+    /**
+     * @return the nodes from the root down to this node.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> getPathFromRoot() {
+        final T[] path = (T[]) new TreeNode<?>[depth + 1];
+        TreeNode<T> node = this;
+        for (int i = depth; i >= 0; i--) {
+            path[i] = node.self();
+            node = node.parent;
+        }
+        return Collections.unmodifiableList(Arrays.asList(path));
+    }
+
+    /**
+     * @return this node and its descendants in the given order - siblings of {@link ChildOrder#UNORDERED unordered}
+     * children in unspecified order. A {@link Stream#parallel() parallel} stream splits the subtree among threads.
+     */
+    public Stream<T> stream(TraversalOrder order) {
+        return StreamSupport.stream(TreeSpliterator.create(self(), order, true), false);
+    }
+
+    /**
+     * @return the descendants of this node in {@link TraversalOrder#PRE_ORDER pre-order}.
+     */
+    public Stream<T> descendants() {
+        return descendants(TraversalOrder.PRE_ORDER);
+    }
+
+    /**
+     * @return the descendants of this node, excluding itself, in the given order.
+     */
+    public Stream<T> descendants(TraversalOrder order) {
+        return StreamSupport.stream(TreeSpliterator.create(self(), order, false), false);
+    }
+
+    /**
+     * Reduces this node and its descendants on the fork-join pool. Nodes are combined in unspecified order, so the
+     * combiner has to be associative and commutative.
+     */
+    public <R> R reduce(R identity, Function<? super T, ? extends R> mapper, BinaryOperator<R> combiner) {
+        return reduce(identity, mapper, combiner, null);
+    }
+
+    /**
+     * Like {@link #reduce(Object, Function, BinaryOperator)}, but stops as soon as a partial result satisfies the
+     * condition and returns this partial result.
+     *
+     * @param until condition for early termination or null.
+     */
+    public <R> R reduce(R identity, Function<? super T, ? extends R> mapper, BinaryOperator<R> combiner, Predicate<? super R> until) {
+        if (mapper == null) {
+            throw new NullPointerException("Mapper may not be null!");
+        } else if (combiner == null) {
+            throw new NullPointerException("Combiner may not be null!");
+        }
+        return ForkJoinTraversal.reduce(self(), identity, mapper, combiner, until);
+    }
+
+    /**
+     * Visits this node and its descendants on the fork-join pool - each node before its descendants, but otherwise
+     * in unspecified order and possibly concurrently.
+     *
+     * @return false, if the visitor {@link VisitResult#TERMINATE terminated} the traversal.
+     */
+    public boolean visit(Function<? super T, VisitResult> visitor) {
+        if (visitor == null) {
+            throw new NullPointerException("Visitor may not be null!");
+        }
+        return ForkJoinTraversal.visit(self(), visitor);
+    }
+
+    /**
+     * @return the aggregate's value for the subtree of this node - cached, so repeated queries are O(1) until the
+     * subtree changes. Changes only discard the cached values along the path to the root, which are recomputed
+     * lazily from the still cached values of unchanged subtrees.
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(SubtreeAggregate<T, A> aggregate) {
+        if (aggregate == null) {
+            throw new NullPointerException("Aggregate may not be null!");
+        }
+        if (aggregates == null || !aggregates.containsKey(aggregate)) {
+            // post-order over all nodes without cached value, each computed from its children's values
+            final Deque<TreeNode<T>> pending = new ArrayDeque<>();
+            pending.push(this);
+            while (!pending.isEmpty()) {
+                final TreeNode<T> node = pending.peek();
+                boolean childrenComputed = true;
+                for (T child : node.children.view()) {
+                    if (node(child).aggregates == null || !node(child).aggregates.containsKey(aggregate)) {
+                        pending.push(child);
+                        childrenComputed = false;
+                    }
+                }
+                if (childrenComputed) {
+                    pending.pop();
+                    A childrenValue = aggregate.identity();
+                    for (T child : node.children.view()) {
+                        childrenValue = aggregate.combine(childrenValue, (A) node(child).aggregates.get(aggregate));
+                    }
+                    if (node.aggregates == null) {
+                        node.aggregates = new IdentityHashMap<>();
+                    }
+                    node.aggregates.put(aggregate, aggregate.ofNode(node.self(), childrenValue));
+                }
+            }
+        }
+        return (A) aggregates.get(aggregate);
+    }
+
+    /**
+     * Discards the cached {@link #aggregate(SubtreeAggregate) aggregates} of this node and its ancestors - to be
+     * called, when a property of this node changes, which an aggregate depends on. Changes of the hierarchy are
+     * taken into account automatically.
+     */
+    public void invalidateAggregates() {
+        for (TreeNode<T> node = this; node != null && node.aggregates != null; node = node.parent) {
+            node.aggregates = null;
+        }
+    }
+
+    /**
+     * Discards the cached aggregates and snapshots along the path to the root, as the hierarchy below changed - called
+     * on every change of this node's children.
+     */
+    void discardCaches() {
+        for (TreeNode<T> node = this; node != null && (node.aggregates != null || node.snapshot != null); node = node.parent) {
+            node.aggregates = null;
+            node.snapshot = null;
+        }
+    }
+
+    /**
+     * @return an immutable view of this node's subtree - cached and structurally shared with former snapshots, so
+     * it is O(1) to take again, if the subtree didn't change, and otherwise only copies the changed paths.
+     * <p>
+     * Changes don't copy anything - they only discard the cached snapshots on their path. The copying is deferred to
+     * the next call, which rebuilds each discarded node from its children's snapshots, so it costs the sum of the
+     * fanouts along the changed paths.
+     */
+    public TreeSnapshot<T> snapshot() {
+        if (snapshot == null) {
+            // post-order over all nodes without cached snapshot, each built from its children's snapshots
+            final Deque<TreeNode<T>> pending = new ArrayDeque<>();
+            pending.push(this);
+            while (!pending.isEmpty()) {
+                final TreeNode<T> node = pending.peek();
+                boolean childrenTaken = true;
+                for (T child : node.children.view()) {
+                    if (node(child).snapshot == null) {
+                        pending.push(child);
+                        childrenTaken = false;
+                    }
+                }
+                if (childrenTaken) {
+                    pending.pop();
+                    @SuppressWarnings("unchecked")
+                    final TreeSnapshot<T>[] childSnapshots = (TreeSnapshot<T>[]) new TreeSnapshot<?>[node.children.size()];
+                    int i = 0;
+                    for (T child : node.children.view()) {
+                        childSnapshots[i++] = node(child).snapshot;
+                    }
+                    node.snapshot = new TreeSnapshot<>(node.self(), Collections.unmodifiableList(Arrays.asList(childSnapshots)));
+                }
+            }
+        }
+        return snapshot;
     }
 
     public void addChildValidator(ChildValidator<T> childValidator) {
@@ -226,33 +1413,264 @@ public abstract class TreeNode<T extends TreeNode<T>> {
         childValidators.remove(childValidator);
     }
 
+    public void addAsyncChildValidator(AsyncChildValidator<T> childValidator) {
+        Set<AsyncChildValidator<T>> asyncChildValidators = this.asyncChildValidators;
+        if (asyncChildValidators == null) {
+            synchronized (this) { // like subtreeObservers()
+                if ((asyncChildValidators = this.asyncChildValidators) == null) {
+                    this.asyncChildValidators = asyncChildValidators = new CopyOnWriteArraySet<>();
+                }
+            }
+        }
+        asyncChildValidators.add(childValidator);
+    }
+
+    public void removeAsyncChildValidator(AsyncChildValidator<T> childValidator) {
+        final Set<AsyncChildValidator<T>> asyncChildValidators = this.asyncChildValidators;
+        if (asyncChildValidators != null) {
+            asyncChildValidators.remove(childValidator);
+        }
+    }
+
+    private Collection<AsyncChildValidator<T>> asyncChildValidators() {
+        final Set<AsyncChildValidator<T>> asyncChildValidators = this.asyncChildValidators;
+        return asyncChildValidators != null ? asyncChildValidators : Collections.emptySet();
+    }
+
+    private void validateChildren(Collection<T> children) throws ChildValidator.ChildValidationException {
+        if (metrics == null || !hasChildValidators()) {
+            validateChildren(self(), children, childValidators, asyncChildValidators());
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            validateChildren(self(), children, childValidators, asyncChildValidators());
+        } catch (ChildValidator.ChildValidationException e) {
+            metrics.validated(System.nanoTime() - start, true);
+            throw e;
+        }
+        metrics.validated(System.nanoTime() - start, false);
+    }
+
+    private boolean hasChildValidators() {
+        return !childValidators.isEmpty() || !asyncChildValidators().isEmpty();
+    }
+
+    /**
+     * Validates all children at once: starts the asynchronous validators, runs the synchronous ones meanwhile and
+     * waits for the asynchronous ones, until all have passed or the first has failed - cancelling the others then.
+     */
+    static <T extends TreeNode<T>> void validateChildren(T parent, Collection<T> children, Collection<ChildValidator<T>> validators,
+                                                         Collection<AsyncChildValidator<T>> asyncValidators) throws ChildValidator.ChildValidationException {
+        if (validators.isEmpty() && asyncValidators.isEmpty()) {
+            return;
+        }
+        final List<CompletableFuture<?>> pending = new ArrayList<>(asyncValidators.size());
+        final CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+        try {
+            for (AsyncChildValidator<T> validator : asyncValidators) {
+                final CompletableFuture<?> validation = validator.validateChildren(parent, children).toCompletableFuture();
+                validation.whenComplete((result, failure) -> {
+                    if (failure != null) {
+                        firstFailure.completeExceptionally(failure);
+                    }
+                });
+                pending.add(validation);
+            }
+            for (ChildValidator<T> validator : validators) {
+                validator.validateChildren(parent, children);
+            }
+            if (!pending.isEmpty()) {
+                CompletableFuture.anyOf(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])), firstFailure).join();
+            }
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ChildValidator.ChildValidationException) {
+                throw (ChildValidator.ChildValidationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ChildValidator.ChildValidationException("Validation failed!", cause);
+        } finally {
+            pending.forEach(validation -> validation.cancel(true));
+        }
+    }
+
+    /**
+     * How a node stores its children.
+     */
+    public enum ChildOrder {
+        /**
+         * Children form a set without stable iteration order.
+         */
+        UNORDERED,
+        /**
+         * Children keep their insertion position and are index-addressable.
+         */
+        ORDERED
+    }
+
+    /**
+     * Order of traversing a subtree.
+     */
+    public enum TraversalOrder {
+        /**
+         * Each node before its children, depth-first.
+         */
+        PRE_ORDER,
+        /**
+         * Each node after its children, depth-first.
+         */
+        POST_ORDER,
+        /**
+         * Level by level, starting at the top.
+         */
+        BREADTH_FIRST
+    }
+
+    /**
+     * How to go on after {@link #visit(Function) visiting} a node.
+     */
+    public enum VisitResult {
+        CONTINUE,
+        /**
+         * Don't visit the node's descendants.
+         */
+        SKIP_SUBTREE,
+        /**
+         * Stop visiting - nodes already being visited concurrently are still completed.
+         */
+        TERMINATE
+    }
+
     public interface HierarchyObserver<T extends TreeNode<T>> {
 
         default void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren) {
         }
 
+        /**
+         * Like {@link #onChildrenAdded(TreeNode, TreeNode, Set)}, which it delegates to by default, but providing
+         * the positions of the added children, too.
+         *
+         * @param indexes the positions after adding, ascending in the set's iteration order - or {@code null}, if
+         *                the children of {@code changedNode} are unordered.
+         */
+        default void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren, int[] indexes) {
+            onChildrenAdded(eventSource, changedNode, addedChildren);
+        }
+
         default void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren) {
         }
 
+        /**
+         * Like {@link #onChildrenRemoved(TreeNode, TreeNode, Set)}, which it delegates to by default, but providing
+         * the former positions of the removed children, too.
+         *
+         * @param indexes the positions before removing, ascending in the set's iteration order - or {@code null}, if
+         *                the children of {@code changedNode} are unordered.
+         */
+        default void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren, int[] indexes) {
+            onChildrenRemoved(eventSource, changedNode, removedChildren);
+        }
+
         default void onParentChanged(T source, Optional<T> newParent) {
         }
     }
 
+    /**
+     * Receives every change within the subtree of the node it is registered at - once per change, no matter how deep
+     * the changed node is, and including moves inside the subtree as removal and addition.
+     * <p>
+     * Each event carries the {@link HierarchyEvent#getPath() path} from the root as of the change, which is copied in
+     * O(depth) once per change - but only for changes below a subtree observer.
+     */
+    @FunctionalInterface
+    public interface SubtreeObserver<T extends TreeNode<T>> {
+
+        /**
+         * @param observedNode the node, this observer is registered at.
+         */
+        void onSubtreeChanged(T observedNode, HierarchyEvent<T> event);
+    }
+
+    /**
+     * Changes to a hierarchy, to be run as {@link #batch(HierarchyAction) batch}.
+     */
+    @FunctionalInterface
+    public interface HierarchyAction {
+
+        void run() throws ChildValidator.ChildValidationException;
+    }
+
+    /**
+     * A value computed over a whole subtree as fold of the children's values with a monoid - see
+     * {@link SubtreeAggregates} for common ones. The value must only depend on the subtree, not on the position of
+     * the subtree in the hierarchy. Values are cached per instance, so an aggregate is to be reused for queries.
+     *
+     * @param <A> Type of the aggregated value.
+     */
+    public interface SubtreeAggregate<T extends TreeNode<T>, A> {
+
+        /**
+         * @return the neutral element of {@link #combine(Object, Object)} - the value for no children.
+         */
+        A identity();
+
+        /**
+         * Combines the values of children - associative, but not necessarily commutative for ordered children.
+         */
+        A combine(A first, A second);
+
+        /**
+         * @param childrenValue the combined values of the node's children.
+         * @return the value for the subtree of the node.
+         */
+        A ofNode(T node, A childrenValue);
+    }
+
     public interface ChildValidator<T extends TreeNode<T>> {
 
         void validateChild(T parent, T child) throws ChildValidationException;
 
-        class ChildValidationException extends Exception {}
+        /**
+         * Validates all children added or moved to the parent at once, before any of them is linked - by default one
+         * after another. Overriding this allows validators, which e.g. query an external store, to do so in bulk.
+         */
+        default void validateChildren(T parent, Collection<T> children) throws ChildValidationException {
+            for (T child : children) {
+                validateChild(parent, child);
+            }
+        }
 
-    }
+        class ChildValidationException extends Exception {
 
-    private class Moving {
-        private final T from;
-        private final T to;
+            public ChildValidationException() {
+            }
 
-        private Moving(T from, T to) {
-            this.from = from;
-            this.to = to;
+            public ChildValidationException(String message) {
+                super(message);
+            }
+
+            public ChildValidationException(String message, Throwable cause) {
+                super(message, cause);
+            }
         }
+
+    }
+
+    /**
+     * Validator, that runs in parallel to other validators - e.g. for remote checks. The changing thread waits for all
+     * validations to complete; if one fails, none of the children is linked.
+     */
+    @FunctionalInterface
+    public interface AsyncChildValidator<T extends TreeNode<T>> {
+
+        /**
+         * @return a stage, which completes normally, if all children are valid - or exceptionally, preferably with a
+         * {@link ChildValidator.ChildValidationException}, otherwise.
+         */
+        CompletionStage<?> validateChildren(T parent, Collection<T> children);
     }
 }
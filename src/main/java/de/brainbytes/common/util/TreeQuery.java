@@ -0,0 +1,275 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Query selecting nodes relative to a context node by steps along {@link Axis axes}, each narrowed by conditions -
+ * e.g. all descendants of a node with type "host" and state "down":
+ * <pre>
+ *     TreeQuery.&lt;Element&gt;create().descendants().where(typeIndex, "host").where(stateIndex, "down").select(node);
+ * </pre>
+ * Conditions on {@link TreeIndex indexed} attributes let a descendant step look up the candidates in the most
+ * selective index, that covers the context node, instead of scanning its subtree - any other condition is checked
+ * per candidate. Queries are immutable and may be reused for any context.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class TreeQuery<T extends TreeNode<T>> {
+
+    private final List<Step<T>> steps;
+
+    private TreeQuery(List<Step<T>> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * @return the query selecting the context node itself - to be extended by steps and conditions.
+     */
+    public static <T extends TreeNode<T>> TreeQuery<T> create() {
+        return new TreeQuery<T>(Collections.singletonList(new Step<>(Axis.SELF, Collections.emptyList(), Collections.emptyList())));
+    }
+
+    public TreeQuery<T> children() {
+        return step(Axis.CHILD);
+    }
+
+    public TreeQuery<T> descendants() {
+        return step(Axis.DESCENDANT);
+    }
+
+    public TreeQuery<T> ancestors() {
+        return step(Axis.ANCESTOR);
+    }
+
+    public TreeQuery<T> siblings() {
+        return step(Axis.SIBLING);
+    }
+
+    /**
+     * @return the query continuing from the nodes selected so far along the axis.
+     */
+    public TreeQuery<T> step(Axis axis) {
+        if (axis == null) {
+            throw new NullPointerException("Axis may not be null!");
+        }
+        final List<Step<T>> extended = new ArrayList<>(steps);
+        extended.add(new Step<>(axis, Collections.emptyList(), Collections.emptyList()));
+        return new TreeQuery<>(Collections.unmodifiableList(extended));
+    }
+
+    /**
+     * @return the query selecting only nodes of the last step, that match the predicate.
+     */
+    public TreeQuery<T> where(Predicate<? super T> predicate) {
+        if (predicate == null) {
+            throw new NullPointerException("Predicate may not be null!");
+        }
+        final Step<T> last = steps.get(steps.size() - 1);
+        return replaceLast(new Step<>(last.axis, last.conditions, append(last.predicates, predicate)));
+    }
+
+    /**
+     * @return the query selecting only nodes of the last step, that have the value in the index - nodes outside of
+     * the index are checked by its attribute.
+     */
+    public <K> TreeQuery<T> where(TreeIndex<T, K> index, K value) {
+        if (index == null) {
+            throw new NullPointerException("Index may not be null!");
+        }
+        final Step<T> last = steps.get(steps.size() - 1);
+        return replaceLast(new Step<>(last.axis, append(last.conditions, new IndexCondition<>(index, value)), last.predicates));
+    }
+
+    /**
+     * @return the selected nodes without duplicates - in traversal order, unless looked up in an index.
+     */
+    public List<T> select(T context) {
+        if (context == null) {
+            throw new NullPointerException("Context may not be null!");
+        }
+        Collection<T> selected = Collections.singleton(context);
+        for (Step<T> step : steps) {
+            final Set<T> next = new LinkedHashSet<>();
+            for (T node : selected) {
+                step.select(node, next);
+            }
+            selected = next;
+        }
+        return new ArrayList<>(selected);
+    }
+
+    public Optional<T> selectFirst(T context) {
+        final List<T> selected = select(context);
+        return selected.isEmpty() ? Optional.empty() : Optional.of(selected.get(0));
+    }
+
+    private TreeQuery<T> replaceLast(Step<T> step) {
+        final List<Step<T>> replaced = new ArrayList<>(steps);
+        replaced.set(replaced.size() - 1, step);
+        return new TreeQuery<>(Collections.unmodifiableList(replaced));
+    }
+
+    private static <E> List<E> append(List<E> list, E element) {
+        final List<E> appended = new ArrayList<>(list);
+        appended.add(element);
+        return Collections.unmodifiableList(appended);
+    }
+
+    @Override
+    public String toString() {
+        return steps.stream().map(Step::toString).collect(Collectors.joining("/"));
+    }
+
+    /**
+     * Direction of a step from each node selected so far.
+     */
+    public enum Axis {
+        /**
+         * The node itself.
+         */
+        SELF,
+        CHILD,
+        /**
+         * The node's descendants, excluding itself.
+         */
+        DESCENDANT,
+        /**
+         * The node's ancestors, from its parent up to the root.
+         */
+        ANCESTOR,
+        /**
+         * The other children of the node's parent.
+         */
+        SIBLING
+    }
+
+    private static final class Step<T extends TreeNode<T>> {
+
+        private final Axis axis;
+        private final List<IndexCondition<T, ?>> conditions;
+        private final List<Predicate<? super T>> predicates;
+
+        private Step(Axis axis, List<IndexCondition<T, ?>> conditions, List<Predicate<? super T>> predicates) {
+            this.axis = axis;
+            this.conditions = conditions;
+            this.predicates = predicates;
+        }
+
+        private void select(T node, Set<T> selected) {
+            switch (axis) {
+                case SELF:
+                    addIfMatching(node, selected);
+                    break;
+                case CHILD:
+                    for (T child : node.getChildren()) {
+                        addIfMatching(child, selected);
+                    }
+                    break;
+                case DESCENDANT:
+                    final IndexCondition<T, ?> lookup = mostSelective(node);
+                    if (lookup != null) {
+                        for (T candidate : lookup.candidates()) {
+                            if (node.isAncestorOf(candidate)) {
+                                addIfMatching(candidate, selected);
+                            }
+                        }
+                    } else {
+                        node.descendants().forEach(descendant -> addIfMatching(descendant, selected));
+                    }
+                    break;
+                case ANCESTOR:
+                    for (T ancestor = node.getParent().orElse(null); ancestor != null; ancestor = ancestor.getParent().orElse(null)) {
+                        addIfMatching(ancestor, selected);
+                    }
+                    break;
+                case SIBLING:
+                    final Optional<T> parent = node.getParent();
+                    if (parent.isPresent()) {
+                        for (T sibling : parent.get().getChildren()) {
+                            if (sibling != node) {
+                                addIfMatching(sibling, selected);
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown axis " + axis + "!");
+            }
+        }
+
+        /**
+         * @return the condition on the index with the fewest candidates, that covers the node's subtree - or null.
+         */
+        private IndexCondition<T, ?> mostSelective(T node) {
+            IndexCondition<T, ?> mostSelective = null;
+            int fewest = Integer.MAX_VALUE;
+            for (IndexCondition<T, ?> condition : conditions) {
+                if (condition.index.covers(node)) {
+                    final int count = condition.count();
+                    if (count < fewest) {
+                        mostSelective = condition;
+                        fewest = count;
+                    }
+                }
+            }
+            return mostSelective;
+        }
+
+        private void addIfMatching(T node, Set<T> selected) {
+            for (IndexCondition<T, ?> condition : conditions) {
+                if (!condition.matches(node)) {
+                    return;
+                }
+            }
+            for (Predicate<? super T> predicate : predicates) {
+                if (!predicate.test(node)) {
+                    return;
+                }
+            }
+            selected.add(node);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder string = new StringBuilder(axis.name().toLowerCase());
+            for (IndexCondition<T, ?> condition : conditions) {
+                string.append('[').append(condition).append(']');
+            }
+            for (int i = 0; i < predicates.size(); i++) {
+                string.append("[?]");
+            }
+            return string.toString();
+        }
+    }
+
+    private static final class IndexCondition<T extends TreeNode<T>, K> {
+
+        private final TreeIndex<T, K> index;
+        private final K value;
+
+        private IndexCondition(TreeIndex<T, K> index, K value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        private int count() {
+            return index.count(value);
+        }
+
+        private Set<T> candidates() {
+            return index.get(value);
+        }
+
+        private boolean matches(T node) {
+            return index.matches(node, value);
+        }
+
+        @Override
+        public String toString() {
+            return "=" + value;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package de.brainbytes.common.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Immutable view of a subtree's hierarchy as of the time of {@link TreeNode#snapshot() taking} it.
+ * <p>
+ * Snapshots share unchanged subtrees with each other - taking a snapshot after a change only copies the nodes on the
+ * paths from the changes up to the snapshot's root. That copying happens when the snapshot is taken, not when the
+ * hierarchy changes. Therefore a snapshot has no parent; the same subtree may be part
+ * of several snapshots. Only the hierarchy is captured, the nodes themselves are the live ones.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class TreeSnapshot<T extends TreeNode<T>> {
+
+    private final T node;
+    private final List<TreeSnapshot<T>> children;
+    private final int size;
+
+    TreeSnapshot(T node, List<TreeSnapshot<T>> children) {
+        this.node = node;
+        this.children = children;
+        int size = 1;
+        for (TreeSnapshot<T> child : children) {
+            size += child.size;
+        }
+        this.size = size;
+    }
+
+    public T getNode() {
+        return node;
+    }
+
+    /**
+     * @return the children's snapshots, in the order of the children for {@link TreeNode.ChildOrder#ORDERED ordered}
+     * children.
+     */
+    public List<TreeSnapshot<T>> getChildren() {
+        return children;
+    }
+
+    public int getChildCount() {
+        return children.size();
+    }
+
+    /**
+     * @return the number of nodes in the snapshot, including its root.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the snapshots of this subtree's nodes in pre-order.
+     */
+    public Stream<TreeSnapshot<T>> stream() {
+        final List<TreeSnapshot<T>> nodes = new ArrayList<>(size);
+        final Deque<TreeSnapshot<T>> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            final TreeSnapshot<T> snapshot = pending.pop();
+            nodes.add(snapshot);
+            for (int i = snapshot.children.size() - 1; i >= 0; i--) {
+                pending.push(snapshot.children.get(i));
+            }
+        }
+        return nodes.stream();
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot of " + node + " with " + size + " nodes";
+    }
+}
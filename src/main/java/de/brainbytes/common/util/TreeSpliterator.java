@@ -0,0 +1,217 @@
+package de.brainbytes.common.util;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Splittable traversal of a subtree in one of the {@link TreeNode.TraversalOrder}s, walking the nodes' children
+ * views directly - no wrappers or iterators per node for ordered children.
+ * <p>
+ * The size is unknown up front, so the estimate is halved on every split as for other spliterators of unknown size.
+ * Like the children views, the traversal isn't safe against concurrent changes of the subtree.
+ *
+ * @author Fabian Krippendorff
+ */
+abstract class TreeSpliterator<T extends TreeNode<T>> implements Spliterator<T> {
+
+    private static final int CHARACTERISTICS = ORDERED | DISTINCT | NONNULL;
+
+    long estimatedSize;
+
+    private TreeSpliterator(long estimatedSize) {
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * @param includeRoot whether the root itself is traversed, too, or only its descendants.
+     */
+    static <T extends TreeNode<T>> Spliterator<T> create(T root, TreeNode.TraversalOrder order, boolean includeRoot) {
+        if (order == null) {
+            throw new NullPointerException("TraversalOrder may not be null!");
+        }
+        switch (order) {
+            case PRE_ORDER:
+            case POST_ORDER:
+                final Subtrees<T> subtrees = new Subtrees<>(order == TreeNode.TraversalOrder.PRE_ORDER, new ArrayDeque<>(), Long.MAX_VALUE);
+                if (includeRoot) {
+                    subtrees.pending.add(root);
+                } else {
+                    subtrees.pushChildren(root);
+                }
+                return subtrees;
+            case BREADTH_FIRST:
+                return new Levels<>(includeRoot ? Collections.singletonList(root) : new ArrayList<>(root.getChildren()), Long.MAX_VALUE);
+            default:
+                throw new IllegalArgumentException("Unknown TraversalOrder " + order);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimatedSize;
+    }
+
+    @Override
+    public int characteristics() {
+        return CHARACTERISTICS;
+    }
+
+    /**
+     * Pre- and post-order as a sequence of pending subtrees, which is split between them. A {@link #VISIT} marker
+     * stands for visiting the following node without its subtree, which is pending separately.
+     */
+    private static final class Subtrees<T extends TreeNode<T>> extends TreeSpliterator<T> {
+
+        private static final Object VISIT = new Object();
+
+        private final boolean preOrder;
+        private final ArrayDeque<Object> pending; // next subtree first
+
+        private Subtrees(boolean preOrder, ArrayDeque<Object> pending, long estimatedSize) {
+            super(estimatedSize);
+            this.preOrder = preOrder;
+            this.pending = pending;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (!pending.isEmpty()) {
+                final Object next = pending.pollFirst();
+                if (next == VISIT) {
+                    action.accept((T) pending.pollFirst());
+                    return true;
+                }
+                final T node = (T) next;
+                if (!preOrder && !node.isLeaf()) {
+                    pending.addFirst(node);
+                    pending.addFirst(VISIT);
+                    pushChildren(node);
+                    continue;
+                }
+                if (preOrder) {
+                    pushChildren(node);
+                }
+                action.accept(node);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Spliterator<T> trySplit() {
+            if (pending.size() == 1) {
+                final T node = (T) pending.pollFirst();
+                if (node.isLeaf()) {
+                    pending.addFirst(node);
+                    return null;
+                }
+                // expand the single subtree into its root and the subtrees of its children
+                if (preOrder) {
+                    pushChildren(node);
+                    pending.addFirst(node);
+                    pending.addFirst(VISIT);
+                } else {
+                    pushChildren(node);
+                    pending.addLast(VISIT);
+                    pending.addLast(node);
+                }
+            }
+            if (pending.size() < 2 || (pending.size() == 2 && pending.peekFirst() == VISIT)) {
+                return null;
+            }
+
+            final ArrayDeque<Object> prefix = new ArrayDeque<>();
+            for (int i = pending.size() / 2; i > 0; i--) {
+                prefix.addLast(pending.pollFirst());
+            }
+            if (prefix.peekLast() == VISIT) {
+                prefix.addLast(pending.pollFirst());
+            }
+            estimatedSize = estimatedSize >>> 1;
+            return new Subtrees<>(preOrder, prefix, estimatedSize);
+        }
+
+        /**
+         * Pushes the children in front of the pending subtrees, keeping their order.
+         */
+        private void pushChildren(T node) {
+            if (node.getChildCount() == 0) {
+                return; // most nodes are leaves - don't copy or wrap their children
+            }
+            final Collection<T> children = node.getChildren();
+            if (children instanceof List && children instanceof RandomAccess) {
+                final List<T> list = (List<T>) children;
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    pending.addFirst(list.get(i));
+                }
+            } else if (children instanceof List) { // sequential access only
+                final Object[] array = children.toArray();
+                for (int i = array.length - 1; i >= 0; i--) {
+                    pending.addFirst(array[i]);
+                }
+            } else {
+                for (T child : children) { // unordered anyway
+                    pending.addFirst(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Breadth-first level by level. Splitting hands off the rest of the current level - extended by the following
+     * levels, while it is too small - and continues with the next level, so encounter order is kept.
+     */
+    private static final class Levels<T extends TreeNode<T>> extends TreeSpliterator<T> {
+
+        private List<T> level;
+        private int index = 0;
+
+        private Levels(List<T> level, long estimatedSize) {
+            super(estimatedSize);
+            this.level = level;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (index == level.size()) {
+                if (level.isEmpty()) {
+                    return false;
+                }
+                level = nextLevel(level);
+                index = 0;
+                if (level.isEmpty()) {
+                    return false;
+                }
+            }
+            action.accept(level.get(index++));
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            final List<T> prefix = new ArrayList<>(level.subList(index, level.size()));
+            List<T> next = nextLevel(level);
+            while (prefix.size() < 2 && !next.isEmpty()) {
+                prefix.addAll(next);
+                next = nextLevel(next);
+            }
+            if (prefix.size() < 2) {
+                return null;
+            }
+            level = next;
+            index = 0;
+            estimatedSize = estimatedSize >>> 1;
+            return prefix.spliterator();
+        }
+
+        private static <T extends TreeNode<T>> List<T> nextLevel(List<T> level) {
+            final List<T> next = new ArrayList<>();
+            for (T node : level) {
+                next.addAll(node.getChildren());
+            }
+            return next;
+        }
+    }
+}
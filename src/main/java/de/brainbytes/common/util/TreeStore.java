@@ -0,0 +1,1380 @@
+package de.brainbytes.common.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.IntConsumer;
+
+/**
+ * Compact storage for hierarchies of millions of nodes: instead of one object per node, the hierarchy is kept in
+ * primitive columns indexed by the nodes' ids - parent, first and last child, previous and next sibling, child count,
+ * depth and an ancestor to jump to for ancestry queries in O(log depth), i.e. 32 bytes per node, on the heap or
+ * {@link Backing#OFF_HEAP off-heap}.
+ * <p>
+ * {@link #node(int)} wraps an id into a {@link Node} - a flyweight {@link TreeNode}, which delegates to the store, so
+ * observers, validators and traversals written against TreeNode work on stored hierarchies, too. Flyweights are
+ * created on demand and equal, if they wrap the same id. A flyweight holds nothing but the id and the store - no
+ * children or listener collections - and observers and validators are kept by the store per id, so only nodes with
+ * listeners take additional memory. Changes by id don't create any flyweights, unless listeners are registered.
+ * Children are always ordered, but positional access walks the siblings.
+ * <p>
+ * {@link #setMetrics(TreeMetrics) Metrics} are recorded for the store as a whole, not per subtree.
+ * <p>
+ * Like TreeNode, the store isn't thread-safe. The ids of {@link #delete(int) deleted} nodes are reused.
+ *
+ * @author Fabian Krippendorff
+ */
+public final class TreeStore {
+
+    /**
+     * Id standing for no node, e.g. the parent of a root.
+     */
+    public static final int NO_NODE = -1;
+
+    private static final int APPEND = -1;
+    private static final int FREE = -1; // depth of deleted ids, which are chained by their first child
+    private static final int NOT_MOVING = -1;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    public enum Backing {
+        /**
+         * Columns are int-arrays on the heap.
+         */
+        HEAP,
+        /**
+         * Columns are direct buffers, leaving only the store itself and the flyweights on the heap.
+         */
+        OFF_HEAP
+    }
+
+    private final Backing backing;
+    private int capacity;
+    private Column parents;
+    private Column firstChildren;
+    private Column lastChildren;
+    private Column previousSiblings;
+    private Column nextSiblings;
+    private Column childCounts;
+    private Column depths;
+    private Column jumps; // skew-binary jump pointers like TreeNode's
+
+    private int allocated = 0; // ids below have been handed out
+    private int size = 0;
+    private int freeIds = NO_NODE;
+
+    private final Map<Integer, Listeners> listeners = new HashMap<>();
+    private TreeMetrics metrics = null;
+
+    /**
+     * Creates an empty store on the heap.
+     */
+    public TreeStore() {
+        this(Backing.HEAP, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of nodes to reserve space for - the store grows beyond as needed.
+     */
+    public TreeStore(Backing backing, int initialCapacity) {
+        if (backing == null) {
+            throw new NullPointerException("Backing may not be null!");
+        } else if (initialCapacity < 0 || initialCapacity > maxCapacity(backing)) {
+            throw new IllegalArgumentException("Illegal capacity: " + initialCapacity);
+        }
+        this.backing = backing;
+        this.capacity = initialCapacity;
+        this.parents = Column.create(backing, initialCapacity);
+        this.firstChildren = Column.create(backing, initialCapacity);
+        this.lastChildren = Column.create(backing, initialCapacity);
+        this.previousSiblings = Column.create(backing, initialCapacity);
+        this.nextSiblings = Column.create(backing, initialCapacity);
+        this.childCounts = Column.create(backing, initialCapacity);
+        this.depths = Column.create(backing, initialCapacity);
+        this.jumps = Column.create(backing, initialCapacity);
+    }
+
+    private static int maxCapacity(Backing backing) {
+        return backing == Backing.OFF_HEAP ? Integer.MAX_VALUE / Integer.BYTES : Integer.MAX_VALUE - 8;
+    }
+
+    public Backing getBacking() {
+        return backing;
+    }
+
+    /**
+     * @return the number of nodes in the store.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Records the changes of all nodes of the store to the metrics - or stops recording them for null. See
+     * {@link TreeMetrics}.
+     */
+    public void setMetrics(TreeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Optional<TreeMetrics> getMetrics() {
+        return Optional.ofNullable(metrics);
+    }
+
+    /**
+     * @return the id of a new root without children.
+     */
+    public int createNode() {
+        final int id;
+        if (freeIds != NO_NODE) {
+            id = freeIds;
+            freeIds = firstChildren.get(id);
+        } else {
+            if (allocated == capacity) {
+                grow();
+            }
+            id = allocated++;
+        }
+        parents.set(id, NO_NODE);
+        firstChildren.set(id, NO_NODE);
+        lastChildren.set(id, NO_NODE);
+        previousSiblings.set(id, NO_NODE);
+        nextSiblings.set(id, NO_NODE);
+        childCounts.set(id, 0);
+        depths.set(id, 0);
+        jumps.set(id, id);
+        size++;
+        return id;
+    }
+
+    private void grow() {
+        final int maxCapacity = maxCapacity(backing);
+        if (capacity == maxCapacity) {
+            throw new IllegalStateException("TreeStore is full!");
+        }
+        capacity = Math.min(maxCapacity, Math.max(DEFAULT_CAPACITY, capacity + (capacity >> 1)));
+        parents = parents.resize(capacity);
+        firstChildren = firstChildren.resize(capacity);
+        lastChildren = lastChildren.resize(capacity);
+        previousSiblings = previousSiblings.resize(capacity);
+        nextSiblings = nextSiblings.resize(capacity);
+        childCounts = childCounts.resize(capacity);
+        depths = depths.resize(capacity);
+        jumps = jumps.resize(capacity);
+    }
+
+    /**
+     * @return the flyweight for the node.
+     */
+    public Node node(int id) {
+        checkNode(id);
+        return new Node(id);
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < allocated && depths.get(id) != FREE;
+    }
+
+    private void checkNode(int id) {
+        if (!contains(id)) {
+            throw new IllegalArgumentException("Node " + id + " isn't contained in the TreeStore!");
+        }
+    }
+
+    /**
+     * @return the parent's id or {@link #NO_NODE} for a root.
+     */
+    public int getParent(int id) {
+        checkNode(id);
+        return parents.get(id);
+    }
+
+    public int getFirstChild(int id) {
+        checkNode(id);
+        return firstChildren.get(id);
+    }
+
+    public int getLastChild(int id) {
+        checkNode(id);
+        return lastChildren.get(id);
+    }
+
+    public int getNextSibling(int id) {
+        checkNode(id);
+        return nextSiblings.get(id);
+    }
+
+    public int getPreviousSibling(int id) {
+        checkNode(id);
+        return previousSiblings.get(id);
+    }
+
+    public int getChildCount(int id) {
+        checkNode(id);
+        return childCounts.get(id);
+    }
+
+    /**
+     * @return the number of ancestors, i.e. 0 for a root.
+     */
+    public int getDepth(int id) {
+        checkNode(id);
+        return depths.get(id);
+    }
+
+    /**
+     * @return true, if the first node is a (transitive) parent of the second one - in O(log depth).
+     */
+    public boolean isAncestorOf(int ancestor, int id) {
+        checkNode(ancestor);
+        checkNode(id);
+        return depths.get(id) > depths.get(ancestor) && ancestorAtDepth(id, depths.get(ancestor)) == ancestor;
+    }
+
+    /**
+     * @return the node's ancestor at the given depth or the node itself for its own depth - in O(log depth).
+     */
+    public int getAncestorAtDepth(int id, int depth) {
+        checkNode(id);
+        if (depth < 0 || depth > depths.get(id)) {
+            throw new IllegalArgumentException("Depth " + depth + " is out of range [0, " + depths.get(id) + "]!");
+        }
+        return ancestorAtDepth(id, depth);
+    }
+
+    private int ancestorAtDepth(int id, int depth) {
+        int node = id;
+        while (depths.get(node) > depth) {
+            final int jump = jumps.get(node);
+            node = depths.get(jump) < depth ? parents.get(node) : jump;
+        }
+        return node;
+    }
+
+    /**
+     * @return the deepest node, that is an ancestor of both nodes or one of them - or {@link #NO_NODE} for nodes of
+     * different trees - in O(log depth).
+     */
+    public int getLowestCommonAncestor(int a, int b) {
+        checkNode(a);
+        checkNode(b);
+        return lowestCommonAncestor(a, b);
+    }
+
+    /**
+     * @return the number of edges on the path between both nodes or -1 for nodes of different trees - in
+     * O(log depth).
+     */
+    public int getDistance(int a, int b) {
+        final int commonAncestor = getLowestCommonAncestor(a, b);
+        return commonAncestor == NO_NODE ? -1 : depths.get(a) + depths.get(b) - 2 * depths.get(commonAncestor);
+    }
+
+    private int lowestCommonAncestor(int a, int b) {
+        int first = ancestorAtDepth(a, depths.get(b));
+        int second = ancestorAtDepth(b, depths.get(a));
+        while (first != second) {
+            if (parents.get(first) == NO_NODE) {
+                return NO_NODE;
+            } else if (jumps.get(first) != jumps.get(second)) { // jumps on equal depths reach equal depths
+                first = jumps.get(first);
+                second = jumps.get(second);
+            } else {
+                first = parents.get(first);
+                second = parents.get(second);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Calls the action for the node and its descendants in pre-order - walking the sibling links, so it takes no
+     * memory besides the ids. The action may not change the subtree.
+     */
+    public void forEachInSubtree(int id, IntConsumer action) {
+        checkNode(id);
+        if (action == null) {
+            throw new NullPointerException("Action may not be null!");
+        }
+        for (int node = id; node != NO_NODE; node = nextInSubtree(id, node)) {
+            action.accept(node);
+        }
+    }
+
+    private int nextInSubtree(int root, int id) {
+        final int child = firstChildren.get(id);
+        if (child != NO_NODE) {
+            return child;
+        }
+        for (int node = id; node != root; node = parents.get(node)) {
+            final int next = nextSiblings.get(node);
+            if (next != NO_NODE) {
+                return next;
+            }
+        }
+        return NO_NODE;
+    }
+
+    /**
+     * Appends the child to the parent's children, detaching it from its former parent.
+     *
+     * @return false, if it already is a child of the parent.
+     */
+    public boolean addChild(int parent, int child) throws TreeNode.ChildValidator.ChildValidationException {
+        return attach(parent, APPEND, child);
+    }
+
+    /**
+     * Inserts the child at the given position, shifting subsequent children.
+     */
+    public boolean addChild(int parent, int index, int child) throws TreeNode.ChildValidator.ChildValidationException {
+        return attach(parent, index, child);
+    }
+
+    /**
+     * Makes the node a root.
+     *
+     * @return false, if it already is a root.
+     */
+    public boolean detach(int id) {
+        checkNode(id);
+        final int parent = parents.get(id);
+        if (parent == NO_NODE) {
+            return false;
+        } else if (!listeners.isEmpty()) {
+            return detach(parent, new int[]{id});
+        }
+        requireNoBatch();
+        unlink(id);
+        indexAncestry(id);
+        if (metrics != null) {
+            metrics.removed(1);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the node and its descendants from the store, after detaching it from its parent. Their ids are reused
+     * by the store, so flyweights of removed nodes must not be used anymore.
+     */
+    public void delete(int id) {
+        detach(id);
+        // pre-order frees ancestors first, but only the first-child links, which are read before
+        for (int node = id; node != NO_NODE; ) {
+            final int next = nextInSubtree(id, node);
+            depths.set(node, FREE);
+            firstChildren.set(node, freeIds);
+            freeIds = node;
+            size--;
+            if (!listeners.isEmpty()) {
+                listeners.remove(node);
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Links a single child right on the columns - unless listeners are registered, which need flyweights.
+     */
+    private boolean attach(int parent, int index, int child) throws TreeNode.ChildValidator.ChildValidationException {
+        if (!listeners.isEmpty()) {
+            return attach(parent, index, new int[]{child});
+        }
+        requireNoBatch();
+        checkNode(parent);
+        checkNode(child);
+        final boolean linked = parents.get(child) == parent;
+        if (!linked) {
+            checkCircle(parent, child);
+        }
+        checkPosition(parent, index);
+        if (linked) {
+            return false;
+        }
+        final int next = index == APPEND || index == childCounts.get(parent) ? NO_NODE : childAt(parent, index);
+        final boolean moving = parents.get(child) != NO_NODE;
+        if (moving) {
+            unlink(child);
+        }
+        link(parent, next, child);
+        if (metrics != null) {
+            if (moving) {
+                metrics.moved(1);
+            } else {
+                metrics.added(1);
+            }
+        }
+        return true;
+    }
+
+    private boolean attach(int parent, int index, int[] children) throws TreeNode.ChildValidator.ChildValidationException {
+        requireNoBatch();
+        checkNode(parent);
+        final int[] added = distinctNonChildren(parent, children);
+        checkPosition(parent, index);
+        if (added.length == 0) {
+            return false;
+        }
+        validate(parent, added);
+
+        final boolean notify = !listeners.isEmpty();
+        final int[] oldParents = new int[added.length];
+        final int[] oldIndexes = new int[added.length];
+        for (int i = 0; i < added.length; i++) {
+            final int child = added[i];
+            oldParents[i] = parents.get(child);
+            if (oldParents[i] != NO_NODE) {
+                oldIndexes[i] = notify ? indexOf(child) : -1;
+                unlink(child);
+            }
+        }
+        final int position = index == APPEND ? childCounts.get(parent) : index;
+        final int next = position == childCounts.get(parent) ? NO_NODE : childAt(parent, position);
+        for (int child : added) {
+            link(parent, next, child);
+        }
+        if (metrics != null) {
+            int moved = 0;
+            for (int oldParent : oldParents) {
+                moved += oldParent != NO_NODE ? 1 : 0;
+            }
+            metrics.added(added.length - moved);
+            metrics.moved(moved);
+        }
+
+        if (notify) {
+            int scopeDepth = NOT_MOVING;
+            for (int i = 0; i < added.length; i++) {
+                if (oldParents[i] != NO_NODE) {
+                    if (added.length == 1) { // like TreeNode, only single adds are moves - both events scoped alike
+                        final int commonAncestor = lowestCommonAncestor(oldParents[i], parent);
+                        scopeDepth = commonAncestor == NO_NODE ? NOT_MOVING : depths.get(commonAncestor);
+                    }
+                    fireChildrenChange(HierarchyEvent.Type.CHILDREN_REMOVED, oldParents[i], Collections.singleton(new Node(added[i])),
+                            new int[]{oldIndexes[i]}, scopeDepth);
+                }
+            }
+            fireChildrenChange(HierarchyEvent.Type.CHILDREN_ADDED, parent, nodes(added), indexes(position, added.length), scopeDepth);
+            for (int child : added) {
+                fireParentChanged(child);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the given nodes, which aren't children of the parent yet, without duplicates in the given order.
+     */
+    private int[] distinctNonChildren(int parent, int[] children) {
+        final Set<Integer> distinct = new LinkedHashSet<>();
+        for (int child : children) {
+            checkNode(child);
+            if (parents.get(child) != parent && distinct.add(child)) {
+                checkCircle(parent, child);
+            }
+        }
+        final int[] nonChildren = new int[distinct.size()];
+        int i = 0;
+        for (int child : distinct) {
+            nonChildren[i++] = child;
+        }
+        return nonChildren;
+    }
+
+    /**
+     * Appends the children of a tree under construction, which is linked top-down and checked for circles as a whole
+     * - so they are validated and counted, but neither checked for circles nor notified. See {@link TreeBuilder}.
+     */
+    private void linkBuilt(int parent, int[] children) throws TreeNode.ChildValidator.ChildValidationException {
+        requireNoBatch();
+        checkNode(parent);
+        for (int child : children) {
+            checkNode(child);
+            if (parents.get(child) != NO_NODE) {
+                throw new IllegalArgumentException("Node " + child + " has a parent already!");
+            }
+        }
+        validate(parent, children);
+        for (int child : children) {
+            link(parent, NO_NODE, child);
+        }
+        if (metrics != null) {
+            metrics.added(children.length);
+        }
+    }
+
+    private void unlinkBuilt(int parent, int[] children) {
+        int removed = 0;
+        for (int child : children) {
+            if (contains(child) && parents.get(child) == parent) {
+                unlink(child);
+                indexAncestry(child);
+                removed++;
+            }
+        }
+        if (metrics != null) {
+            metrics.removed(removed);
+        }
+    }
+
+    private void checkCircle(int parent, int child) {
+        if (child == parent || isAncestorOf(child, parent)) {
+            throw new IllegalArgumentException("Circle detected: Child is already contained in Tree above designated Parent!");
+        }
+    }
+
+    private void checkPosition(int parent, int index) {
+        if (index != APPEND && (index < 0 || index > childCounts.get(parent))) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + childCounts.get(parent));
+        }
+    }
+
+    private boolean detach(int parent, int[] children) {
+        requireNoBatch();
+        final int[] removed = childrenInOrder(parent, children);
+        if (removed.length == 0) {
+            return false;
+        }
+        final boolean notify = !listeners.isEmpty();
+        final int[] indexes = notify ? indexesOf(parent, removed) : null;
+        for (int child : removed) {
+            unlink(child);
+            indexAncestry(child);
+        }
+        if (metrics != null) {
+            metrics.removed(removed.length);
+        }
+        if (notify) {
+            fireChildrenChange(HierarchyEvent.Type.CHILDREN_REMOVED, parent, nodes(removed), indexes, NOT_MOVING);
+            for (int child : removed) {
+                fireParentChanged(child);
+            }
+        }
+        return true;
+    }
+
+    private boolean move(int parent, int[] children, int newParent) throws TreeNode.ChildValidator.ChildValidationException {
+        requireNoBatch();
+        checkNode(newParent);
+        if (newParent == parent) {
+            return false;
+        }
+        final int[] moved = childrenInOrder(parent, children);
+        if (moved.length == 0) {
+            return false;
+        }
+        // all children share the parent, so only the one on the path to the new parent can be its ancestor
+        if (isAncestorOf(parent, newParent)) {
+            final int ancestor = ancestorAtDepth(newParent, depths.get(parent) + 1);
+            for (int child : moved) {
+                if (child == ancestor) {
+                    throw new IllegalArgumentException("Circle detected: Child is already contained in Tree above designated Parent!");
+                }
+            }
+        }
+        validate(newParent, moved);
+
+        final boolean notify = !listeners.isEmpty();
+        final int[] indexes = notify ? indexesOf(parent, moved) : null;
+        final int position = childCounts.get(newParent);
+        for (int child : moved) {
+            unlink(child);
+            link(newParent, NO_NODE, child);
+        }
+        if (metrics != null) {
+            metrics.moved(moved.length);
+        }
+        if (notify) {
+            final Set<Node> movedNodes = nodes(moved);
+            final int commonAncestor = lowestCommonAncestor(parent, newParent);
+            final int scopeDepth = commonAncestor == NO_NODE ? NOT_MOVING : depths.get(commonAncestor);
+            fireChildrenChange(HierarchyEvent.Type.CHILDREN_REMOVED, parent, movedNodes, indexes, scopeDepth);
+            fireChildrenChange(HierarchyEvent.Type.CHILDREN_ADDED, newParent, movedNodes, indexes(position, moved.length), scopeDepth);
+            for (int child : moved) {
+                fireParentChanged(child);
+            }
+        }
+        return true;
+    }
+
+    private void requireNoBatch() {
+        if (HierarchyBatch.current() != null) {
+            throw new UnsupportedOperationException("Nodes of a TreeStore can't be changed within a batch!");
+        }
+    }
+
+    /**
+     * @return the given nodes, that are children of the parent, in the order of the children.
+     */
+    private int[] childrenInOrder(int parent, int[] children) {
+        checkNode(parent);
+        final Set<Integer> requested = new HashSet<>();
+        for (int child : children) {
+            if (contains(child) && parents.get(child) == parent) {
+                requested.add(child);
+            }
+        }
+        if (requested.size() == 1) {
+            return new int[]{requested.iterator().next()};
+        }
+        final int[] ordered = new int[requested.size()];
+        int i = 0;
+        for (int child = firstChildren.get(parent); i < ordered.length; child = nextSiblings.get(child)) {
+            if (requested.contains(child)) {
+                ordered[i++] = child;
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Inserts the child, which has to be a root, in front of the given sibling or at the end for {@link #NO_NODE}.
+     */
+    private void link(int parent, int next, int child) {
+        final int previous = next == NO_NODE ? lastChildren.get(parent) : previousSiblings.get(next);
+        previousSiblings.set(child, previous);
+        nextSiblings.set(child, next);
+        if (previous == NO_NODE) {
+            firstChildren.set(parent, child);
+        } else {
+            nextSiblings.set(previous, child);
+        }
+        if (next == NO_NODE) {
+            lastChildren.set(parent, child);
+        } else {
+            previousSiblings.set(next, child);
+        }
+        parents.set(child, parent);
+        childCounts.set(parent, childCounts.get(parent) + 1);
+        indexAncestry(child);
+    }
+
+    /**
+     * Cuts the child out of its siblings - leaving the ancestry of its subtree to the caller.
+     */
+    private void unlink(int child) {
+        final int parent = parents.get(child);
+        final int previous = previousSiblings.get(child);
+        final int next = nextSiblings.get(child);
+        if (previous == NO_NODE) {
+            firstChildren.set(parent, next);
+        } else {
+            nextSiblings.set(previous, next);
+        }
+        if (next == NO_NODE) {
+            lastChildren.set(parent, previous);
+        } else {
+            previousSiblings.set(next, previous);
+        }
+        parents.set(child, NO_NODE);
+        previousSiblings.set(child, NO_NODE);
+        nextSiblings.set(child, NO_NODE);
+        childCounts.set(parent, childCounts.get(parent) - 1);
+    }
+
+    /**
+     * Recomputes depth and jump pointer of the node and - top down - its subtree, as each only depends on the
+     * parent's.
+     */
+    private void indexAncestry(int id) {
+        for (int node = id; node != NO_NODE; node = nextInSubtree(id, node)) {
+            final int parent = parents.get(node);
+            if (parent == NO_NODE) {
+                depths.set(node, 0);
+                jumps.set(node, node);
+            } else {
+                final int parentJump = jumps.get(parent);
+                final int parentDepth = depths.get(parent);
+                final int parentJumpDepth = depths.get(parentJump);
+                depths.set(node, parentDepth + 1);
+                jumps.set(node, parentDepth - parentJumpDepth == parentJumpDepth - depths.get(jumps.get(parentJump))
+                        ? jumps.get(parentJump) : parent);
+            }
+        }
+    }
+
+    /**
+     * Walks from the nearer end of the siblings.
+     */
+    private int childAt(int parent, int index) {
+        final int count = childCounts.get(parent);
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        int child;
+        if (index < count / 2) {
+            child = firstChildren.get(parent);
+            for (int i = 0; i < index; i++) {
+                child = nextSiblings.get(child);
+            }
+        } else {
+            child = lastChildren.get(parent);
+            for (int i = count - 1; i > index; i--) {
+                child = previousSiblings.get(child);
+            }
+        }
+        return child;
+    }
+
+    private int indexOf(int child) {
+        int index = 0;
+        for (int sibling = previousSiblings.get(child); sibling != NO_NODE; sibling = previousSiblings.get(sibling)) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @param children children of the parent in their order.
+     */
+    private int[] indexesOf(int parent, int[] children) {
+        final int[] indexes = new int[children.length];
+        if (children.length == 1) {
+            indexes[0] = indexOf(children[0]);
+        } else {
+            int i = 0;
+            int index = 0;
+            for (int child = firstChildren.get(parent); i < children.length; child = nextSiblings.get(child), index++) {
+                if (child == children[i]) {
+                    indexes[i++] = index;
+                }
+            }
+        }
+        return indexes;
+    }
+
+    private static int[] indexes(int first, int count) {
+        final int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = first + i;
+        }
+        return indexes;
+    }
+
+    private Set<Node> nodes(int[] ids) {
+        final Set<Node> nodes = new LinkedHashSet<>();
+        for (int id : ids) {
+            nodes.add(new Node(id));
+        }
+        return Collections.unmodifiableSet(nodes);
+    }
+
+    private int[] ids(Collection<? extends Node> nodes) {
+        if (nodes == null) {
+            throw new NullPointerException("Collection of children may not be null!");
+        }
+        final int[] ids = new int[nodes.size()];
+        int i = 0;
+        for (Node node : nodes) {
+            if (node == null) {
+                throw new NullPointerException("Collection of children may not contain null-elements!");
+            }
+            ids[i++] = id(node);
+        }
+        return ids;
+    }
+
+    private int id(Node node) {
+        if (node.store() != this) {
+            throw new IllegalArgumentException("Node " + node + " belongs to another TreeStore!");
+        }
+        return node.id;
+    }
+
+    private Listeners listeners(int id) {
+        return listeners.computeIfAbsent(id, key -> new Listeners());
+    }
+
+    private <L> boolean removeListener(int id, L listener, Set<L> registered) {
+        final boolean removed = registered.remove(listener);
+        final Listeners nodeListeners = listeners.get(id);
+        if (nodeListeners != null && nodeListeners.isEmpty()) {
+            listeners.remove(id);
+        }
+        return removed;
+    }
+
+    /**
+     * Creates flyweights for the validators only, if the parent has any.
+     */
+    private void validate(int parent, int[] children) throws TreeNode.ChildValidator.ChildValidationException {
+        final Listeners parentListeners = listeners.isEmpty() ? null : listeners.get(parent);
+        if (parentListeners == null || (parentListeners.validators.isEmpty() && parentListeners.asyncValidators.isEmpty())) {
+            return;
+        }
+        final List<Node> nodes = new ArrayList<>(children.length);
+        for (int child : children) {
+            nodes.add(new Node(child));
+        }
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            TreeNode.validateChildren(new Node(parent), Collections.unmodifiableList(nodes),
+                    parentListeners.validators, parentListeners.asyncValidators);
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            if (metrics != null) {
+                metrics.validated(System.nanoTime() - start, true);
+            }
+            throw e;
+        }
+        if (metrics != null) {
+            metrics.validated(System.nanoTime() - start, false);
+        }
+    }
+
+    /**
+     * Delivers the change up the ancestors like {@link TreeNode} - except to ancestors of the move's scope.
+     */
+    private void fireChildrenChange(HierarchyEvent.Type type, int parent, Set<Node> children, int[] indexes, int scopeDepth) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        TreeNode.beginNotifying();
+        try {
+            int callbacks = 0;
+            final Node changedNode = new Node(parent);
+            HierarchyEvent<Node> event = null;
+            for (int id = parent; id != NO_NODE; id = parents.get(id)) {
+                final Listeners nodeListeners = listeners.get(id);
+                if (nodeListeners == null) {
+                    continue;
+                }
+                if (id == parent || depths.get(id) > scopeDepth) {
+                    for (TreeNode.HierarchyObserver<Node> observer : nodeListeners.observers) {
+                        callbacks++;
+                        if (type == HierarchyEvent.Type.CHILDREN_ADDED) {
+                            observer.onChildrenAdded(new Node(id), changedNode, children, indexes);
+                        } else {
+                            observer.onChildrenRemoved(new Node(id), changedNode, children, indexes);
+                        }
+                    }
+                }
+                if (!nodeListeners.subtreeObservers.isEmpty()) {
+                    if (event == null) {
+                        event = new HierarchyEvent<>(type, changedNode, children, indexes, null, changedNode.getPathFromRoot());
+                    }
+                    callbacks += nodeListeners.subtreeObservers.size();
+                    for (TreeNode.SubtreeObserver<Node> observer : nodeListeners.subtreeObservers) {
+                        observer.onSubtreeChanged(new Node(id), event);
+                    }
+                }
+            }
+            recordNotification(start, callbacks);
+        } finally {
+            TreeNode.endNotifying();
+        }
+    }
+
+    private void fireParentChanged(int child) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        TreeNode.beginNotifying();
+        try {
+            int callbacks = 0;
+            final Node source = new Node(child);
+            final Optional<Node> newParent = source.getParent();
+            final Listeners childListeners = listeners.get(child);
+            if (childListeners != null) {
+                callbacks += childListeners.observers.size();
+                for (TreeNode.HierarchyObserver<Node> observer : childListeners.observers) {
+                    observer.onParentChanged(source, newParent);
+                }
+            }
+            HierarchyEvent<Node> event = null;
+            for (int id = child; id != NO_NODE; id = parents.get(id)) {
+                final Listeners nodeListeners = listeners.get(id);
+                if (nodeListeners != null && !nodeListeners.subtreeObservers.isEmpty()) {
+                    if (event == null) {
+                        event = new HierarchyEvent<>(HierarchyEvent.Type.PARENT_CHANGED, source, Collections.emptySet(), null, newParent, source.getPathFromRoot());
+                    }
+                    callbacks += nodeListeners.subtreeObservers.size();
+                    for (TreeNode.SubtreeObserver<Node> observer : nodeListeners.subtreeObservers) {
+                        observer.onSubtreeChanged(new Node(id), event);
+                    }
+                }
+            }
+            recordNotification(start, callbacks);
+        } finally {
+            TreeNode.endNotifying();
+        }
+    }
+
+    /**
+     * Changes are notified, as soon as the store has any listeners - but only count, if observers were called.
+     */
+    private void recordNotification(long start, int callbacks) {
+        if (metrics != null && callbacks > 0) {
+            metrics.notified(System.nanoTime() - start, callbacks);
+        }
+    }
+
+    /**
+     * Post-order over the subtree without recursion: each node's value is computed from its children's values, which
+     * are the topmost ones on the stack at that time.
+     */
+    private <A> A fold(int root, Fold<A> fold) {
+        final List<A> values = new ArrayList<>();
+        int node = root;
+        while (firstChildren.get(node) != NO_NODE) {
+            node = firstChildren.get(node);
+        }
+        while (true) {
+            final List<A> childValues = values.subList(values.size() - childCounts.get(node), values.size());
+            final A value = fold.apply(node, childValues);
+            childValues.clear();
+            values.add(value);
+            if (node == root) {
+                return value;
+            }
+            final int next = nextSiblings.get(node);
+            if (next == NO_NODE) {
+                node = parents.get(node);
+            } else {
+                node = next;
+                while (firstChildren.get(node) != NO_NODE) {
+                    node = firstChildren.get(node);
+                }
+            }
+        }
+    }
+
+    private interface Fold<A> {
+        A apply(int node, List<A> childValues);
+    }
+
+    private static final class Listeners {
+        private final Set<TreeNode.HierarchyObserver<Node>> observers = new CopyOnWriteArraySet<>();
+        private final Set<TreeNode.SubtreeObserver<Node>> subtreeObservers = new CopyOnWriteArraySet<>();
+        private final Set<TreeNode.ChildValidator<Node>> validators = new CopyOnWriteArraySet<>();
+        private final Set<TreeNode.AsyncChildValidator<Node>> asyncValidators = new CopyOnWriteArraySet<>();
+
+        private boolean isEmpty() {
+            return observers.isEmpty() && subtreeObservers.isEmpty() && validators.isEmpty() && asyncValidators.isEmpty();
+        }
+    }
+
+    /**
+     * Flyweight for a node of the store. All hierarchy state lives in the store - cached {@link #aggregate aggregates}
+     * included, which are computed on every call therefore - and changes are notified by the store.
+     * {@link TreeNode#batch(HierarchyAction) Batches} aren't supported.
+     */
+    public final class Node extends TreeNode<Node> {
+
+        private final int id;
+
+        private Node(int id) {
+            super((ChildStore<Node>) null, null); // a view without children or listeners of its own
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        private TreeStore store() {
+            return TreeStore.this;
+        }
+
+        @Override
+        public Optional<Node> getParent() {
+            return Optional.ofNullable(parentNode());
+        }
+
+        @Override
+        Node parentNode() {
+            final int parent = TreeStore.this.getParent(id);
+            return parent == NO_NODE ? null : new Node(parent);
+        }
+
+        @Override
+        boolean isLeaf() {
+            return getChildCount() == 0;
+        }
+
+        @Override
+        public void setParent(Node newParent) throws ChildValidator.ChildValidationException {
+            if (newParent == null) {
+                detach(id);
+            } else if (newParent.equals(this)) {
+                throw new IllegalArgumentException("TreeNode " + this + " cannot be parent to itself!");
+            } else {
+                TreeStore.this.addChild(id(newParent), id);
+            }
+        }
+
+        /**
+         * @return unmodifiable live view of the children - a {@link List} with sequential access only.
+         */
+        @Override
+        public Collection<Node> getChildren() {
+            checkNode(id);
+            return new Children(id);
+        }
+
+        @Override
+        public int getChildCount() {
+            return TreeStore.this.getChildCount(id);
+        }
+
+        @Override
+        public boolean hasOrderedChildren() {
+            return true;
+        }
+
+        /**
+         * Walks the siblings from the nearer end.
+         */
+        @Override
+        public Node getChildAt(int index) {
+            checkNode(id);
+            return new Node(childAt(id, index));
+        }
+
+        @Override
+        public int indexOf(Node child) {
+            checkNode(id);
+            return child != null && child.store() == store() && contains(child.id) && parents.get(child.id) == id
+                    ? TreeStore.this.indexOf(child.id) : -1;
+        }
+
+        @Override
+        public boolean isAncestorOf(Node node) {
+            return node != null && node.store() == store() && TreeStore.this.isAncestorOf(id, node.id);
+        }
+
+        @Override
+        public int getDepth() {
+            return TreeStore.this.getDepth(id);
+        }
+
+        @Override
+        public Node getAncestorAtDepth(int depth) {
+            return new Node(TreeStore.this.getAncestorAtDepth(id, depth));
+        }
+
+        @Override
+        public Optional<Node> getLowestCommonAncestor(Node node) {
+            if (node == null) {
+                throw new NullPointerException("Node may not be null!");
+            }
+            final int commonAncestor = TreeStore.this.getLowestCommonAncestor(id, id(node));
+            return commonAncestor == NO_NODE ? Optional.empty() : Optional.of(new Node(commonAncestor));
+        }
+
+        @Override
+        public int getDistance(Node node) {
+            if (node == null) {
+                throw new NullPointerException("Node may not be null!");
+            }
+            return TreeStore.this.getDistance(id, id(node));
+        }
+
+        @Override
+        public List<Node> getPathTo(Node node) {
+            final Optional<Node> commonAncestor = getLowestCommonAncestor(node);
+            if (!commonAncestor.isPresent()) {
+                return Collections.emptyList();
+            }
+            final int ancestor = commonAncestor.get().id;
+            final Node[] path = new Node[getDistance(node) + 1];
+            int up = 0;
+            for (int current = id; current != ancestor; current = parents.get(current)) {
+                path[up++] = new Node(current);
+            }
+            int down = path.length - 1;
+            for (int current = node.id; current != ancestor; current = parents.get(current)) {
+                path[down--] = new Node(current);
+            }
+            path[up] = commonAncestor.get();
+            return Collections.unmodifiableList(Arrays.asList(path));
+        }
+
+        @Override
+        public List<Node> getPathFromRoot() {
+            final Node[] path = new Node[getDepth() + 1];
+            int node = id;
+            for (int i = path.length - 1; i >= 0; i--) {
+                path[i] = new Node(node);
+                node = parents.get(node);
+            }
+            return Collections.unmodifiableList(Arrays.asList(path));
+        }
+
+        @Override
+        public boolean addChild(Node child) throws ChildValidator.ChildValidationException {
+            return attach(id, APPEND, ids(Collections.singleton(child)));
+        }
+
+        @Override
+        public boolean addChild(int index, Node child) throws ChildValidator.ChildValidationException {
+            return attach(id, index, ids(Collections.singleton(child)));
+        }
+
+        @Override
+        public boolean addChildren(Collection<? extends Node> children) throws ChildValidator.ChildValidationException {
+            return attach(id, APPEND, ids(children));
+        }
+
+        @Override
+        public boolean addChildren(int index, Collection<? extends Node> children) throws ChildValidator.ChildValidationException {
+            return attach(id, index, ids(children));
+        }
+
+        @Override
+        public boolean moveChildren(Collection<? extends Node> children, Node newParent) throws ChildValidator.ChildValidationException {
+            if (newParent == null) {
+                throw new NullPointerException("New parent may not be null!");
+            }
+            return move(id, ids(children), id(newParent));
+        }
+
+        @Override
+        public boolean removeChild(Node child) {
+            return child != null && child.store() == store() && detach(id, new int[]{child.id});
+        }
+
+        /**
+         * Links the built children in the store - which isn't thread-safe, so it can't be built
+         * {@link TreeBuilder#parallel() in parallel}.
+         */
+        @Override
+        void linkBuiltChildren(List<Node> children) throws ChildValidator.ChildValidationException {
+            linkBuilt(id, ids(children));
+        }
+
+        @Override
+        void unlinkBuiltChildren(List<Node> children) {
+            unlinkBuilt(id, ids(children));
+        }
+
+        @Override
+        public boolean removeChildren(Collection<? extends Node> children) {
+            return detach(id, ids(children));
+        }
+
+        @Override
+        public void clearChildren() {
+            removeChildren(getChildren());
+        }
+
+        @Override
+        public HierarchyObserver<Node> addObserver(HierarchyObserver<Node> hierarchyObserver) {
+            if (hierarchyObserver == null) {
+                throw new NullPointerException("Observer may not be null!");
+            }
+            checkNode(id);
+            if (listeners.containsKey(id)) {
+                WeakHierarchyObserver.purge(listeners.get(id).observers);
+            }
+            listeners(id).observers.add(hierarchyObserver);
+            return hierarchyObserver;
+        }
+
+        @Override
+        public boolean removeObserver(HierarchyObserver<Node> hierarchyObserver) {
+            return listeners.containsKey(id) && removeListener(id, hierarchyObserver, listeners.get(id).observers);
+        }
+
+        @Override
+        public SubtreeObserver<Node> addSubtreeObserver(SubtreeObserver<Node> subtreeObserver) {
+            if (subtreeObserver == null) {
+                throw new NullPointerException("Observer may not be null!");
+            }
+            checkNode(id);
+            listeners(id).subtreeObservers.add(subtreeObserver);
+            return subtreeObserver;
+        }
+
+        @Override
+        public boolean removeSubtreeObserver(SubtreeObserver<Node> subtreeObserver) {
+            return listeners.containsKey(id) && removeListener(id, subtreeObserver, listeners.get(id).subtreeObservers);
+        }
+
+        @Override
+        public void addChildValidator(ChildValidator<Node> childValidator) {
+            checkNode(id);
+            listeners(id).validators.add(childValidator);
+        }
+
+        @Override
+        public void removeChildValidator(ChildValidator<Node> childValidator) {
+            if (listeners.containsKey(id)) {
+                removeListener(id, childValidator, listeners.get(id).validators);
+            }
+        }
+
+        @Override
+        public void addAsyncChildValidator(AsyncChildValidator<Node> childValidator) {
+            checkNode(id);
+            listeners(id).asyncValidators.add(childValidator);
+        }
+
+        @Override
+        public void removeAsyncChildValidator(AsyncChildValidator<Node> childValidator) {
+            if (listeners.containsKey(id)) {
+                removeListener(id, childValidator, listeners.get(id).asyncValidators);
+            }
+        }
+
+        /**
+         * @return the aggregate's value for the subtree of this node - computed on every call, walking the subtree.
+         */
+        @Override
+        public <A> A aggregate(SubtreeAggregate<Node, A> aggregate) {
+            if (aggregate == null) {
+                throw new NullPointerException("Aggregate may not be null!");
+            }
+            checkNode(id);
+            return fold(id, (node, childValues) -> {
+                A childrenValue = aggregate.identity();
+                for (A childValue : childValues) {
+                    childrenValue = aggregate.combine(childrenValue, childValue);
+                }
+                return aggregate.ofNode(new Node(node), childrenValue);
+            });
+        }
+
+        /**
+         * @return an immutable copy of this node's subtree.
+         */
+        @Override
+        public TreeSnapshot<Node> snapshot() {
+            checkNode(id);
+            return fold(id, (node, childSnapshots) ->
+                    new TreeSnapshot<>(new Node(node), Collections.unmodifiableList(new ArrayList<>(childSnapshots))));
+        }
+
+        /**
+         * Sets the {@link TreeStore#setMetrics(TreeMetrics) metrics of the whole store}, as it doesn't record them per
+         * subtree.
+         */
+        @Override
+        public void setMetrics(TreeMetrics metrics) {
+            TreeStore.this.setMetrics(metrics);
+        }
+
+        @Override
+        public Optional<TreeMetrics> getMetrics() {
+            return TreeStore.this.getMetrics();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Node && ((Node) obj).store() == store() && ((Node) obj).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "Node " + id;
+        }
+    }
+
+    private final class Children extends AbstractList<Node> {
+
+        private final int parent;
+
+        private Children(int parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public Node get(int index) {
+            return new Node(childAt(parent, index));
+        }
+
+        @Override
+        public int size() {
+            return childCounts.get(parent);
+        }
+
+        @Override
+        public Iterator<Node> iterator() {
+            return new Iterator<Node>() {
+                private int next = firstChildren.get(parent);
+
+                @Override
+                public boolean hasNext() {
+                    return next != NO_NODE;
+                }
+
+                @Override
+                public Node next() {
+                    if (next == NO_NODE) {
+                        throw new NoSuchElementException();
+                    }
+                    final Node node = new Node(next);
+                    next = nextSiblings.get(next);
+                    return node;
+                }
+            };
+        }
+    }
+
+    /**
+     * One int per node.
+     */
+    private static abstract class Column {
+
+        static Column create(Backing backing, int capacity) {
+            return backing == Backing.OFF_HEAP ? new Direct(capacity) : new Heap(new int[capacity]);
+        }
+
+        abstract int get(int id);
+
+        abstract void set(int id, int value);
+
+        abstract Column resize(int capacity);
+
+        private static final class Heap extends Column {
+            private final int[] values;
+
+            private Heap(int[] values) {
+                this.values = values;
+            }
+
+            @Override
+            int get(int id) {
+                return values[id];
+            }
+
+            @Override
+            void set(int id, int value) {
+                values[id] = value;
+            }
+
+            @Override
+            Column resize(int capacity) {
+                return new Heap(Arrays.copyOf(values, capacity));
+            }
+        }
+
+        private static final class Direct extends Column {
+            private final IntBuffer values;
+
+            private Direct(int capacity) {
+                this.values = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+
+            @Override
+            int get(int id) {
+                return values.get(id);
+            }
+
+            @Override
+            void set(int id, int value) {
+                values.put(id, value);
+            }
+
+            @Override
+            Column resize(int capacity) {
+                final Direct resized = new Direct(capacity);
+                final IntBuffer source = values.duplicate();
+                source.rewind();
+                resized.values.put(source);
+                return resized;
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.brainbytes.common.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Decorator, that references another observer only {@link Strength#WEAK weakly} or {@link Strength#SOFT softly}, so
+ * registering it doesn't keep the observer from being collected - e.g. views, that observe a long-lived tree.
+ * <p>
+ * Once the observer is collected, the decorator unregisters itself from its node: on its next notification or, at
+ * the latest, on the next registration of an observer at that node, which purges the node's collected ones. So
+ * neither memory nor the cost of dispatching events grows with forgotten observers, while registering at one node
+ * never touches the observers of others - nor their trees.
+ * Register it by {@link TreeNode#addObserver(TreeNode.HierarchyObserver, Strength)} and remove it by the returned
+ * reference.
+ *
+ * @param <T> Type of the concrete TreeNode-Implementation.
+ * @author Fabian Krippendorff
+ */
+public final class WeakHierarchyObserver<T extends TreeNode<T>> implements TreeNode.HierarchyObserver<T> {
+
+    private final TreeNode<T> node;
+    private final Reference<TreeNode.HierarchyObserver<T>> observer;
+
+    WeakHierarchyObserver(TreeNode<T> node, TreeNode.HierarchyObserver<T> observer, Strength strength) {
+        if (observer == null) {
+            throw new NullPointerException("Observer may not be null!");
+        } else if (strength == null) {
+            throw new NullPointerException("Strength may not be null!");
+        }
+        this.node = node;
+        this.observer = strength == Strength.WEAK ? new WeakReference<>(observer) : new SoftReference<>(observer);
+    }
+
+    /**
+     * Unregisters the decorators among a node's observers, whose observers were collected - in time linear to the
+     * node's observers, which registering another one copies anyway.
+     */
+    static <T extends TreeNode<T>> void purge(Collection<TreeNode.HierarchyObserver<T>> observers) {
+        List<WeakHierarchyObserver<T>> collected = null;
+        for (TreeNode.HierarchyObserver<T> registered : observers) {
+            if (registered instanceof WeakHierarchyObserver && ((WeakHierarchyObserver<T>) registered).observer.get() == null) {
+                if (collected == null) {
+                    collected = new ArrayList<>();
+                }
+                collected.add((WeakHierarchyObserver<T>) registered);
+            }
+        }
+        if (collected != null) {
+            collected.forEach(WeakHierarchyObserver::unregister);
+        }
+    }
+
+    /**
+     * @return the observer or null, if it was collected.
+     */
+    public TreeNode.HierarchyObserver<T> getObserver() {
+        return observer.get();
+    }
+
+    private TreeNode.HierarchyObserver<T> observerOrUnregister() {
+        final TreeNode.HierarchyObserver<T> referent = observer.get();
+        if (referent == null) {
+            unregister();
+        }
+        return referent;
+    }
+
+    private void unregister() {
+        node.removeObserver(this);
+    }
+
+    @Override
+    public void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren, int[] indexes) {
+        final TreeNode.HierarchyObserver<T> referent = observerOrUnregister();
+        if (referent != null) {
+            referent.onChildrenAdded(eventSource, changedNode, addedChildren, indexes);
+        }
+    }
+
+    @Override
+    public void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren, int[] indexes) {
+        final TreeNode.HierarchyObserver<T> referent = observerOrUnregister();
+        if (referent != null) {
+            referent.onChildrenRemoved(eventSource, changedNode, removedChildren, indexes);
+        }
+    }
+
+    @Override
+    public void onParentChanged(T source, Optional<T> newParent) {
+        final TreeNode.HierarchyObserver<T> referent = observerOrUnregister();
+        if (referent != null) {
+            referent.onParentChanged(source, newParent);
+        }
+    }
+
+    /**
+     * How the observer is referenced.
+     */
+    public enum Strength {
+        /**
+         * Collected as soon as nothing else references the observer.
+         */
+        WEAK,
+        /**
+         * Kept, while memory suffices, even if nothing else references the observer - for caches.
+         */
+        SOFT
+    }
+}
@@ -0,0 +1,271 @@
+package de.brainbytes.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class AsyncHierarchyObserverTest {
+
+    private TestTreeNode nodeUnderTest;
+    private Queue<Runnable> scheduledTasks;
+    private Executor manualExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        nodeUnderTest = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        scheduledTasks = new ArrayDeque<>();
+        manualExecutor = scheduledTasks::add;
+    }
+
+    private void runScheduledTasks() {
+        while (!scheduledTasks.isEmpty()) {
+            scheduledTasks.poll().run();
+        }
+    }
+
+    @Test
+    public void eventsAreDeliveredOnExecutorInOrder() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<String> events = Collections.synchronizedList(new ArrayList<>());
+            Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+            CountDownLatch delivered = new CountDownLatch(100);
+            nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+                @Override
+                public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                    events.add("added " + indexes[0]);
+                    threads.add(Thread.currentThread());
+                    delivered.countDown();
+                }
+            }, executor);
+
+            for (int i = 0; i < 100; i++) {
+                nodeUnderTest.addChild(new TestTreeNode());
+            }
+
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++) {
+                assertThat(events.get(i), is("added " + i));
+            }
+            assertThat(threads, not(contains(Thread.currentThread())));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void mutatingThreadOnlyEnqueues() throws Exception {
+        List<TestTreeNode> added = new ArrayList<>();
+        AsyncHierarchyObserver<TestTreeNode> observer = new AsyncHierarchyObserver<>(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                added.addAll(addedChildren);
+            }
+        }, manualExecutor);
+        nodeUnderTest.addObserver(observer);
+
+        TestTreeNode child = new TestTreeNode();
+        nodeUnderTest.addChild(child);
+        assertThat(added, is(empty()));
+        assertThat(observer.getPendingCount(), is(1));
+        assertThat("Only one drain task at a time.", scheduledTasks.size(), is(1));
+
+        runScheduledTasks();
+        assertThat(added, contains(child));
+        assertThat(observer.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void eventsBehindAnErrorAreDeliveredByANewTask() throws Exception {
+        List<TestTreeNode> added = new ArrayList<>();
+        TestTreeNode failing = new TestTreeNode();
+        AsyncHierarchyObserver<TestTreeNode> observer = new AsyncHierarchyObserver<>(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                if (addedChildren.contains(failing)) {
+                    throw new AssertionError("failing observer");
+                }
+                added.addAll(addedChildren);
+            }
+        }, manualExecutor);
+        nodeUnderTest.addObserver(observer);
+
+        TestTreeNode next = new TestTreeNode();
+        nodeUnderTest.addChild(failing);
+        nodeUnderTest.addChild(next);
+        try {
+            scheduledTasks.poll().run();
+            fail("Expected the error to end the task!");
+        } catch (AssertionError e) {
+            assertThat(e.getMessage(), is("failing observer"));
+        }
+        assertThat("The events behind are rescheduled.", scheduledTasks.size(), is(1));
+
+        runScheduledTasks();
+        assertThat(added, contains(next));
+
+        TestTreeNode last = new TestTreeNode();
+        nodeUnderTest.addChild(last);
+        runScheduledTasks();
+        assertThat(added, contains(next, last));
+    }
+
+    @Test
+    public void dropOldestDiscardsEventsBeyondCapacity() throws Exception {
+        List<TestTreeNode> added = new ArrayList<>();
+        AsyncHierarchyObserver<TestTreeNode> observer = new AsyncHierarchyObserver<>(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                added.addAll(addedChildren);
+            }
+        }, manualExecutor, 2, AsyncHierarchyObserver.Backpressure.DROP_OLDEST);
+        nodeUnderTest.addObserver(observer);
+
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        nodeUnderTest.addChild(a);
+        nodeUnderTest.addChild(b);
+        nodeUnderTest.addChild(c);
+        runScheduledTasks();
+
+        assertThat(added, contains(b, c));
+        assertThat(observer.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void coalesceMergesPendingEventsWithIndexes() throws Exception {
+        List<Set<TestTreeNode>> added = new ArrayList<>();
+        List<int[]> addedIndexes = new ArrayList<>();
+        nodeUnderTest.addObserver(new AsyncHierarchyObserver<>(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                added.add(addedChildren);
+                addedIndexes.add(indexes);
+            }
+        }, manualExecutor, 1, AsyncHierarchyObserver.Backpressure.COALESCE));
+
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        nodeUnderTest.addChild(a);
+        nodeUnderTest.addChild(b);
+        nodeUnderTest.addChild(0, c);
+        runScheduledTasks();
+
+        assertThat(nodeUnderTest.getChildren(), contains(c, a, b));
+        assertThat(added.size(), is(1));
+        assertThat(added.get(0), contains(c, a, b));
+        assertArrayEquals(new int[]{0, 1, 2}, addedIndexes.get(0));
+    }
+
+    @Test
+    public void coalescedBurstsKeepTheIndexesOfTheFinalAndFormerState() throws Exception {
+        List<Set<TestTreeNode>> added = new ArrayList<>();
+        List<int[]> addedIndexes = new ArrayList<>();
+        List<Set<TestTreeNode>> removed = new ArrayList<>();
+        List<int[]> removedIndexes = new ArrayList<>();
+        nodeUnderTest.addObserver(new AsyncHierarchyObserver<>(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                added.add(addedChildren);
+                addedIndexes.add(indexes);
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren, int[] indexes) {
+                removed.add(removedChildren);
+                removedIndexes.add(indexes);
+            }
+        }, manualExecutor, 1, AsyncHierarchyObserver.Backpressure.COALESCE));
+        Random random = new Random(42);
+        Set<TestTreeNode> burst = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            TestTreeNode child = new TestTreeNode();
+            burst.add(child);
+            nodeUnderTest.addChild(random.nextInt(nodeUnderTest.getChildCount() + 1), child);
+        }
+        runScheduledTasks();
+
+        List<TestTreeNode> children = new ArrayList<>(nodeUnderTest.getChildren());
+        assertThat(added.size(), is(1));
+        assertThat(new ArrayList<>(added.get(0)), is(children));
+        assertArrayEquals(burst.stream().mapToInt(children::indexOf).sorted().toArray(), addedIndexes.get(0));
+
+        List<TestTreeNode> formerChildren = new ArrayList<>(children);
+        Set<TestTreeNode> removedBurst = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            TestTreeNode child = nodeUnderTest.getChildAt(random.nextInt(nodeUnderTest.getChildCount()));
+            removedBurst.add(child);
+            nodeUnderTest.removeChild(child);
+        }
+        runScheduledTasks();
+
+        assertThat(removed.size(), is(1));
+        assertThat(removed.get(0), is(removedBurst));
+        assertThat(new ArrayList<>(removed.get(0)), is(formerChildren.stream().filter(removedBurst::contains).collect(Collectors.toList())));
+        assertArrayEquals(removedBurst.stream().mapToInt(formerChildren::indexOf).sorted().toArray(), removedIndexes.get(0));
+    }
+
+    @Test
+    public void blockWaitsForSpace() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ExecutorService mutator = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            List<TestTreeNode> added = Collections.synchronizedList(new ArrayList<>());
+            AsyncHierarchyObserver<TestTreeNode> observer = new AsyncHierarchyObserver<>(new TreeNode.HierarchyObserver<TestTreeNode>() {
+                @Override
+                public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    added.addAll(addedChildren);
+                }
+            }, executor, 1, AsyncHierarchyObserver.Backpressure.BLOCK);
+            nodeUnderTest.addObserver(observer);
+
+            nodeUnderTest.addChild(new TestTreeNode()); // taken by the drain task, which waits for release
+            while (observer.getPendingCount() > 0) {
+                Thread.yield();
+            }
+            nodeUnderTest.addChild(new TestTreeNode()); // fills the queue
+
+            Future<?> blocked = mutator.submit(() -> nodeUnderTest.addChild(new TestTreeNode()));
+            try {
+                blocked.get(200, TimeUnit.MILLISECONDS);
+                fail("Adding should block while the queue is full!");
+            } catch (TimeoutException e) {
+                // expected
+            }
+
+            release.countDown();
+            blocked.get(5, TimeUnit.SECONDS);
+            while (added.size() < 3) {
+                Thread.yield();
+            }
+            assertThat(observer.getDroppedCount(), is(0L));
+        } finally {
+            executor.shutdownNow();
+            mutator.shutdownNow();
+        }
+    }
+
+    private static class TestTreeNode extends TreeNode<TestTreeNode> {
+
+        TestTreeNode() {
+        }
+
+        TestTreeNode(ChildOrder childOrder) {
+            super(childOrder);
+        }
+    }
+}
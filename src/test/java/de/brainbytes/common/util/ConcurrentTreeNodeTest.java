@@ -0,0 +1,442 @@
+package de.brainbytes.common.util;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ConcurrentTreeNodeTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void workersBuildSubtreesOfOneTreeInParallel() throws Exception {
+        TestTreeNode root = new TestTreeNode();
+        List<TestTreeNode> subtreeRoots = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            subtreeRoots.add(new TestTreeNode());
+        }
+        root.addChildren(subtreeRoots);
+
+        AtomicInteger added = new AtomicInteger();
+        root.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                added.addAndGet(addedChildren.size());
+            }
+        });
+
+        runConcurrently(worker -> {
+            TestTreeNode subtreeRoot = subtreeRoots.get(worker);
+            for (int i = 0; i < 100; i++) {
+                TestTreeNode inner = new TestTreeNode();
+                subtreeRoot.addChild(inner);
+                for (int j = 0; j < 10; j++) {
+                    inner.addChild(new TestTreeNode());
+                }
+            }
+        });
+
+        for (TestTreeNode subtreeRoot : subtreeRoots) {
+            assertThat(subtreeRoot.getChildCount(), is(100));
+            for (TestTreeNode inner : subtreeRoot.getChildren()) {
+                assertThat(inner.getChildCount(), is(10));
+                assertThat(inner.getDepth(), is(2));
+            }
+        }
+        assertThat(added.get(), is(THREADS * 100 * 11));
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(1 + THREADS * (1 + 100 * 11)));
+        assertHierarchyIsConsistent(allNodes(root));
+    }
+
+    @Test
+    public void randomConcurrentMovesKeepHierarchyConsistent() throws Exception {
+        List<TestTreeNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            nodes.add(new TestTreeNode(i % 2 == 0 ? TreeNode.ChildOrder.ORDERED : TreeNode.ChildOrder.UNORDERED));
+        }
+
+        runConcurrently(worker -> {
+            Random random = new Random(worker);
+            for (int i = 0; i < 20000; i++) {
+                TestTreeNode node = nodes.get(random.nextInt(nodes.size()));
+                TestTreeNode other = nodes.get(random.nextInt(nodes.size()));
+                try {
+                    switch (random.nextInt(6)) {
+                        case 0:
+                            node.setParent(null);
+                            break;
+                        case 1:
+                            other.removeChildren(node.getChildren());
+                            break;
+                        case 2:
+                            node.moveChildren(node.getChildren(), other);
+                            break;
+                        default:
+                            node.setParent(other);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // circle or self-parenting - expected to be rejected
+                }
+            }
+        });
+
+        assertHierarchyIsConsistent(nodes);
+    }
+
+    @Test
+    public void opposingMovesOfSubtreesNeverCreateCircles() throws Exception {
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        a.addChild(new TestTreeNode());
+        b.addChild(new TestTreeNode());
+
+        runConcurrently(worker -> {
+            TestTreeNode child = worker % 2 == 0 ? a : b;
+            TestTreeNode parent = worker % 2 == 0 ? b : a;
+            for (int i = 0; i < 5000; i++) {
+                try {
+                    child.setParent(parent);
+                } catch (IllegalArgumentException e) {
+                    // parent is already below child
+                }
+                child.setParent(null);
+            }
+        });
+
+        assertHierarchyIsConsistent(allNodes(a, b));
+    }
+
+    @Test
+    public void builtTreesKeepConsistentWhileSubtreesMoveConcurrently() throws Exception {
+        int trees = 2000;
+        Map<Integer, TestTreeNode> nodes = new ConcurrentHashMap<>();
+        TreeBuilder<int[], Integer, TestTreeNode> builder = new TreeBuilder<>(record -> record[0], record -> record[1] < 0 ? null : record[1], record -> {
+            TestTreeNode node = new TestTreeNode();
+            nodes.put(record[0], node);
+            return node;
+        });
+        // each tree: 0 -> 1 -> 2 -> 3 and 0 -> 4 -> 5 -> 6
+        int[] parents = {-1, 0, 1, 2, 0, 4, 5};
+        List<TestTreeNode> roots = builder.build(IntStream.range(0, trees * parents.length)
+                .mapToObj(id -> new int[]{id, parents[id % parents.length] < 0 ? -1 : id - id % parents.length + parents[id % parents.length]}));
+
+        runConcurrently(worker -> {
+            for (int tree = 0; tree < trees; tree++) {
+                int base = tree * parents.length;
+                TestTreeNode child = nodes.get(base + (worker % 2 == 0 ? 2 : 5));
+                TestTreeNode parent = nodes.get(base + (worker % 2 == 0 ? 6 : 3));
+                try {
+                    child.setParent(parent);
+                } catch (IllegalArgumentException e) {
+                    // parent is already below child
+                }
+            }
+        });
+
+        for (TestTreeNode root : roots) {
+            assertHierarchyIsConsistent(allNodes(root));
+            assertThat(root.stream(TreeNode.TraversalOrder.PRE_ORDER).count(), is((long) parents.length));
+        }
+    }
+
+    @Test
+    public void clearingIsAtomicTowardsConcurrentAdding() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+
+        runConcurrently(worker -> {
+            for (int i = 0; i < 2000; i++) {
+                if (worker == 0) {
+                    parent.clearChildren();
+                } else {
+                    parent.addChild(0, new TestTreeNode());
+                }
+            }
+        });
+
+        parent.clearChildren();
+        assertThat(parent.getChildCount(), is(0));
+    }
+
+    @Test
+    public void childrenAreReturnedAsSnapshot() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode child = new TestTreeNode();
+        parent.addChild(child);
+
+        Collection<TestTreeNode> children = parent.getChildren();
+        parent.removeChild(child);
+
+        assertThat(children, contains(child));
+        assertThat(parent.getChildren(), is(empty()));
+    }
+
+    @Test
+    public void singleChangesDontCopyTheChildrenOfOrderedParents() throws Exception {
+        CopyCountingTreeNode parent = new CopyCountingTreeNode();
+        CopyCountingTreeNode child = new CopyCountingTreeNode();
+        parent.addChild(new CopyCountingTreeNode());
+        parent.addChild(child);
+        parent.removeChild(child);
+        assertThat(parent.copies, is(0));
+
+        List<int[]> removedIndexes = new ArrayList<>();
+        parent.addObserver(new TreeNode.HierarchyObserver<CopyCountingTreeNode>() {
+            @Override
+            public void onChildrenRemoved(CopyCountingTreeNode eventSource, CopyCountingTreeNode changedNode, Set<CopyCountingTreeNode> removedChildren, int[] indexes) {
+                removedIndexes.add(indexes);
+            }
+        });
+        parent.addChild(0, child);
+        parent.removeChild(child);
+        assertThat(parent.copies, is(0));
+        assertThat(removedIndexes.size(), is(1));
+        assertArrayEquals(new int[]{0}, removedIndexes.get(0));
+    }
+
+    @Test
+    public void snapshotsStayConsistentWhileWritersContinue() throws Exception {
+        TestTreeNode root = new TestTreeNode();
+
+        runConcurrently(worker -> {
+            TestTreeNode subtreeRoot = new TestTreeNode();
+            root.addChild(subtreeRoot);
+            for (int i = 0; i < 500; i++) {
+                if (worker == 0) {
+                    TreeSnapshot<TestTreeNode> snapshot = root.snapshot();
+                    assertThat(snapshot.stream().count(), is((long) snapshot.getSize()));
+                } else {
+                    subtreeRoot.addChild(new TestTreeNode());
+                }
+            }
+        });
+
+        assertThat(root.snapshot().getSize(), is(1 + THREADS + (THREADS - 1) * 500));
+    }
+
+    @Test
+    public void exclusiveChangesDontBlockOtherTrees() throws Exception {
+        TestTreeNode blocked = new TestTreeNode();
+        CountDownLatch validating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blocked.addChildValidator((parent, child) -> {
+            validating.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        TestTreeNode subtree = new TestTreeNode();
+        subtree.addChild(new TestTreeNode());
+        TestTreeNode other = new TestTreeNode();
+        other.addChild(new TestTreeNode());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> moving = executor.submit(() -> blocked.addChild(subtree));
+            assertTrue(validating.await(5, TimeUnit.SECONDS));
+
+            Future<Integer> changingOtherTree = executor.submit(() -> {
+                TestTreeNode branch = new TestTreeNode();
+                branch.addChild(new TestTreeNode());
+                other.addChild(branch);
+                other.addChild(new TestTreeNode());
+                return other.snapshot().getSize();
+            });
+            assertThat(changingOtherTree.get(5, TimeUnit.SECONDS), is(5));
+
+            release.countDown();
+            moving.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertThat(blocked.snapshot().getSize(), is(3));
+        assertThat(subtree.getDepth(), is(1));
+    }
+
+    @Test
+    public void subtreesMovingBetweenTreesKeepThemConsistent() throws Exception {
+        List<TestTreeNode> roots = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            roots.add(new TestTreeNode());
+        }
+        List<TestTreeNode> subtrees = new ArrayList<>();
+        List<TestTreeNode> leaves = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            TestTreeNode subtree = new TestTreeNode();
+            for (int j = 0; j < 3; j++) {
+                subtree.addChild(new TestTreeNode());
+            }
+            subtrees.add(subtree);
+            leaves.add(subtree.getChildren().iterator().next()); // before other workers move their subtrees below
+        }
+
+        runConcurrently(worker -> {
+            Random random = new Random(worker);
+            TestTreeNode subtree = subtrees.get(worker);
+            TestTreeNode leaf = leaves.get(worker);
+            for (int i = 0; i < 2000; i++) {
+                try {
+                    (random.nextBoolean() ? roots : subtrees).get(random.nextInt(4)).addChild(subtree);
+                } catch (IllegalArgumentException e) {
+                    // circle or self-parenting - expected to be rejected
+                }
+                subtrees.get(random.nextInt(THREADS)).addChild(leaf);
+                subtree.addChild(leaf);
+            }
+            roots.get(worker % 4).addChild(subtree);
+        });
+
+        int size = 0;
+        for (TestTreeNode root : roots) {
+            size += root.snapshot().getSize();
+        }
+        assertThat(size, is(4 + THREADS * 4));
+        assertHierarchyIsConsistent(allNodes(roots.toArray(new TestTreeNode[0])));
+    }
+
+    @Test
+    public void traversalsAreWeaklyConsistentTowardsConcurrentChanges() throws Exception {
+        TestTreeNode root = new TestTreeNode();
+        Set<TestTreeNode> stable = new HashSet<>();
+        stable.add(root);
+        List<TestTreeNode> branches = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            TestTreeNode branch = new TestTreeNode();
+            for (int j = 0; j < 10; j++) {
+                branch.addChild(new TestTreeNode());
+            }
+            root.addChild(branch);
+            branches.add(branch);
+            stable.add(branch);
+            stable.addAll(branch.getChildren());
+        }
+
+        runConcurrently(worker -> {
+            TestTreeNode branch = branches.get(worker);
+            for (int i = 0; i < 300; i++) {
+                if (worker == 0) {
+                    assertThat(root.stream(TreeNode.TraversalOrder.PRE_ORDER).filter(stable::contains).count(), is((long) stable.size()));
+                    assertThat(root.reduce(0, node -> stable.contains(node) ? 1 : 0, Integer::sum), is(stable.size()));
+                    AtomicInteger visited = new AtomicInteger();
+                    root.visit(node -> {
+                        if (stable.contains(node)) {
+                            visited.incrementAndGet();
+                        }
+                        return TreeNode.VisitResult.CONTINUE;
+                    });
+                    assertThat(visited.get(), is(stable.size()));
+                } else {
+                    TestTreeNode changing = new TestTreeNode();
+                    changing.addChild(new TestTreeNode());
+                    branch.addChild(changing);
+                    branch.addChild(new TestTreeNode());
+                    branches.get((worker + 1) % THREADS).addChild(changing);
+                    changing.setParent(null);
+                }
+            }
+        });
+
+        assertHierarchyIsConsistent(allNodes(root));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void changesWithinBatchAreRejected() throws Exception {
+        TestTreeNode parent = new TestTreeNode();
+        TreeNode.batch(() -> parent.addChild(new TestTreeNode()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void circleIsDetected() throws Exception {
+        TestTreeNode parent = new TestTreeNode();
+        TestTreeNode child = new TestTreeNode();
+        parent.addChild(child);
+        child.addChild(parent);
+    }
+
+    private interface Worker {
+        void run(int worker) throws Exception;
+    }
+
+    private static void runConcurrently(Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(THREADS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final int workerIndex = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    worker.run(workerIndex);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS); // fails on deadlocks
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<TestTreeNode> allNodes(TestTreeNode... roots) {
+        List<TestTreeNode> nodes = new ArrayList<>();
+        Deque<TestTreeNode> pending = new ArrayDeque<>(Arrays.asList(roots));
+        while (!pending.isEmpty()) {
+            TestTreeNode node = pending.pop();
+            nodes.add(node);
+            pending.addAll(node.getChildren());
+        }
+        return nodes;
+    }
+
+    private static void assertHierarchyIsConsistent(Collection<TestTreeNode> nodes) {
+        for (TestTreeNode node : nodes) {
+            for (TestTreeNode child : node.getChildren()) {
+                assertThat(child.getParent().get(), is(sameInstance(node)));
+            }
+            int depth = 0;
+            for (TestTreeNode ancestor = node.getParent().orElse(null); ancestor != null; ancestor = ancestor.getParent().orElse(null)) {
+                assertThat("Circle detected above " + node, ancestor, is(not(sameInstance(node))));
+                assertThat("Circle detected above " + node, depth, is(lessThan(nodes.size())));
+                assertTrue(ancestor.isAncestorOf(node));
+                depth++;
+            }
+            assertThat(node.getDepth(), is(depth));
+            assertThat(node.getPathFromRoot().size(), is(depth + 1));
+            node.getParent().ifPresent(parent -> assertThat(parent.getChildren(), hasItem(sameInstance(node))));
+        }
+    }
+
+    private static class CopyCountingTreeNode extends ConcurrentTreeNode<CopyCountingTreeNode> {
+
+        private int copies = 0;
+
+        CopyCountingTreeNode() {
+            super(ChildOrder.ORDERED);
+        }
+
+        @Override
+        public Collection<CopyCountingTreeNode> getChildren() {
+            copies++;
+            return super.getChildren();
+        }
+    }
+
+    private static class TestTreeNode extends ConcurrentTreeNode<TestTreeNode> {
+
+        TestTreeNode() {
+        }
+
+        TestTreeNode(ChildOrder childOrder) {
+            super(childOrder);
+        }
+    }
+}
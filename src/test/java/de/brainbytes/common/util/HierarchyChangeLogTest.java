@@ -0,0 +1,187 @@
+package de.brainbytes.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class HierarchyChangeLogTest {
+
+    private TestTreeNode root;
+    private TestTreeNode child;
+    private HierarchyChangeLog<TestTreeNode> log;
+
+    @Before
+    public void setUp() throws Exception {
+        root = new TestTreeNode();
+        child = new TestTreeNode();
+        root.addChild(child);
+        log = HierarchyChangeLog.register(root, 4);
+    }
+
+    @Test
+    public void subscribersGetTheSnapshotAndTheFollowingChanges() throws Exception {
+        child.addChild(new TestTreeNode());
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        HierarchyChangeLog<TestTreeNode>.Subscription subscription = log.subscribe(subscriber);
+
+        TestTreeNode added = new TestTreeNode();
+        root.addChild(added);
+        root.removeChild(added);
+
+        assertThat(subscriber.snapshotSizes, contains(3));
+        assertThat(subscriber.received, contains("snapshot 2", "3 CHILDREN_ADDED", "4 PARENT_CHANGED", "5 CHILDREN_REMOVED"));
+        assertThat(subscription.getSequence(), is(5L));
+
+        assertThat(subscription.cancel(), is(true));
+        root.addChild(new TestTreeNode());
+        assertThat(subscriber.received, hasSize(4));
+        assertThat(log.getSequence(), is(7L));
+    }
+
+    @Test
+    public void resumingReplaysTheRetainedChanges() throws Exception {
+        RecordingSubscriber first = new RecordingSubscriber();
+        log.subscribe(first).cancel();
+        child.addChild(new TestTreeNode());
+        root.addChild(new TestTreeNode());
+
+        RecordingSubscriber resumed = new RecordingSubscriber();
+        log.resume(2, resumed);
+        root.removeChild(child);
+
+        assertThat(resumed.snapshotSizes, is(empty()));
+        assertThat(resumed.received, contains("3 CHILDREN_ADDED", "4 PARENT_CHANGED", "5 CHILDREN_REMOVED"));
+    }
+
+    @Test
+    public void resumingAfterDiscardedChangesTakesASnapshot() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            root.addChild(new TestTreeNode());
+        }
+        assertThat(log.getOldestRetained(), is(3L));
+
+        RecordingSubscriber resumed = new RecordingSubscriber();
+        log.resume(1, resumed);
+
+        assertThat(resumed.snapshotSizes, contains(5));
+        assertThat(resumed.received, contains("snapshot 6"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resumingFromTheFutureIsRejected() throws Exception {
+        log.resume(1, new RecordingSubscriber());
+    }
+
+    @Test
+    public void observersCantSubscribe() throws Exception {
+        List<Exception> failures = new ArrayList<>();
+        child.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                try {
+                    log.subscribe(new RecordingSubscriber());
+                } catch (IllegalStateException e) {
+                    failures.add(e);
+                }
+            }
+        });
+
+        child.addChild(new TestTreeNode());
+
+        assertThat(failures, hasSize(1));
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        log.subscribe(subscriber);
+        assertThat(subscriber.received, contains("snapshot 2"));
+    }
+
+    @Test
+    public void subscribingWithinABatchIsRejected() throws Exception {
+        try {
+            TreeNode.batch(() -> {
+                root.addChild(new TestTreeNode());
+                log.subscribe(new RecordingSubscriber());
+            });
+            fail("Expected IllegalStateException is missing!");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertThat(root.getChildCount(), is(1));
+        assertThat(log.getSequence(), is(0L));
+    }
+
+    @Test
+    public void concurrentChangesAreNeitherLostNorDuplicated() throws Exception {
+        ConcurrentNode concurrentRoot = new ConcurrentNode();
+        HierarchyChangeLog<ConcurrentNode> concurrentLog = HierarchyChangeLog.register(concurrentRoot, 16);
+        int writers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        AtomicBoolean running = new AtomicBoolean(true);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                futures.add(executor.submit(() -> {
+                    while (running.get()) {
+                        concurrentRoot.addChild(new ConcurrentNode());
+                    }
+                    return null;
+                }));
+            }
+
+            List<Integer> sizes = new ArrayList<>();
+            int[] added = new int[1];
+            Thread.sleep(20);
+            concurrentLog.subscribe(new HierarchyChangeLog.Subscriber<ConcurrentNode>() {
+                @Override
+                public void onSnapshot(TreeSnapshot<ConcurrentNode> snapshot, long sequence) {
+                    sizes.add(snapshot.getSize());
+                }
+
+                @Override
+                public void onChange(HierarchyEvent<ConcurrentNode> change, long sequence) {
+                    if (change.getType() == HierarchyEvent.Type.CHILDREN_ADDED) {
+                        added[0] += change.getChildren().size();
+                    }
+                }
+            });
+            Thread.sleep(20);
+            running.set(false);
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+
+            assertThat(sizes, hasSize(1));
+            assertThat(sizes.get(0) + added[0], is(concurrentRoot.getChildCount() + 1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class RecordingSubscriber implements HierarchyChangeLog.Subscriber<TestTreeNode> {
+
+        private final List<String> received = new ArrayList<>();
+        private final List<Integer> snapshotSizes = new ArrayList<>();
+
+        @Override
+        public void onSnapshot(TreeSnapshot<TestTreeNode> snapshot, long sequence) {
+            snapshotSizes.add(snapshot.getSize());
+            received.add("snapshot " + sequence);
+        }
+
+        @Override
+        public void onChange(HierarchyEvent<TestTreeNode> change, long sequence) {
+            received.add(sequence + " " + change.getType());
+        }
+    }
+
+    private static class TestTreeNode extends TreeNode<TestTreeNode> {
+    }
+
+    private static class ConcurrentNode extends ConcurrentTreeNode<ConcurrentNode> {
+    }
+}
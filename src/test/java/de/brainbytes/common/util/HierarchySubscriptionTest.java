@@ -0,0 +1,128 @@
+package de.brainbytes.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class HierarchySubscriptionTest {
+
+    private TestTreeNode root;
+    private TestTreeNode child;
+    private TestTreeNode grandChild;
+    private List<String> events;
+
+    @Before
+    public void setUp() throws Exception {
+        root = new TestTreeNode("root");
+        child = new TestTreeNode("child");
+        grandChild = new TestTreeNode("grandChild");
+        root.addChild(child);
+        child.addChild(grandChild);
+        events = new ArrayList<>();
+    }
+
+    @Test
+    public void onlySubscribedTypesAreNotified() throws Exception {
+        root.addObserver(new RecordingObserver(), HierarchySubscription.<TestTreeNode>all().types(HierarchyEvent.Type.CHILDREN_REMOVED));
+
+        TestTreeNode added = new TestTreeNode("added");
+        root.addChild(added);
+        assertThat(events, is(empty()));
+
+        root.removeChild(added);
+        assertThat(events, contains("removed root"));
+    }
+
+    @Test
+    public void changesBelowMaxDepthAreNotNotified() throws Exception {
+        root.addObserver(new RecordingObserver(), HierarchySubscription.<TestTreeNode>all().maxDepth(1));
+
+        root.addChild(new TestTreeNode("a"));
+        child.addChild(new TestTreeNode("b"));
+        grandChild.addChild(new TestTreeNode("c"));
+
+        assertThat(events, contains("added root", "added child"));
+    }
+
+    @Test
+    public void onlyChangesOfAcceptedNodesAreNotified() throws Exception {
+        root.addObserver(new RecordingObserver(), HierarchySubscription.<TestTreeNode>all()
+                .filter(node -> node != root)
+                .filter(node -> node != child));
+
+        root.addChild(new TestTreeNode("a"));
+        child.addChild(new TestTreeNode("b"));
+        grandChild.addChild(new TestTreeNode("c"));
+
+        assertThat(events, contains("added grandChild"));
+    }
+
+    @Test
+    public void parentChangesAreNotifiedForTheObservedNodeOnly() throws Exception {
+        TreeNode.HierarchyObserver<TestTreeNode> decorator = child.addObserver(new RecordingObserver(),
+                HierarchySubscription.<TestTreeNode>all().types(HierarchyEvent.Type.PARENT_CHANGED));
+
+        child.addChild(new TestTreeNode("a"));
+        child.removeChild(grandChild);
+        root.removeChild(child);
+        assertThat(events, contains("parent of child"));
+
+        assertThat(child.removeObserver(decorator), is(true));
+        root.addChild(child);
+        assertThat(events, contains("parent of child"));
+    }
+
+    @Test
+    public void unsubscribedChangesAreNotDispatched() throws Exception {
+        TreeMetrics metrics = new TreeMetrics();
+        root.setMetrics(metrics);
+        root.addObserver(new RecordingObserver(), HierarchySubscription.<TestTreeNode>all()
+                .types(HierarchyEvent.Type.CHILDREN_ADDED)
+                .maxDepth(0));
+
+        TestTreeNode added = new TestTreeNode("added");
+        child.addChild(added);
+        child.removeChild(added);
+        root.addChild(added);
+
+        assertThat(events, contains("added root"));
+        assertThat(metrics.getNotifications(), is(1L));
+        assertThat(metrics.getFanOutMax(), is(1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDepthIsRejected() {
+        HierarchySubscription.<TestTreeNode>all().maxDepth(-1);
+    }
+
+    private class RecordingObserver implements TreeNode.HierarchyObserver<TestTreeNode> {
+
+        @Override
+        public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+            events.add("added " + changedNode.name);
+        }
+
+        @Override
+        public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren) {
+            events.add("removed " + changedNode.name);
+        }
+
+        @Override
+        public void onParentChanged(TestTreeNode source, Optional<TestTreeNode> newParent) {
+            events.add("parent of " + source.name);
+        }
+    }
+
+    private static class TestTreeNode extends TreeNode<TestTreeNode> {
+
+        private final String name;
+
+        TestTreeNode(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package de.brainbytes.common.util;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class LazyTreeNodeTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void childrenAreLoadedOnFirstAccess() throws Exception {
+        TestLazyTreeNode root = new TestLazyTreeNode("r", 2, null);
+        List<String> added = new ArrayList<>();
+        root.addObserver(new TreeNode.HierarchyObserver<TestLazyTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestLazyTreeNode eventSource, TestLazyTreeNode changedNode, Set<TestLazyTreeNode> addedChildren) {
+                added.add(changedNode + ": " + addedChildren);
+            }
+        });
+
+        assertThat(root.isLoaded(), is(false));
+        assertThat(loads.get(), is(0));
+
+        assertThat(root.getChildCount(), is(2));
+        assertThat(root.getChildren().stream().map(Object::toString).collect(Collectors.toList()), contains("r0", "r1"));
+        assertThat(root.isLoaded(), is(true));
+        assertThat(loads.get(), is(1));
+        assertThat(added, contains("r: [r0, r1]"));
+    }
+
+    @Test
+    public void traversalsLoadVisitedBranches() throws Exception {
+        TestLazyTreeNode root = new TestLazyTreeNode("r", 2, null);
+
+        assertThat(root.stream(TreeNode.TraversalOrder.PRE_ORDER).count(), is(7L));
+        assertThat(root.reduce(0, node -> 1, Integer::sum), is(7));
+        assertThat(loads.get(), is(7));
+    }
+
+    @Test
+    public void unloadedChildrenAreRemovedAndLoadedAgain() throws Exception {
+        TestLazyTreeNode root = new TestLazyTreeNode("r", 2, null);
+        TestLazyTreeNode first = root.getChildAt(0);
+        List<String> removed = new ArrayList<>();
+        root.addObserver(new TreeNode.HierarchyObserver<TestLazyTreeNode>() {
+            @Override
+            public void onChildrenRemoved(TestLazyTreeNode eventSource, TestLazyTreeNode changedNode, Set<TestLazyTreeNode> removedChildren) {
+                removed.add(changedNode + ": " + removedChildren);
+            }
+        });
+
+        assertThat(root.unload(), is(true));
+        assertThat(root.isLoaded(), is(false));
+        assertThat(removed, contains("r: [r0, r1]"));
+        assertThat(first.getParent().isPresent(), is(false));
+
+        assertThat(root.getChildAt(0), is(not(sameInstance(first))));
+        assertThat(loads.get(), is(2));
+        assertThat(root.unload(), is(true));
+        assertThat(root.unload(), is(false));
+    }
+
+    @Test
+    public void budgetUnloadsLeastRecentlyUsedBranches() throws Exception {
+        LazyTreeNode.Budget budget = new LazyTreeNode.Budget(4);
+        TestLazyTreeNode root = new TestLazyTreeNode("r", 3, budget);
+        TestLazyTreeNode a = root.getChildAt(0);
+        TestLazyTreeNode b = root.getChildAt(1);
+
+        a.load();
+        assertThat(budget.getLoadedChildren(), is(4L));
+
+        b.load();
+
+        assertThat(a.isLoaded(), is(false));
+        assertThat(b.isLoaded(), is(true));
+        assertThat(root.isLoaded(), is(true));
+        assertThat(budget.getLoadedChildren(), is(4L));
+    }
+
+    @Test
+    public void budgetKeepsChangedBranches() throws Exception {
+        LazyTreeNode.Budget budget = new LazyTreeNode.Budget(4);
+        TestLazyTreeNode root = new TestLazyTreeNode("r", 3, budget);
+        TestLazyTreeNode a = root.getChildAt(0);
+        TestLazyTreeNode b = root.getChildAt(1);
+
+        a.removeChild(a.getChildAt(0));
+        b.load();
+
+        assertThat(a.isLoaded(), is(true));
+        assertThat(a.getChildCount(), is(1));
+        assertThat(b.isLoaded(), is(true));
+    }
+
+    @Test
+    public void budgetUnloadsBranchesWithTheirLoadedSubtrees() throws Exception {
+        LazyTreeNode.Budget budget = new LazyTreeNode.Budget(4);
+        TestLazyTreeNode root = new TestLazyTreeNode("r", 3, budget);
+        TestLazyTreeNode a = root.getChildAt(0);
+        a.getChildAt(0).load();
+        assertThat(budget.getLoadedChildren(), is(6L));
+        List<String> removed = new ArrayList<>();
+        root.addObserver(new TreeNode.HierarchyObserver<TestLazyTreeNode>() {
+            @Override
+            public void onChildrenRemoved(TestLazyTreeNode eventSource, TestLazyTreeNode changedNode, Set<TestLazyTreeNode> removedChildren) {
+                removed.add(changedNode + ": " + removedChildren);
+            }
+        });
+
+        root.getChildAt(1).load();
+
+        assertThat(removed, contains("r0: [r00, r01]"));
+        assertThat(a.isLoaded(), is(false));
+        assertThat(budget.getLoadedChildren(), is(4L));
+    }
+
+    @Test
+    public void budgetKeepsBranchesChangedFurtherDown() throws Exception {
+        LazyTreeNode.Budget budget = new LazyTreeNode.Budget(4);
+        TestLazyTreeNode root = new TestLazyTreeNode("r", 3, budget);
+        TestLazyTreeNode a = root.getChildAt(0);
+        TestLazyTreeNode changed = a.getChildAt(0);
+        changed.removeChild(changed.getChildAt(0));
+
+        root.getChildAt(1).load();
+
+        assertThat(a.isLoaded(), is(true));
+        assertThat(changed.isLoaded(), is(true));
+        assertThat(changed.getChildCount(), is(1));
+
+        changed.unload(); // discards the change, so the branch may be unloaded again
+        root.getChildAt(1).getChildAt(0).load();
+        assertThat(a.isLoaded(), is(false));
+    }
+
+    private class TestLazyTreeNode extends LazyTreeNode<TestLazyTreeNode> {
+
+        private final String name;
+        private final int depth;
+        private final Budget budget;
+
+        /**
+         * @param depth levels of binary subtrees below this node.
+         */
+        TestLazyTreeNode(String name, int depth, Budget budget) {
+            super(ChildOrder.ORDERED, budget);
+            this.name = name;
+            this.depth = depth;
+            this.budget = budget;
+        }
+
+        @Override
+        protected Collection<TestLazyTreeNode> loadChildren() {
+            loads.incrementAndGet();
+            if (depth == 0) {
+                return Collections.emptyList();
+            }
+            return Arrays.asList(new TestLazyTreeNode(name + 0, depth - 1, budget), new TestLazyTreeNode(name + 1, depth - 1, budget));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package de.brainbytes.common.util;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class TreeBuilderTest {
+
+    private static final TreeBuilder<int[], Integer, TestTreeNode> BUILDER = new TreeBuilder<>(
+            record -> record[0], record -> record[1] < 0 ? null : record[1], record -> new TestTreeNode(record[0]));
+
+    @Test
+    public void recordsInAnyOrderAreLinkedToTheirParents() throws Exception {
+        List<TestTreeNode> roots = BUILDER.build(Stream.of(record(3, 1), record(1, 0), record(0, -1), record(2, 0), record(4, 1)));
+
+        assertThat(roots, hasSize(1));
+        TestTreeNode root = roots.get(0);
+        assertThat(ids(root.getChildren()), contains(1, 2));
+        TestTreeNode node4 = root.getChildAt(0).getChildAt(1);
+        assertThat(node4.id, is(4));
+        assertThat(node4.getDepth(), is(2));
+        assertThat(root.isAncestorOf(node4), is(true));
+        assertThat(node4.getLowestCommonAncestor(root.getChildAt(1)), is(Optional.of(root)));
+    }
+
+    @Test
+    public void publishingNotifiesOnce() throws Exception {
+        TestTreeNode parent = new TestTreeNode(-1);
+        List<Set<TestTreeNode>> added = new ArrayList<>();
+        parent.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                added.add(addedChildren);
+            }
+        });
+
+        List<TestTreeNode> roots = BUILDER.buildInto(parent, Stream.of(record(0, -1), record(1, 0), record(2, 1), record(3, -1)));
+
+        assertThat(added, hasSize(1));
+        assertThat(added.get(0), contains(roots.toArray()));
+        assertThat(ids(roots), contains(0, 3));
+        assertThat(roots.get(0).getChildAt(0).getChildAt(0).getDepth(), is(3));
+    }
+
+    @Test
+    public void validatorsCheckAllChildrenAtOnce() throws Exception {
+        List<Integer> validated = new ArrayList<>();
+        TreeBuilder<int[], Integer, TestTreeNode> builder = new TreeBuilder<>(record -> record[0], record -> record[1] < 0 ? null : record[1], record -> {
+            TestTreeNode node = new TestTreeNode(record[0]);
+            node.addChildValidator(new TreeNode.ChildValidator<TestTreeNode>() {
+                @Override
+                public void validateChild(TestTreeNode parent, TestTreeNode child) {
+                }
+
+                @Override
+                public void validateChildren(TestTreeNode parent, Collection<TestTreeNode> children) throws ChildValidationException {
+                    validated.add(children.size());
+                    if (children.size() > 2) {
+                        throw new ChildValidationException("Too many children");
+                    }
+                }
+            });
+            return node;
+        });
+
+        builder.build(Stream.of(record(0, -1), record(1, 0), record(2, 0), record(3, 1)));
+        assertThat(validated, contains(2, 1));
+
+        try {
+            builder.build(Stream.of(record(0, -1), record(1, 0), record(2, 0), record(3, 0)));
+            fail("Expected the validator to reject the children");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            assertThat(e.getMessage(), is("Too many children"));
+        }
+    }
+
+    @Test
+    public void parallelBuildEqualsSequentialBuild() throws Exception {
+        Random random = new Random(42);
+        List<int[]> records = new ArrayList<>();
+        records.add(record(0, -1));
+        for (int i = 1; i < 20000; i++) {
+            records.add(record(i, random.nextInt(i)));
+        }
+        Collections.shuffle(records, random);
+
+        TestTreeNode sequential = BUILDER.build(records.stream()).get(0);
+        TestTreeNode parallel = BUILDER.parallel().build(records.stream()).get(0);
+
+        assertThat(parallel.stream(TreeNode.TraversalOrder.PRE_ORDER).map(node -> node.id + "@" + node.getDepth()).collect(Collectors.toList()),
+                is(sequential.stream(TreeNode.TraversalOrder.PRE_ORDER).map(node -> node.id + "@" + node.getDepth()).collect(Collectors.toList())));
+        assertThat(parallel.stream(TreeNode.TraversalOrder.PRE_ORDER).count(), is(20000L));
+    }
+
+    @Test
+    public void storedNodesAreLinkedInTheirStore() throws Exception {
+        TreeStore store = new TreeStore();
+        TreeBuilder<int[], Integer, TreeStore.Node> builder = new TreeBuilder<>(
+                record -> record[0], record -> record[1] < 0 ? null : record[1], record -> store.node(store.createNode()));
+
+        List<TreeStore.Node> roots = builder.build(Stream.of(record(0, -1), record(1, 0), record(2, 0), record(3, 1)));
+
+        assertThat(roots, contains(store.node(0)));
+        assertThat(store.getChildCount(0), is(2));
+        assertThat(store.getParent(3), is(1));
+        assertThat(store.getDepth(3), is(2));
+        assertThat(store.node(0).getChildren(), contains(store.node(1), store.node(2)));
+    }
+
+    @Test
+    public void failedBuildLeavesNoNodeLinked() throws Exception {
+        TreeStore store = new TreeStore();
+        TreeBuilder<int[], Integer, TreeStore.Node> builder = new TreeBuilder<>(
+                record -> record[0], record -> record[1] < 0 ? null : record[1], record -> {
+            TreeStore.Node node = store.node(store.createNode());
+            if (record[0] == 1) {
+                node.addChildValidator((parent, child) -> {
+                    throw new TreeNode.ChildValidator.ChildValidationException("Node 1 stays a leaf");
+                });
+            }
+            return node;
+        });
+
+        try {
+            builder.build(Stream.of(record(0, -1), record(1, 0), record(2, 0), record(3, 1), record(4, 2), record(5, 4)));
+            fail("Expected the validator to reject the children");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            assertThat(e.getMessage(), is("Node 1 stays a leaf"));
+        }
+
+        for (int id = 0; id < store.size(); id++) {
+            assertThat(store.getParent(id), is(TreeStore.NO_NODE));
+            assertThat(store.getChildCount(id), is(0));
+            assertThat(store.getDepth(id), is(0));
+        }
+    }
+
+    @Test
+    public void lazyNodesKeepTheirBuiltChildren() throws Exception {
+        LazyTreeNode.Budget budget = new LazyTreeNode.Budget(0);
+        List<Integer> loaded = new ArrayList<>();
+        TreeBuilder<int[], Integer, TestLazyTreeNode> builder = new TreeBuilder<>(
+                record -> record[0], record -> record[1] < 0 ? null : record[1], record -> new TestLazyTreeNode(record[0], budget, loaded));
+
+        TestLazyTreeNode root = builder.build(Stream.of(record(0, -1), record(1, 0), record(2, 0))).get(0);
+
+        assertThat(root.isLoaded(), is(true));
+        assertThat(root.getChildCount(), is(2));
+        for (TestLazyTreeNode child : root.getChildren()) {
+            assertThat(child.getChildCount(), is(1)); // loads - and exceeds the budget
+        }
+        assertThat(loaded, containsInAnyOrder(1, 2));
+        assertThat("Built children can't be loaded again, so they aren't unloaded.", root.getChildCount(), is(2));
+    }
+
+    @Test
+    public void circlesAreRejected() throws Exception {
+        try {
+            BUILDER.build(Stream.of(record(0, -1), record(1, 2), record(2, 1)));
+            fail("Expected the circle to be detected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), startsWith("Circle detected"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingParentsAreRejected() throws Exception {
+        BUILDER.build(Stream.of(record(0, -1), record(1, 7)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateIdsAreRejected() throws Exception {
+        BUILDER.build(IntStream.of(0, 1, 1).mapToObj(id -> record(id, id == 0 ? -1 : 0)));
+    }
+
+    private static int[] record(int id, int parentId) {
+        return new int[]{id, parentId};
+    }
+
+    private static List<Integer> ids(Collection<TestTreeNode> nodes) {
+        return nodes.stream().map(node -> node.id).collect(Collectors.toList());
+    }
+
+    private static class TestLazyTreeNode extends LazyTreeNode<TestLazyTreeNode> {
+
+        private final int id;
+        private final List<Integer> loaded;
+
+        TestLazyTreeNode(int id, Budget budget, List<Integer> loaded) {
+            super(ChildOrder.ORDERED, budget);
+            this.id = id;
+            this.loaded = loaded;
+        }
+
+        @Override
+        protected Collection<TestLazyTreeNode> loadChildren() {
+            loaded.add(id);
+            return Collections.singletonList(new TestLazyTreeNode(-id, null, loaded));
+        }
+    }
+
+    private static class TestTreeNode extends TreeNode<TestTreeNode> {
+
+        private final int id;
+
+        TestTreeNode(int id) {
+            super(ChildOrder.ORDERED);
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package de.brainbytes.common.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class TreeCodecTest {
+
+    private static final TreeCodec.PayloadCodec<NamedTreeNode> NAMES = new TreeCodec.PayloadCodec<NamedTreeNode>() {
+        @Override
+        public void write(NamedTreeNode node, DataOutput out) throws IOException {
+            out.writeUTF(node.name);
+        }
+
+        @Override
+        public NamedTreeNode read(DataInput in) throws IOException {
+            return new NamedTreeNode(in.readUTF());
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TreeCodec<NamedTreeNode> codec = new TreeCodec<>(NAMES);
+
+    @Test
+    public void treeIsRestoredInOrder() throws Exception {
+        NamedTreeNode root = buildTree();
+
+        NamedTreeNode restored = codec.read(write(root));
+
+        assertThat(names(restored), is(names(root)));
+        assertThat(restored.getChildAt(0).getChildren().stream().map(node -> node.name).collect(Collectors.toList()), contains("a1", "a2"));
+    }
+
+    @Test
+    public void deepTreesAreWrittenAndReadIteratively() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("0");
+        NamedTreeNode parent = root;
+        for (int i = 1; i < 10000; i++) {
+            NamedTreeNode child = new NamedTreeNode(String.valueOf(i));
+            parent.addChild(child);
+            parent = child;
+        }
+
+        MappedTree<NamedTreeNode> mapped = codec.open(write(root));
+
+        assertThat(mapped.size(), is(10000));
+        NamedTreeNode restored = mapped.getRoot().load();
+        assertThat(restored.aggregate(SubtreeAggregates.height()), is(9999));
+        assertThat(restored.descendants().reduce((first, second) -> second).get().name, is("9999"));
+    }
+
+    @Test
+    public void subtreesAreOpenedLazilyByOffset() throws Exception {
+        MappedTree<NamedTreeNode> mapped = codec.open(write(buildTree()));
+
+        MappedTree<NamedTreeNode>.Entry root = mapped.getRoot();
+        assertThat(root.getSubtreeSize(), is(6));
+        List<MappedTree<NamedTreeNode>.Entry> children = root.getChildren();
+        assertThat(children, hasSize(2));
+        assertThat(children.get(1).readNode().name, is("b"));
+
+        MappedTree<NamedTreeNode>.Entry a = mapped.getEntryAt(children.get(0).getOffset());
+        assertThat(a.getIndex(), is(1));
+        assertThat(a.getSubtreeSize(), is(4));
+        NamedTreeNode loaded = a.load();
+        assertThat(loaded.name, is("a"));
+        assertThat(loaded.getParent().isPresent(), is(false));
+        assertThat(names(loaded), contains("a", "a1", "a2", "a21"));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownFormatIsRejected() throws Exception {
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+
+        codec.open(file);
+    }
+
+    private Path write(NamedTreeNode root) throws IOException {
+        Path file = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            codec.write(root, out);
+        }
+        return file;
+    }
+
+    /**
+     * root - a(a1, a2(a21)), b
+     */
+    private static NamedTreeNode buildTree() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("root");
+        NamedTreeNode a = new NamedTreeNode("a");
+        NamedTreeNode a2 = new NamedTreeNode("a2");
+        root.addChildren(Arrays.asList(a, new NamedTreeNode("b")));
+        a.addChildren(Arrays.asList(new NamedTreeNode("a1"), a2));
+        a2.addChild(new NamedTreeNode("a21"));
+        return root;
+    }
+
+    private static List<String> names(NamedTreeNode root) {
+        return root.stream(TreeNode.TraversalOrder.PRE_ORDER).map(node -> node.name).collect(Collectors.toList());
+    }
+
+    private static class NamedTreeNode extends TreeNode<NamedTreeNode> {
+
+        private final String name;
+
+        NamedTreeNode(String name) {
+            super(ChildOrder.ORDERED);
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
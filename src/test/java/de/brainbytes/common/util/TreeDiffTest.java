@@ -0,0 +1,143 @@
+package de.brainbytes.common.util;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class TreeDiffTest {
+
+    private final AtomicInteger keyQueries = new AtomicInteger();
+    private final TreeDiff<NamedTreeNode> diff = new TreeDiff<>(node -> {
+        keyQueries.incrementAndGet();
+        return node.name;
+    });
+
+    @Test
+    public void hashFollowsChanges() throws Exception {
+        NamedTreeNode first = buildTree();
+        NamedTreeNode second = buildTree();
+        assertThat(diff.hash(first), is(diff.hash(second)));
+        assertThat(diff.diff(first, second), is(empty()));
+
+        NamedTreeNode a = first.getChildAt(0);
+        NamedTreeNode a1 = a.getChildAt(0);
+        a.removeChild(a1);
+        assertThat(diff.hash(first), is(not(diff.hash(second))));
+
+        a.addChild(a1);
+        assertThat(diff.hash(first), is(not(diff.hash(second))));
+
+        a.removeChild(a1);
+        a.addChild(0, a1);
+        assertThat(diff.hash(first), is(diff.hash(second)));
+    }
+
+    @Test
+    public void appliedEditsTurnSourceIntoTarget() throws Exception {
+        NamedTreeNode source = buildTree();
+        NamedTreeNode replica = buildTree();
+        NamedTreeNode target = buildTree();
+        NamedTreeNode a = target.getChildAt(0);
+        NamedTreeNode a2 = a.getChildAt(1);
+        NamedTreeNode b = target.getChildAt(1);
+        NamedTreeNode c = new NamedTreeNode("c");
+        b.addChild(c);
+        c.addChild(a2.getChildAt(0)); // a21 moved below new node
+        b.addChild(0, a2); // a2 moved ahead of b1
+        target.removeChild(b);
+        target.addChild(0, b); // b reordered
+        a.removeChild(a.getChildAt(0)); // a1 removed
+
+        List<TreeDiff.Edit<NamedTreeNode>> edits = diff.diff(source, target);
+        assertThat(edits.stream().map(Object::toString).collect(Collectors.toList()), contains(
+                "MOVE b to root",
+                "MOVE a2 to b",
+                "ADD c to b after b1",
+                "MOVE a21 to c",
+                "REMOVE a1"));
+
+        diff.apply(replica, edits, node -> new NamedTreeNode(node.name));
+
+        assertThat(names(replica), is(names(target)));
+        assertThat(diff.hash(replica), is(diff.hash(target)));
+    }
+
+    @Test
+    public void identicalSubtreesAreSkipped() throws Exception {
+        NamedTreeNode source = buildWideTree();
+        NamedTreeNode target = buildWideTree();
+        target.getChildAt(7).getChildAt(3).addChild(new NamedTreeNode("new"));
+        diff.hash(source);
+        diff.hash(target);
+        keyQueries.set(0);
+
+        List<TreeDiff.Edit<NamedTreeNode>> edits = diff.diff(source, target);
+
+        assertThat(edits.stream().map(Object::toString).collect(Collectors.toList()), contains("ADD new to 7.3 after 7.3.9"));
+        // only the changed path's children are compared, not the whole trees
+        assertThat(keyQueries.get(), is(lessThan(source.aggregate(SubtreeAggregates.size()) / 5)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rootsWithDifferentKeysAreRejected() throws Exception {
+        diff.diff(new NamedTreeNode("one"), new NamedTreeNode("other"));
+    }
+
+    /**
+     * root - a(a1, a2(a21)), b(b1)
+     */
+    private static NamedTreeNode buildTree() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("root");
+        NamedTreeNode a = new NamedTreeNode("a");
+        NamedTreeNode a2 = new NamedTreeNode("a2");
+        NamedTreeNode b = new NamedTreeNode("b");
+        root.addChildren(Arrays.asList(a, b));
+        a.addChildren(Arrays.asList(new NamedTreeNode("a1"), a2));
+        a2.addChild(new NamedTreeNode("a21"));
+        b.addChild(new NamedTreeNode("b1"));
+        return root;
+    }
+
+    /**
+     * root with 10 children of 10 children of 10 children each
+     */
+    private static NamedTreeNode buildWideTree() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("root");
+        for (int i = 0; i < 10; i++) {
+            NamedTreeNode child = new NamedTreeNode(String.valueOf(i));
+            root.addChild(child);
+            for (int j = 0; j < 10; j++) {
+                NamedTreeNode grandChild = new NamedTreeNode(i + "." + j);
+                child.addChild(grandChild);
+                for (int k = 0; k < 10; k++) {
+                    grandChild.addChild(new NamedTreeNode(i + "." + j + "." + k));
+                }
+            }
+        }
+        return root;
+    }
+
+    private static List<String> names(NamedTreeNode root) {
+        return root.stream(TreeNode.TraversalOrder.PRE_ORDER).map(node -> node.getParent().map(parent -> parent.name).orElse("") + "/" + node.name).collect(Collectors.toList());
+    }
+
+    private static class NamedTreeNode extends TreeNode<NamedTreeNode> {
+
+        private final String name;
+
+        NamedTreeNode(String name) {
+            super(ChildOrder.ORDERED);
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
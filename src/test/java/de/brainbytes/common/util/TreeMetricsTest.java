@@ -0,0 +1,132 @@
+package de.brainbytes.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class TreeMetricsTest {
+
+    private TestTreeNode root;
+    private TreeMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        root = new TestTreeNode();
+        metrics = new TreeMetrics();
+        root.setMetrics(metrics);
+    }
+
+    @Test
+    public void changesAreCountedAtTheirTree() throws Exception {
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        root.addChildren(Arrays.asList(a, b));
+        a.addChild(c);
+        b.addChild(c);
+        a.removeChild(b); // no child of a - not counted
+        root.removeChild(b);
+
+        assertThat(metrics.getAdds(), is(3L));
+        assertThat(metrics.getMoves(), is(1L));
+        assertThat(metrics.getRemoves(), is(1L));
+
+        // the removed subtree isn't recorded anymore, but a subtree with its own metrics is
+        b.removeChild(c);
+        assertThat(metrics.getRemoves(), is(1L));
+        assertThat(b.getMetrics(), is(Optional.empty()));
+
+        TreeMetrics subtreeMetrics = new TreeMetrics();
+        a.setMetrics(subtreeMetrics);
+        a.addChild(c);
+        root.addChild(b);
+        assertThat(c.getMetrics(), is(Optional.of(subtreeMetrics)));
+        assertThat(subtreeMetrics.getAdds(), is(1L));
+        assertThat(metrics.getAdds(), is(4L));
+    }
+
+    @Test
+    public void validationsAreTimedAndRejectionsCounted() throws Exception {
+        root.addChild(new TestTreeNode());
+        assertThat(metrics.getValidations(), is(0L)); // no validators
+
+        root.addChildValidator((parent, child) -> {
+            if (parent.getChildCount() > 1) {
+                throw new TreeNode.ChildValidator.ChildValidationException("full");
+            }
+        });
+        root.addChild(new TestTreeNode());
+        try {
+            root.addChild(new TestTreeNode());
+            fail("Expected ChildValidationException is missing!");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            //expected
+        }
+
+        assertThat(metrics.getValidations(), is(2L));
+        assertThat(metrics.getRejectedValidations(), is(1L));
+        assertThat(metrics.getValidatorLatencyMax(), is(greaterThanOrEqualTo(metrics.getValidatorLatencyP99())));
+    }
+
+    @Test
+    public void notificationsAreRecordedWithFanOut() throws Exception {
+        TestTreeNode child = new TestTreeNode();
+        root.addChild(child);
+        assertThat(metrics.getNotifications(), is(0L)); // unobserved
+
+        root.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+        });
+        root.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+        });
+        root.addSubtreeObserver((source, event) -> {
+        });
+        child.addChild(new TestTreeNode());
+
+        // children added at child and parent changed of the new node
+        assertThat(metrics.getNotifications(), is(2L));
+        assertThat(metrics.getFanOutMax(), is(3L));
+        assertThat(metrics.getFanOut().getMean(), is(2.0));
+    }
+
+    @Test
+    public void metricsArePublishedAsMBean() throws Exception {
+        root.addChild(new TestTreeNode());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        ObjectName name = metrics.register("test tree");
+        try {
+            assertThat(server.getAttribute(name, "Adds"), is(1L));
+            server.invoke(name, "reset", null, null);
+            assertThat(metrics.getAdds(), is(0L));
+        } finally {
+            assertThat(metrics.unregister(), is(true));
+        }
+        assertThat(server.isRegistered(name), is(false));
+        assertThat(metrics.unregister(), is(false));
+    }
+
+    @Test
+    public void percentilesAreBoundedByPowersOfTwo() throws Exception {
+        TreeMetrics.Histogram histogram = metrics.getFanOut();
+        for (int i = 1; i <= 100; i++) {
+            metrics.notified(0, i);
+        }
+
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMean(), is(50.5));
+        assertThat(histogram.getPercentile(0.5), is(63L));
+        assertThat(histogram.getPercentile(0.99), is(100L));
+        assertThat(histogram.getPercentile(0), is(1L));
+    }
+
+    private static class TestTreeNode extends TreeNode<TestTreeNode> {
+    }
+}
@@ -1,11 +1,19 @@
 package de.brainbytes.common.util;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -677,24 +685,24 @@ public class TreeNodeTest {
     public void changeParentIsObservable() throws Exception {
 
         TestTreeNode[] observedSource = {null};
-        Optional<TestTreeNode>[] observedParent = new Optional[]{null};
+        AtomicReference<Optional<TestTreeNode>> observedParent = new AtomicReference<>();
 
         nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
             @Override
             public void onParentChanged(TestTreeNode source, Optional<TestTreeNode> newParent) {
                 observedSource[0] = source;
-                observedParent[0] = newParent;
+                observedParent.set(newParent);
             }
         });
 
         TestTreeNode newParent = new TestTreeNode();
         nodeUnderTest.setParent(newParent);
         assertThat(observedSource[0], is(nodeUnderTest));
-        assertThat(observedParent[0].get(), is(newParent));
+        assertThat(observedParent.get().get(), is(newParent));
 
         nodeUnderTest.setParent(null);
         assertThat(observedSource[0], is(nodeUnderTest));
-        assertFalse(observedParent[0].isPresent());
+        assertFalse(observedParent.get().isPresent());
     }
 
     @Test
@@ -1011,8 +1019,1343 @@ public class TreeNodeTest {
 
     }
 
+    @Test
+    public void childValidatorValidatesBatchAtOnce() throws Exception {
+        TestTreeNode childA = new TestTreeNode();
+        TestTreeNode childB = new TestTreeNode();
+        List<Collection<TestTreeNode>> batches = new ArrayList<>();
+
+        nodeUnderTest.addChildValidator(new TreeNode.ChildValidator<TestTreeNode>() {
+            @Override
+            public void validateChild(TestTreeNode parent, TestTreeNode child) throws ChildValidationException {
+                fail("Batch should be validated at once!");
+            }
+
+            @Override
+            public void validateChildren(TestTreeNode parent, Collection<TestTreeNode> children) throws ChildValidationException {
+                batches.add(new ArrayList<>(children));
+            }
+        });
+
+        nodeUnderTest.addChildren(Arrays.asList(childA, childB));
+
+        assertThat(batches, hasSize(1));
+        assertThat(batches.get(0), containsInAnyOrder(childA, childB));
+    }
+
+    @Test
+    public void childValidatorRejectsWholeBatchPerChild() throws Exception {
+        TestTreeNode childA = new TestTreeNode();
+        TestTreeNode childB = new TestTreeNode();
+        List<TestTreeNode> validated = new ArrayList<>();
+
+        nodeUnderTest.addChildValidator((parent, child) -> {
+            validated.add(child);
+            if (child == childB) {
+                throw new TreeNode.ChildValidator.ChildValidationException("Invalid child!");
+            }
+        });
+
+        try {
+            nodeUnderTest.addChildren(Arrays.asList(childA, childB));
+            fail("Expected ChildValidationException is missing!");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            assertThat(e.getMessage(), is("Invalid child!"));
+        }
+
+        assertThat(validated, hasItem(childB));
+        assertThat(nodeUnderTest.getChildren(), is(empty()));
+        assertThat(childA.getParent().isPresent(), is(false));
+    }
+
+    @Test
+    public void asyncChildValidatorsRunInParallel() throws Exception {
+        TestTreeNode childA = new TestTreeNode();
+        CountDownLatch started = new CountDownLatch(2);
+
+        for (int i = 0; i < 2; i++) {
+            nodeUnderTest.addAsyncChildValidator((parent, children) -> CompletableFuture.runAsync(() -> {
+                started.countDown();
+                try {
+                    if (!started.await(5, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Validators didn't run in parallel!");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        assertThat(nodeUnderTest.addChild(childA), is(true));
+        assertThat(nodeUnderTest.getChildren(), contains(childA));
+    }
+
+    @Test
+    public void asyncChildValidatorRejectsWholeBatch() throws Exception {
+        TestTreeNode childA = new TestTreeNode();
+        TestTreeNode childB = new TestTreeNode();
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+
+        nodeUnderTest.addAsyncChildValidator((parent, children) -> pending);
+        nodeUnderTest.addAsyncChildValidator((parent, children) -> {
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new TreeNode.ChildValidator.ChildValidationException("Rejected!"));
+            return rejected;
+        });
+
+        try {
+            nodeUnderTest.addChildren(Arrays.asList(childA, childB));
+            fail("Expected ChildValidationException is missing!");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            assertThat(e.getMessage(), is("Rejected!"));
+        }
+
+        assertThat(pending.isCancelled(), is(true));
+        assertThat(nodeUnderTest.getChildren(), is(empty()));
+        assertThat(childA.getParent().isPresent(), is(false));
+        assertThat(childB.getParent().isPresent(), is(false));
+    }
+
+    @Test
+    public void orderedChildrenKeepInsertionOrder() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        TestTreeNode d = new TestTreeNode();
+
+        parent.addChild(c);
+        parent.addChildren(Arrays.asList(a, d));
+        parent.addChild(1, b);
+
+        assertThat(parent.getChildren(), contains(c, b, a, d));
+        assertThat(parent.getChildAt(2), is(a));
+        assertThat(parent.indexOf(d), is(3));
+        assertThat(parent.indexOf(new TestTreeNode()), is(-1));
+    }
+
+    @Test
+    public void orderedChildrenCanBeInsertedAndRemovedAtPosition() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        TestTreeNode d = new TestTreeNode();
+        parent.addChildren(Arrays.asList(a, d));
+
+        parent.addChildren(1, Arrays.asList(b, c));
+        assertThat(parent.getChildren(), contains(a, b, c, d));
+
+        assertThat(parent.removeChildAt(0), is(a));
+        assertThat(parent.getChildren(), contains(b, c, d));
+        assertThat(parent.indexOf(c), is(1));
+        assertFalse(a.getParent().isPresent());
+    }
+
+    @Test
+    public void orderedChildrenRejectDuplicates() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode();
+        parent.addChild(a);
+
+        assertFalse(parent.addChild(0, a));
+        assertFalse(parent.addChildren(Arrays.asList(a, a)));
+        assertThat(parent.getChildren(), contains(a));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void orderedChildInsertPositionIsChecked() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        parent.addChild(1, new TestTreeNode());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void unorderedChildrenAreNotIndexAddressable() throws Exception {
+        nodeUnderTest.addChild(new TestTreeNode());
+        nodeUnderTest.getChildAt(0);
+    }
+
+    @Test
+    public void orderedChildrenStayConsistentUnderRandomEdits() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        List<TestTreeNode> expected = new ArrayList<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 5000; i++) {
+            if (expected.isEmpty() || random.nextInt(3) > 0) {
+                int index = random.nextInt(expected.size() + 1);
+                TestTreeNode child = new TestTreeNode();
+                parent.addChild(index, child);
+                expected.add(index, child);
+            } else {
+                int index = random.nextInt(expected.size());
+                assertThat(parent.removeChildAt(index), is(expected.remove(index)));
+            }
+        }
+
+        assertThat(parent.getChildren(), is(expected));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(parent.indexOf(expected.get(i)), is(i));
+        }
+    }
+
+    @Test
+    public void orderedEventsCarryIndexes() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        TestTreeNode d = new TestTreeNode();
+        parent.addChildren(Arrays.asList(a, d));
+
+        List<int[]> addedIndexes = new ArrayList<>();
+        List<int[]> removedIndexes = new ArrayList<>();
+        List<Set<TestTreeNode>> removed = new ArrayList<>();
+        parent.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                addedIndexes.add(indexes);
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren, int[] indexes) {
+                removed.add(removedChildren);
+                removedIndexes.add(indexes);
+            }
+        });
+
+        parent.addChildren(1, Arrays.asList(b, c));
+        parent.removeChildren(Arrays.asList(d, a));
+
+        assertArrayEquals(new int[]{1, 2}, addedIndexes.get(0));
+        assertThat(removed.get(0), contains(a, d));
+        assertArrayEquals(new int[]{0, 3}, removedIndexes.get(0));
+    }
+
+    @Test
+    public void unorderedEventsCarryNoIndexes() throws Exception {
+        List<int[]> addedIndexes = new ArrayList<>();
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                addedIndexes.add(indexes);
+            }
+        });
+
+        nodeUnderTest.addChild(new TestTreeNode());
+
+        assertThat(addedIndexes.size(), is(1));
+        assertNull(addedIndexes.get(0));
+    }
+
+    @Test
+    public void depthFollowsHierarchyChanges() throws Exception {
+        TestTreeNode parent = new TestTreeNode();
+        TestTreeNode child = new TestTreeNode();
+        TestTreeNode grandchild = new TestTreeNode();
+        child.addChild(grandchild);
+        assertThat(grandchild.getDepth(), is(1));
+
+        parent.addChild(child);
+        nodeUnderTest.addChild(parent);
+        assertThat(grandchild.getDepth(), is(3));
+
+        grandchild.setParent(nodeUnderTest);
+        assertThat(grandchild.getDepth(), is(1));
+
+        nodeUnderTest.removeChild(parent);
+        assertThat(parent.getDepth(), is(0));
+        assertThat(child.getDepth(), is(1));
+    }
+
+    @Test
+    public void ancestorsAreRecognized() throws Exception {
+        TestTreeNode child = new TestTreeNode();
+        TestTreeNode grandchild = new TestTreeNode();
+        TestTreeNode sibling = new TestTreeNode();
+        nodeUnderTest.addChildren(Arrays.asList(child, sibling));
+        child.addChild(grandchild);
+
+        assertTrue(nodeUnderTest.isAncestorOf(grandchild));
+        assertTrue(child.isAncestorOf(grandchild));
+        assertFalse(sibling.isAncestorOf(grandchild));
+        assertFalse(grandchild.isAncestorOf(nodeUnderTest));
+        assertFalse(nodeUnderTest.isAncestorOf(nodeUnderTest));
+        assertFalse(nodeUnderTest.isAncestorOf(null));
+
+        child.removeChild(grandchild);
+        assertFalse(nodeUnderTest.isAncestorOf(grandchild));
+    }
+
+    @Test
+    public void circleIsDetectedInDeepHierarchy() throws Exception {
+        TestTreeNode leaf = nodeUnderTest;
+        for (int i = 0; i < 20000; i++) {
+            TestTreeNode next = new TestTreeNode();
+            leaf.addChild(next);
+            leaf = next;
+        }
+        assertThat(leaf.getDepth(), is(20000));
+        assertTrue(nodeUnderTest.isAncestorOf(leaf));
+
+        try {
+            leaf.addChild(nodeUnderTest);
+            fail("Expected IllegalArgumentException is missing!");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void ancestryMatchesParentChainAfterRandomMoves() throws Exception {
+        Random random = new Random(7);
+        List<TestTreeNode> nodes = new ArrayList<>();
+        nodes.add(nodeUnderTest);
+        for (int i = 0; i < 300; i++) {
+            TestTreeNode node = new TestTreeNode();
+            nodes.get(random.nextInt(nodes.size())).addChild(node);
+            nodes.add(node);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            TestTreeNode moved = nodes.get(1 + random.nextInt(nodes.size() - 1));
+            TestTreeNode target = nodes.get(random.nextInt(nodes.size()));
+            if (random.nextInt(10) == 0) {
+                moved.setParent(null);
+            } else if (target != moved && !moved.isAncestorOf(target)) {
+                moved.setParent(target);
+            }
+        }
+
+        for (TestTreeNode node : nodes) {
+            int depth = 0;
+            Set<TestTreeNode> ancestors = new HashSet<>();
+            for (TestTreeNode p = node.getParent().orElse(null); p != null; p = p.getParent().orElse(null)) {
+                ancestors.add(p);
+                depth++;
+            }
+            assertThat(node.getDepth(), is(depth));
+            for (TestTreeNode other : nodes) {
+                assertThat(other.isAncestorOf(node), is(ancestors.contains(other)));
+            }
+        }
+    }
+
+    @Test
+    public void batchDeliversOneConsolidatedDeltaPerNode() throws Exception {
+        List<Set<TestTreeNode>> added = new ArrayList<>();
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                added.add(addedChildren);
+            }
+        });
+
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        TreeNode.batch(() -> {
+            nodeUnderTest.addChild(a);
+            nodeUnderTest.addChildren(Arrays.asList(b, c));
+            assertThat("Notification is deferred.", added, is(empty()));
+        });
+
+        assertThat(added.size(), is(1));
+        assertThat(added.get(0), containsInAnyOrder(a, b, c));
+    }
+
+    @Test
+    public void batchCancelsAddAndRemoveOfSameChild() throws Exception {
+        List<String> events = new ArrayList<>();
+        TestTreeNode child = new TestTreeNode();
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                events.add("added");
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren) {
+                events.add("removed");
+            }
+        });
+        child.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onParentChanged(TestTreeNode source, Optional<TestTreeNode> newParent) {
+                events.add("parent");
+            }
+        });
+
+        TreeNode.batch(() -> {
+            nodeUnderTest.addChild(child);
+            child.setParent(null);
+        });
+
+        assertThat(events, is(empty()));
+        assertThat(nodeUnderTest.getChildren(), is(empty()));
+    }
+
+    @Test
+    public void batchFoldsMovesTogether() throws Exception {
+        TestTreeNode first = new TestTreeNode();
+        TestTreeNode second = new TestTreeNode();
+        TestTreeNode third = new TestTreeNode();
+        TestTreeNode movingChild = new TestTreeNode();
+        nodeUnderTest.addChildren(Arrays.asList(first, second, third));
+        first.addChild(movingChild);
+
+        List<String> rootEvents = new ArrayList<>();
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                rootEvents.add("added to " + changedNode);
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren) {
+                rootEvents.add("removed from " + changedNode);
+            }
+        });
+        Set<TestTreeNode> removedFromFirst = new HashSet<>();
+        first.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren) {
+                removedFromFirst.addAll(removedChildren);
+            }
+        });
+        List<TestTreeNode> addedToThird = new ArrayList<>();
+        third.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                addedToThird.addAll(addedChildren);
+            }
+        });
+        List<Optional<TestTreeNode>> parentChanges = new ArrayList<>();
+        movingChild.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onParentChanged(TestTreeNode source, Optional<TestTreeNode> newParent) {
+                parentChanges.add(newParent);
+            }
+        });
+
+        TreeNode.batch(() -> {
+            movingChild.setParent(second);
+            movingChild.setParent(third);
+        });
+
+        assertThat(rootEvents, is(empty()));
+        assertThat(removedFromFirst, contains(movingChild));
+        assertThat(addedToThird, contains(movingChild));
+        assertThat(parentChanges, is(Collections.singletonList(Optional.of(third))));
+    }
+
+    @Test
+    public void failingBatchIsRolledBackWithoutNotification() throws Exception {
+        TestTreeNode kept = new TestTreeNode();
+        TestTreeNode moved = new TestTreeNode();
+        TestTreeNode otherParent = new TestTreeNode();
+        TestTreeNode rejected = new TestTreeNode();
+        nodeUnderTest.addChildren(Arrays.asList(kept, moved));
+        nodeUnderTest.addChildValidator((parent, child) -> {
+            if (child == rejected) {
+                throw new TreeNode.ChildValidator.ChildValidationException();
+            }
+        });
+        List<String> events = new ArrayList<>();
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                events.add("added");
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren) {
+                events.add("removed");
+            }
+        });
+
+        try {
+            TreeNode.batch(() -> {
+                nodeUnderTest.removeChild(kept);
+                otherParent.addChild(moved);
+                nodeUnderTest.addChild(new TestTreeNode());
+                nodeUnderTest.addChild(rejected);
+            });
+            fail("Expected ChildValidationException is missing!");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            // expected
+        }
+
+        assertThat(events, is(empty()));
+        assertThat(nodeUnderTest.getChildren(), containsInAnyOrder(kept, moved));
+        assertThat(moved.getParent().get(), is(nodeUnderTest));
+        assertThat(moved.getDepth(), is(1));
+        assertThat(otherParent.getChildren(), is(empty()));
+    }
+
+    @Test
+    public void failingNestedBatchOnlyRollsBackItsOwnChanges() throws Exception {
+        TestTreeNode outer = new TestTreeNode();
+        TestTreeNode inner = new TestTreeNode();
+        List<TestTreeNode> added = new ArrayList<>();
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                added.addAll(addedChildren);
+            }
+        });
+
+        TreeNode.batch(() -> {
+            nodeUnderTest.addChild(outer);
+            try {
+                TreeNode.batch(() -> {
+                    nodeUnderTest.addChild(inner);
+                    throw new IllegalStateException("fail inner");
+                });
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        });
+
+        assertThat(nodeUnderTest.getChildren(), contains(outer));
+        assertThat(added, contains(outer));
+    }
+
+    @Test
+    public void batchDeliversIndexesForOrderedChildren() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        TestTreeNode x = new TestTreeNode();
+        TestTreeNode y = new TestTreeNode();
+        parent.addChildren(Arrays.asList(a, b, c));
+
+        List<int[]> addedIndexes = new ArrayList<>();
+        List<int[]> removedIndexes = new ArrayList<>();
+        parent.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                addedIndexes.add(indexes);
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren, int[] indexes) {
+                removedIndexes.add(indexes);
+            }
+        });
+
+        TreeNode.batch(() -> {
+            parent.addChild(0, x);
+            parent.removeChild(c);
+            parent.addChild(y);
+        });
+
+        assertThat(parent.getChildren(), contains(x, a, b, y));
+        assertArrayEquals(new int[]{2}, removedIndexes.get(0));
+        assertArrayEquals(new int[]{0, 3}, addedIndexes.get(0));
+    }
+
+    @Test
+    public void batchDoesntNotifyChildrenReinsertedAtTheirPlace() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode c = new TestTreeNode();
+        TestTreeNode x = new TestTreeNode();
+        parent.addChildren(Arrays.asList(a, b, c));
+
+        List<Set<TestTreeNode>> added = new ArrayList<>();
+        List<Set<TestTreeNode>> removed = new ArrayList<>();
+        parent.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                added.add(addedChildren);
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren) {
+                removed.add(removedChildren);
+            }
+        });
+
+        TreeNode.batch(() -> {
+            parent.removeChild(a);
+            parent.addChild(0, x);
+            try {
+                TreeNode.batch(() -> {
+                    parent.removeChild(b);
+                    parent.removeChild(c);
+                    throw new IllegalStateException("fail inner");
+                });
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            parent.removeChild(c);
+            parent.addChild(2, c);
+        });
+
+        assertThat(parent.getChildren(), contains(x, b, c));
+        assertThat(removed, contains(contains(a)));
+        assertThat(added, contains(contains(x)));
+    }
+
+    @Test
+    public void batchNotifiesChildrenReinsertedAtTheirIndexAmongOtherSiblings() throws Exception {
+        TestTreeNode parent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode x = new TestTreeNode();
+        TestTreeNode b = new TestTreeNode();
+        TestTreeNode k = new TestTreeNode();
+        TestTreeNode y = new TestTreeNode();
+        parent.addChildren(Arrays.asList(x, b, k));
+
+        List<TestTreeNode> replayed = new ArrayList<>(parent.getChildren());
+        parent.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                int i = 0;
+                for (TestTreeNode child : addedChildren) {
+                    replayed.add(indexes[i++], child);
+                }
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren, int[] indexes) {
+                replayed.removeAll(removedChildren);
+            }
+        });
+
+        TreeNode.batch(() -> {
+            parent.removeChild(x);
+            parent.removeChild(b);
+            parent.addChild(b);
+            parent.addChild(y);
+        });
+
+        assertThat(parent.getChildren(), contains(k, b, y));
+        assertThat(replayed, is(new ArrayList<>(parent.getChildren())));
+    }
+
+    @Test
+    public void subtreeObserverReceivesEachChangeOnceWithPath() throws Exception {
+        TestTreeNode child = new TestTreeNode();
+        TestTreeNode grandchild = new TestTreeNode();
+        nodeUnderTest.addChild(child);
+
+        List<HierarchyEvent<TestTreeNode>> events = new ArrayList<>();
+        List<TestTreeNode> observedNodes = new ArrayList<>();
+        nodeUnderTest.addSubtreeObserver((observedNode, event) -> {
+            observedNodes.add(observedNode);
+            events.add(event);
+        });
+
+        child.addChild(grandchild);
+
+        assertThat(events.size(), is(2));
+        assertThat(observedNodes, everyItem(is(nodeUnderTest)));
+        HierarchyEvent<TestTreeNode> added = events.get(0);
+        assertThat(added.getType(), is(HierarchyEvent.Type.CHILDREN_ADDED));
+        assertThat(added.getChangedNode(), is(child));
+        assertThat(added.getChildren(), contains(grandchild));
+        assertThat(added.getPath(), contains(nodeUnderTest, child));
+        HierarchyEvent<TestTreeNode> parentChanged = events.get(1);
+        assertThat(parentChanged.getType(), is(HierarchyEvent.Type.PARENT_CHANGED));
+        assertThat(parentChanged.getChangedNode(), is(grandchild));
+        assertThat(parentChanged.getNewParent().get(), is(child));
+        assertThat(parentChanged.getPath(), contains(nodeUnderTest, child, grandchild));
+    }
+
+    @Test
+    public void subtreeObserverSeesMovesInsideSubtree() throws Exception {
+        TestTreeNode oldParent = new TestTreeNode();
+        TestTreeNode newParent = new TestTreeNode();
+        TestTreeNode movingChild = new TestTreeNode();
+        nodeUnderTest.addChildren(Arrays.asList(oldParent, newParent));
+        oldParent.addChild(movingChild);
+
+        List<HierarchyEvent.Type> types = new ArrayList<>();
+        TreeNode.SubtreeObserver<TestTreeNode> observer = nodeUnderTest.addSubtreeObserver((observedNode, event) -> types.add(event.getType()));
+
+        movingChild.setParent(newParent);
+        assertThat(types, contains(HierarchyEvent.Type.CHILDREN_REMOVED, HierarchyEvent.Type.CHILDREN_ADDED, HierarchyEvent.Type.PARENT_CHANGED));
+
+        nodeUnderTest.removeSubtreeObserver(observer);
+        movingChild.setParent(oldParent);
+        assertThat(types.size(), is(3));
+    }
+
+    @Test
+    public void subtreeObserversNeverRegisteredAreNotRemoved() throws Exception {
+        assertFalse(nodeUnderTest.removeSubtreeObserver((observedNode, event) -> fail("Not registered!")));
+
+        TestTreeNode child = new TestTreeNode();
+        nodeUnderTest.addChild(child);
+        assertThat(nodeUnderTest.getChildren(), contains(child));
+    }
+
+    @Test
+    public void childrenAreAddedWithoutAsyncValidatorsEverRegistered() throws Exception {
+        nodeUnderTest.removeAsyncChildValidator((parent, children) -> CompletableFuture.completedFuture(null));
+
+        TestTreeNode child = new TestTreeNode();
+        nodeUnderTest.addChild(child);
+        assertThat(nodeUnderTest.getChildren(), contains(child));
+    }
+
+    @Test
+    public void childrenAreNotObservedByTheirParent() throws Exception {
+        TestTreeNode child = new TestTreeNode();
+        nodeUnderTest.addChild(child);
+
+        TreeNode.HierarchyObserver<TestTreeNode> observer = new TreeNode.HierarchyObserver<TestTreeNode>() {};
+        assertTrue("Child has no forwarding observer to remove.", !child.removeObserver(observer));
+        child.addObserver(observer);
+        assertTrue(child.removeObserver(observer));
+    }
+
+    @Test
+    public void changesInDeepHierarchyAreForwardedToRoot() throws Exception {
+        int[] forwarded = {0};
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                forwarded[0]++;
+            }
+        });
+
+        TestTreeNode leaf = nodeUnderTest;
+        for (int i = 0; i < 20000; i++) {
+            TestTreeNode next = new TestTreeNode();
+            leaf.addChild(next);
+            leaf = next;
+        }
+
+        assertThat(forwarded[0], is(20000));
+    }
+
+    /**
+     * root - a (a1, a2 (a21)), b
+     */
+    private List<TestTreeNode> buildOrderedTree() throws Exception {
+        TestTreeNode root = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a1 = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a2 = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a21 = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode b = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        root.addChildren(Arrays.asList(a, b));
+        a.addChildren(Arrays.asList(a1, a2));
+        a2.addChild(a21);
+        return Arrays.asList(root, a, a1, a2, a21, b);
+    }
+
+    @Test
+    public void streamTraversesInAllOrders() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), a = tree.get(1), a1 = tree.get(2), a2 = tree.get(3), a21 = tree.get(4), b = tree.get(5);
+
+        assertThat(root.stream(TreeNode.TraversalOrder.PRE_ORDER).collect(Collectors.toList()), contains(root, a, a1, a2, a21, b));
+        assertThat(root.stream(TreeNode.TraversalOrder.POST_ORDER).collect(Collectors.toList()), contains(a1, a21, a2, a, b, root));
+        assertThat(root.stream(TreeNode.TraversalOrder.BREADTH_FIRST).collect(Collectors.toList()), contains(root, a, b, a1, a2, a21));
+        assertThat(root.descendants().collect(Collectors.toList()), contains(a, a1, a2, a21, b));
+        assertThat(a21.descendants(TreeNode.TraversalOrder.BREADTH_FIRST).count(), is(0L));
+    }
+
+    @Test
+    public void parallelStreamSplitsAndKeepsEncounterOrder() throws Exception {
+        TestTreeNode root = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        List<TestTreeNode> level = Collections.singletonList(root);
+        for (int depth = 0; depth < 6; depth++) {
+            List<TestTreeNode> nextLevel = new ArrayList<>();
+            for (TestTreeNode node : level) {
+                for (int i = 0; i < 5; i++) {
+                    TestTreeNode child = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+                    node.addChild(child);
+                    nextLevel.add(child);
+                }
+            }
+            level = nextLevel;
+        }
+
+        for (TreeNode.TraversalOrder order : TreeNode.TraversalOrder.values()) {
+            List<TestTreeNode> sequential = root.stream(order).collect(Collectors.toList());
+            assertThat(sequential.size(), is(19531));
+            assertThat(new HashSet<>(sequential).size(), is(19531));
+            assertThat(root.stream(order).parallel().collect(Collectors.toList()), is(sequential));
+            assertThat(root.stream(order).spliterator().trySplit(), is(notNullValue()));
+        }
+    }
+
+    @Test
+    public void streamHandlesDeepHierarchy() throws Exception {
+        TestTreeNode leaf = nodeUnderTest;
+        for (int i = 0; i < 10000; i++) {
+            TestTreeNode next = new TestTreeNode();
+            leaf.addChild(next);
+            leaf = next;
+        }
+
+        assertThat(nodeUnderTest.stream(TreeNode.TraversalOrder.POST_ORDER).findFirst().get(), is(leaf));
+        assertThat(nodeUnderTest.descendants().parallel().count(), is(10000L));
+        assertThat(nodeUnderTest.reduce(0, node -> 1, Integer::sum), is(10001));
+    }
+
+    @Test
+    public void reduceCombinesAllNodes() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        assertThat(tree.get(0).reduce(0, TreeNode::getDepth, Integer::sum), is(0 + 1 + 2 + 2 + 3 + 1));
+        assertThat(tree.get(3).reduce(0, node -> 1, Integer::sum), is(2));
+    }
+
+    @Test
+    public void reduceTerminatesEarly() throws Exception {
+        TestTreeNode root = new TestTreeNode();
+        for (int i = 0; i < 1000; i++) {
+            TestTreeNode child = new TestTreeNode();
+            root.addChild(child);
+            child.addChild(new TestTreeNode());
+        }
+
+        AtomicInteger mapped = new AtomicInteger();
+        int result = root.reduce(0, node -> mapped.incrementAndGet() > 0 ? 1 : 0, Integer::sum, count -> count >= 10);
+
+        assertThat(result, is(greaterThanOrEqualTo(10)));
+        assertThat(mapped.get(), is(lessThan(2001)));
+    }
+
+    @Test
+    public void visitSkipsSubtreesAndTerminates() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), a = tree.get(1);
+
+        Set<TestTreeNode> visited = Collections.synchronizedSet(new HashSet<>());
+        assertTrue(root.visit(node -> {
+            visited.add(node);
+            return node == a ? TreeNode.VisitResult.SKIP_SUBTREE : TreeNode.VisitResult.CONTINUE;
+        }));
+        assertThat(visited, containsInAnyOrder(root, a, tree.get(5)));
+
+        visited.clear();
+        assertFalse(root.visit(node -> {
+            visited.add(node);
+            return TreeNode.VisitResult.TERMINATE;
+        }));
+        assertThat(visited, contains(root));
+    }
+
+    @Test
+    public void commonAggregatesDescribeSubtree() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), a = tree.get(1), a21 = tree.get(4);
+
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(6));
+        assertThat(root.aggregate(SubtreeAggregates.height()), is(3));
+        assertThat(root.aggregate(SubtreeAggregates.leafCount()), is(3));
+        assertThat(a.aggregate(SubtreeAggregates.size()), is(4));
+        assertThat(a21.aggregate(SubtreeAggregates.height()), is(0));
+    }
+
+    @Test
+    public void aggregatesFollowChangesOfHierarchy() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), a = tree.get(1), a2 = tree.get(3), a21 = tree.get(4), b = tree.get(5);
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(6));
+        assertThat(a.aggregate(SubtreeAggregates.height()), is(2));
+
+        a21.addChild(new TestTreeNode());
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(7));
+        assertThat(a.aggregate(SubtreeAggregates.height()), is(3));
+
+        a2.setParent(b);
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(7));
+        assertThat(a.aggregate(SubtreeAggregates.size()), is(2));
+        assertThat(b.aggregate(SubtreeAggregates.size()), is(4));
+
+        root.removeChild(b);
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(3));
+        assertThat(b.aggregate(SubtreeAggregates.height()), is(3));
+    }
+
+    @Test
+    public void aggregatesAreOnlyRecomputedAlongChangedPath() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), a21 = tree.get(4);
+        Map<TestTreeNode, Long> bytes = new HashMap<>();
+        List<TestTreeNode> computed = new ArrayList<>();
+        TreeNode.SubtreeAggregate<TestTreeNode, Long> totalBytes = SubtreeAggregates.sum(node -> {
+            computed.add(node);
+            return bytes.getOrDefault(node, 1L);
+        });
+
+        assertThat(root.aggregate(totalBytes), is(6L));
+        assertThat(computed.size(), is(6));
+
+        computed.clear();
+        assertThat(root.aggregate(totalBytes), is(6L));
+        assertThat(computed, is(empty()));
+
+        bytes.put(a21, 100L);
+        a21.invalidateAggregates();
+        assertThat(root.aggregate(totalBytes), is(105L));
+        assertThat(computed, containsInAnyOrder(a21, tree.get(3), tree.get(1), root));
+    }
+
+    @Test
+    public void aggregatesHandleDeepHierarchy() throws Exception {
+        TestTreeNode leaf = nodeUnderTest;
+        for (int i = 0; i < 10000; i++) {
+            TestTreeNode next = new TestTreeNode();
+            leaf.addChild(next);
+            leaf = next;
+        }
+
+        assertThat(nodeUnderTest.aggregate(SubtreeAggregates.height()), is(10000));
+        leaf.addChild(new TestTreeNode());
+        assertThat(nodeUnderTest.aggregate(SubtreeAggregates.height()), is(10001));
+    }
+
+    @Test
+    public void rolledBackBatchLeavesAggregatesConsistent() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), b = tree.get(5);
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(6));
+
+        try {
+            TreeNode.batch(() -> {
+                b.addChild(new TestTreeNode());
+                assertThat(root.aggregate(SubtreeAggregates.size()), is(7));
+                throw new IllegalStateException("rollback");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(6));
+    }
+
+    @Test
+    public void snapshotMirrorsHierarchy() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0);
+
+        TreeSnapshot<TestTreeNode> snapshot = root.snapshot();
+
+        assertThat(snapshot.getNode(), is(root));
+        assertThat(snapshot.getSize(), is(6));
+        assertThat(snapshot.stream().map(TreeSnapshot::getNode).collect(Collectors.toList()), is(root.stream(TreeNode.TraversalOrder.PRE_ORDER).collect(Collectors.toList())));
+        assertThat(root.snapshot(), is(sameInstance(snapshot)));
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), a = tree.get(1), a2 = tree.get(3), b = tree.get(5);
+        TreeSnapshot<TestTreeNode> before = root.snapshot();
+
+        a2.setParent(b);
+        root.addChild(new TestTreeNode());
+        TreeSnapshot<TestTreeNode> after = root.snapshot();
+
+        assertThat(before.getSize(), is(6));
+        assertThat(before.getChildren().get(0).getChildCount(), is(2));
+        assertThat(before.getChildren().get(1).getChildCount(), is(0));
+        assertThat(after.getSize(), is(7));
+        assertThat(after.getChildren().get(0).getNode(), is(a));
+        assertThat(after.getChildren().get(0).getChildCount(), is(1));
+        assertThat(after.getChildren().get(1).getChildren().get(0).getNode(), is(a2));
+    }
+
+    @Test
+    public void snapshotsShareUnchangedSubtrees() throws Exception {
+        List<TestTreeNode> tree = buildOrderedTree();
+        TestTreeNode root = tree.get(0), b = tree.get(5);
+        TreeSnapshot<TestTreeNode> before = root.snapshot();
+
+        b.addChild(new TestTreeNode());
+        TreeSnapshot<TestTreeNode> after = root.snapshot();
+
+        assertThat(after, is(not(sameInstance(before))));
+        assertThat(after.getChildren().get(0), is(sameInstance(before.getChildren().get(0))));
+        assertThat(after.getChildren().get(1), is(not(sameInstance(before.getChildren().get(1)))));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotIsImmutable() throws Exception {
+        buildOrderedTree().get(0).snapshot().getChildren().clear();
+    }
+
+    @Test
+    public void moveChildrenNotifiesOncePerParent() throws Exception {
+        TestTreeNode oldParent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode newParent = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode a = new TestTreeNode(), b = new TestTreeNode(), c = new TestTreeNode(), d = new TestTreeNode();
+        nodeUnderTest.addChildren(Arrays.asList(oldParent, newParent));
+        oldParent.addChildren(Arrays.asList(a, b, c));
+        newParent.addChild(d);
+
+        List<String> events = new ArrayList<>();
+        TreeNode.HierarchyObserver<TestTreeNode> recorder = new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren, int[] indexes) {
+                events.add("added " + addedChildren.size() + " " + Arrays.toString(indexes));
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren, int[] indexes) {
+                events.add("removed " + removedChildren.size() + " " + Arrays.toString(indexes));
+            }
+
+            @Override
+            public void onParentChanged(TestTreeNode source, Optional<TestTreeNode> newParent) {
+                events.add("parent changed");
+            }
+        };
+        oldParent.addObserver(recorder);
+        newParent.addObserver(recorder);
+        a.addObserver(recorder);
+        c.addObserver(recorder);
+        List<String> rootEvents = new ArrayList<>();
+        nodeUnderTest.addObserver(new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                rootEvents.add("added");
+            }
+
+            @Override
+            public void onChildrenRemoved(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> removedChildren) {
+                rootEvents.add("removed");
+            }
+        });
+
+        assertTrue(oldParent.moveChildren(Arrays.asList(c, a, d), newParent));
+
+        assertThat(oldParent.getChildren(), contains(b));
+        assertThat(newParent.getChildren(), contains(d, a, c));
+        assertThat(events, contains("removed 2 [0, 2]", "added 2 [1, 2]", "parent changed", "parent changed"));
+        assertThat("Moves within the subtree aren't forwarded.", rootEvents, is(empty()));
+    }
+
+    @Test
+    public void moveChildrenIsAtomicOnCircle() throws Exception {
+        TestTreeNode a = new TestTreeNode(), b = new TestTreeNode(), b1 = new TestTreeNode();
+        nodeUnderTest.addChildren(Arrays.asList(a, b));
+        b.addChild(b1);
+
+        try {
+            nodeUnderTest.moveChildren(Arrays.asList(a, b), b1);
+            fail("Moving a node below itself should be rejected!");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertThat(nodeUnderTest.getChildren(), containsInAnyOrder(a, b));
+
+        assertTrue(nodeUnderTest.moveChildren(Collections.singleton(a), b1));
+        assertThat(a.getParent().get(), is(b1));
+        assertThat(a.getDepth(), is(3));
+    }
+
+    @Test
+    public void moveChildrenIsAtomicOnFailedValidation() throws Exception {
+        TestTreeNode a = new TestTreeNode(), b = new TestTreeNode(), target = new TestTreeNode();
+        nodeUnderTest.addChildren(Arrays.asList(a, b));
+        target.addChildValidator((parent, child) -> {
+            if (child == b) {
+                throw new TreeNode.ChildValidator.ChildValidationException();
+            }
+        });
+
+        try {
+            nodeUnderTest.moveChildren(Arrays.asList(a, b), target);
+            fail("Validation should fail!");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            // expected
+        }
+        assertThat(nodeUnderTest.getChildren(), containsInAnyOrder(a, b));
+        assertThat(target.getChildren(), is(empty()));
+    }
+
+    @Test
+    public void moveChildrenIgnoresOtherNodes() throws Exception {
+        TestTreeNode stranger = new TestTreeNode();
+        assertFalse(nodeUnderTest.moveChildren(Collections.singleton(stranger), new TestTreeNode()));
+        assertFalse(nodeUnderTest.moveChildren(Collections.emptyList(), new TestTreeNode()));
+    }
+
+    @Test
+    public void keyedChildrenAreResolvedByPath() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("root");
+        NamedTreeNode region = new NamedTreeNode("region");
+        NamedTreeNode site = new NamedTreeNode("site");
+        NamedTreeNode host = new NamedTreeNode("host");
+        root.addChild(region);
+        region.addChildren(Arrays.asList(site, new NamedTreeNode("other")));
+        site.addChild(host);
+
+        assertThat(root.hasKeyedChildren(), is(true));
+        assertThat(region.getChild("site"), is(Optional.of(site)));
+        assertThat(region.getChild("missing"), is(Optional.empty()));
+        assertThat(root.resolve("/region/site/host"), is(Optional.of(host)));
+        assertThat(root.resolve("region/site/"), is(Optional.of(site)));
+        assertThat(root.resolve(""), is(Optional.of(root)));
+        assertThat(root.resolve("/region/missing/host"), is(Optional.empty()));
+        assertThat(root.resolve(Arrays.asList("region", "site")), is(Optional.of(site)));
+    }
+
+    @Test
+    public void keyIndexFollowsHierarchyChanges() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("root");
+        NamedTreeNode a = new NamedTreeNode("a");
+        NamedTreeNode b = new NamedTreeNode("b");
+        NamedTreeNode child = new NamedTreeNode("child");
+        root.addChildren(Arrays.asList(a, b));
+        a.addChild(child);
+
+        child.setParent(b);
+        assertThat(a.getChild("child"), is(Optional.empty()));
+        assertThat(b.getChild("child"), is(Optional.of(child)));
+
+        b.moveChildren(Collections.singleton(child), a);
+        assertThat(a.getChild("child"), is(Optional.of(child)));
+        assertThat(b.getChild("child"), is(Optional.empty()));
+
+        a.removeChild(child);
+        assertThat(a.getChild("child"), is(Optional.empty()));
+    }
+
+    @Test
+    public void duplicateKeysAreRejected() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("root");
+        NamedTreeNode first = new NamedTreeNode("x");
+        root.addChild(first);
+
+        try {
+            root.addChild(new NamedTreeNode("x"));
+            fail("Expected IllegalArgumentException is missing!");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        try {
+            root.addChildren(Arrays.asList(new NamedTreeNode("y"), new NamedTreeNode("y")));
+            fail("Expected IllegalArgumentException is missing!");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        assertThat(root.getChildren(), contains(first));
+        assertThat(root.getChild("x"), is(Optional.of(first)));
+        assertThat(root.getChild("y"), is(Optional.empty()));
+    }
+
+    @Test
+    public void announcedKeyChangesAreReindexed() throws Exception {
+        NamedTreeNode root = new NamedTreeNode("root");
+        NamedTreeNode a = new NamedTreeNode("a");
+        NamedTreeNode b = new NamedTreeNode("b");
+        root.addChildren(Arrays.asList(a, b));
+
+        a.rename("c");
+        assertThat(root.getChild("a"), is(Optional.empty()));
+        assertThat(root.getChild("c"), is(Optional.of(a)));
+
+        try {
+            a.rename("b");
+            fail("Expected IllegalArgumentException is missing!");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        assertThat(root.getChild("b"), is(Optional.of(b)));
+        assertThat(root.getChild("c"), is(Optional.of(a)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void unkeyedChildrenCannotBeLookedUp() throws Exception {
+        nodeUnderTest.getChild("any");
+    }
+
+    @Test
+    public void lowestCommonAncestorAndPathAreFoundInDeepChains() throws Exception {
+        List<TestTreeNode> chain = new ArrayList<>();
+        chain.add(new TestTreeNode());
+        for (int i = 1; i < 100; i++) {
+            TestTreeNode node = new TestTreeNode();
+            chain.get(i - 1).addChild(node);
+            chain.add(node);
+        }
+        TestTreeNode branch = new TestTreeNode();
+        TestTreeNode leaf = new TestTreeNode();
+        chain.get(37).addChild(branch);
+        branch.addChild(leaf);
+
+        assertThat(chain.get(99).getAncestorAtDepth(37), is(sameInstance(chain.get(37))));
+        assertThat(chain.get(99).getLowestCommonAncestor(leaf), is(Optional.of(chain.get(37))));
+        assertThat(leaf.getLowestCommonAncestor(chain.get(20)), is(Optional.of(chain.get(20))));
+        assertThat(chain.get(99).getDistance(leaf), is(62 + 2));
+        assertThat(leaf.getDistance(leaf), is(0));
+
+        List<TestTreeNode> path = leaf.getPathTo(chain.get(40));
+        assertThat(path, contains(leaf, branch, chain.get(37), chain.get(38), chain.get(39), chain.get(40)));
+    }
+
+    @Test
+    public void nodesOfDifferentTreesHaveNoCommonAncestor() throws Exception {
+        TestTreeNode other = new TestTreeNode();
+
+        assertThat(nodeUnderTest.getLowestCommonAncestor(other), is(Optional.empty()));
+        assertThat(nodeUnderTest.getDistance(other), is(-1));
+        assertThat(nodeUnderTest.getPathTo(other), is(empty()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ancestorBelowNodeIsRejected() throws Exception {
+        nodeUnderTest.getAncestorAtDepth(1);
+    }
+
+    @Test
+    public void unobservedSingleChildMutationsDontAllocate() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        TestTreeNode first = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        TestTreeNode second = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+        nodeUnderTest.addChildren(Arrays.asList(first, second));
+        for (int i = 0; i < 100; i++) {
+            first.addChild(new TestTreeNode(TreeNode.ChildOrder.ORDERED));
+        }
+        TestTreeNode child = new TestTreeNode(TreeNode.ChildOrder.ORDERED);
+
+        churn(first, second, child, 20000); // warm-up, so lazily initialized JDK internals don't count
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        churn(first, second, child, 10000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertThat(allocated, is(lessThan(1024L)));
+    }
+
+    @Test
+    public void observersRegisteredAboveExistingDescendantsAreNotifiedOfTheirChanges() throws Exception {
+        TestTreeNode child = new TestTreeNode();
+        TestTreeNode grandchild = new TestTreeNode();
+        TestTreeNode leaf = new TestTreeNode();
+        nodeUnderTest.addChild(child);
+        child.addChild(grandchild);
+        grandchild.addChild(leaf);
+
+        List<TestTreeNode> notified = new ArrayList<>();
+        TreeNode.HierarchyObserver<TestTreeNode> observer = new TreeNode.HierarchyObserver<TestTreeNode>() {
+            @Override
+            public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+                notified.add(eventSource);
+            }
+        };
+        child.addObserver(observer);
+        grandchild.addObserver(observer);
+        leaf.addChild(new TestTreeNode());
+        assertThat(notified, contains(grandchild, child));
+
+        notified.clear();
+        child.removeObserver(observer);
+        leaf.addChild(new TestTreeNode());
+        assertThat(notified, contains(grandchild));
+
+        notified.clear();
+        grandchild.removeObserver(observer);
+        leaf.addChild(new TestTreeNode());
+        assertThat(notified, is(empty()));
+
+        nodeUnderTest.addObserver(observer);
+        TestTreeNode moved = new TestTreeNode();
+        moved.addChild(new TestTreeNode());
+        leaf.addChild(moved);
+        moved.addChild(new TestTreeNode());
+        assertThat(notified, contains(nodeUnderTest, nodeUnderTest));
+    }
+
+    @Test
+    public void onlyFlippingObservationReindexesTheUnobservedPartOfTheSubtree() throws Exception {
+        IndexCountingTreeNode root = new IndexCountingTreeNode();
+        IndexCountingTreeNode child = new IndexCountingTreeNode();
+        IndexCountingTreeNode sibling = new IndexCountingTreeNode();
+        IndexCountingTreeNode observedGrandchild = new IndexCountingTreeNode();
+        IndexCountingTreeNode leaf = new IndexCountingTreeNode();
+        root.addChildren(Arrays.asList(child, sibling));
+        child.addChild(observedGrandchild);
+        observedGrandchild.addChild(leaf);
+        List<IndexCountingTreeNode> nodes = Arrays.asList(root, child, sibling, observedGrandchild, leaf);
+        TreeNode.HierarchyObserver<IndexCountingTreeNode> first = new TreeNode.HierarchyObserver<IndexCountingTreeNode>() {
+        };
+        TreeNode.HierarchyObserver<IndexCountingTreeNode> second = new TreeNode.HierarchyObserver<IndexCountingTreeNode>() {
+        };
+        observedGrandchild.addObserver(first);
+        nodes.forEach(node -> node.reindexed = 0);
+
+        root.addObserver(first);
+        assertThat(nodes.stream().map(node -> node.reindexed).collect(Collectors.toList()), contains(1, 1, 1, 0, 0));
+
+        root.addObserver(second);
+        root.removeObserver(second);
+        assertThat(nodes.stream().map(node -> node.reindexed).collect(Collectors.toList()), contains(1, 1, 1, 0, 0));
+
+        root.removeObserver(first);
+        assertThat(nodes.stream().map(node -> node.reindexed).collect(Collectors.toList()), contains(2, 2, 2, 0, 0));
+    }
+
+    private static void churn(TestTreeNode first,TestTreeNode second, TestTreeNode child, int cycles) throws Exception {
+        for (int i = 0; i < cycles; i++) {
+            first.addChild(50, child);
+            second.addChild(child);
+            second.removeChild(child);
+            assertEquals(100, first.getChildren().size());
+        }
+    }
+
     private static class TestTreeNode extends TreeNode<TestTreeNode> {
-        // no implementation
+
+        TestTreeNode() {
+        }
+
+        TestTreeNode(ChildOrder childOrder) {
+            super(childOrder);
+        }
+    }
+
+    private static class NamedTreeNode extends TreeNode<NamedTreeNode> {
+
+        private String name;
+
+        NamedTreeNode(String name) {
+            super(ChildOrder.UNORDERED, node -> node.name);
+            this.name = name;
+        }
+
+        void rename(String newName) {
+            final String oldName = name;
+            name = newName;
+            try {
+                keyChanged();
+            } catch (IllegalArgumentException e) {
+                name = oldName;
+                throw e;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class IndexCountingTreeNode extends TreeNode<IndexCountingTreeNode> {
+
+        private int reindexed = 0;
+
+        @Override
+        Iterable<IndexCountingTreeNode> indexOwnObserved() {
+            reindexed++;
+            return super.indexOwnObserved();
+        }
     }
 
     private static class TestTreeNodeExtended extends TestTreeNode {
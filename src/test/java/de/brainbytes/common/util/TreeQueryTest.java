@@ -0,0 +1,130 @@
+package de.brainbytes.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class TreeQueryTest {
+
+    private TestTreeNode root;
+    private TestTreeNode rack1;
+    private TestTreeNode rack2;
+    private TestTreeNode host1;
+    private TestTreeNode host2;
+    private TestTreeNode host3;
+    private TreeIndex<TestTreeNode, String> typeIndex;
+    private TreeIndex<TestTreeNode, String> stateIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        root = new TestTreeNode("root", "site", "up");
+        rack1 = new TestTreeNode("rack1", "rack", "up");
+        rack2 = new TestTreeNode("rack2", "rack", "down");
+        host1 = new TestTreeNode("host1", "host", "down");
+        host2 = new TestTreeNode("host2", "host", "up");
+        host3 = new TestTreeNode("host3", "host", "down");
+        root.addChild(rack1);
+        root.addChild(rack2);
+        rack1.addChild(host1);
+        rack1.addChild(host2);
+        rack2.addChild(host3);
+        typeIndex = TreeIndex.register(root, node -> node.type);
+        stateIndex = TreeIndex.register(root, node -> node.state);
+    }
+
+    @Test
+    public void descendantsAreSelectedByIndexedAttributes() throws Exception {
+        TreeQuery<TestTreeNode> downHosts = TreeQuery.<TestTreeNode>create().descendants()
+                .where(typeIndex, "host")
+                .where(stateIndex, "down");
+
+        assertThat(downHosts.select(root), containsInAnyOrder(host1, host3));
+        assertThat(downHosts.select(rack1), contains(host1));
+        assertThat(downHosts.select(host1), is(empty()));
+    }
+
+    @Test
+    public void selectiveIndexAvoidsScanning() throws Exception {
+        AtomicInteger tested = new AtomicInteger();
+        TreeQuery<TestTreeNode> downRacks = TreeQuery.<TestTreeNode>create().descendants()
+                .where(typeIndex, "rack")
+                .where(stateIndex, "down")
+                .where(node -> tested.incrementAndGet() > 0);
+
+        assertThat(downRacks.select(root), contains(rack2));
+        assertThat(tested.get(), is(1));
+    }
+
+    @Test
+    public void indexesFollowTheHierarchy() throws Exception {
+        TestTreeNode host4 = new TestTreeNode("host4", "host", "down");
+        TestTreeNode rack3 = new TestTreeNode("rack3", "rack", "up");
+        rack3.addChild(host4);
+        root.addChild(rack3);
+        assertThat(stateIndex.get("down"), containsInAnyOrder(rack2, host1, host3, host4));
+
+        root.removeChild(rack2);
+        assertThat(stateIndex.get("down"), containsInAnyOrder(host1, host4));
+
+        rack1.moveChildren(Collections.singleton(host1), rack3);
+        assertThat(stateIndex.get("down"), containsInAnyOrder(host1, host4));
+
+        host2.state = "down";
+        stateIndex.update(host2);
+        assertThat(stateIndex.count("down"), is(3));
+        assertThat(stateIndex.count("up"), is(3));
+
+        TreeQuery<TestTreeNode> downHosts = TreeQuery.<TestTreeNode>create().descendants().where(typeIndex, "host").where(stateIndex, "down");
+        assertThat(downHosts.select(rack3), containsInAnyOrder(host1, host4));
+    }
+
+    @Test
+    public void unindexedContextsAreScanned() throws Exception {
+        TestTreeNode other = new TestTreeNode("other", "site", "up");
+        TestTreeNode host = new TestTreeNode("host", "host", "down");
+        other.addChild(host);
+
+        assertThat(TreeQuery.<TestTreeNode>create().descendants().where(typeIndex, "host").select(other), contains(host));
+    }
+
+    @Test
+    public void stepsFollowTheirAxes() throws Exception {
+        assertThat(TreeQuery.<TestTreeNode>create().children().select(root), containsInAnyOrder(rack1, rack2));
+        assertThat(TreeQuery.<TestTreeNode>create().ancestors().select(host3), contains(rack2, root));
+        assertThat(TreeQuery.<TestTreeNode>create().siblings().select(host1), contains(host2));
+        assertThat(TreeQuery.<TestTreeNode>create().children().children().where(stateIndex, "up").select(root), contains(host2));
+        assertThat(TreeQuery.<TestTreeNode>create().descendants().ancestors().select(root), containsInAnyOrder(root, rack1, rack2));
+        assertThat(TreeQuery.<TestTreeNode>create().where(node -> node.type.equals("host")).selectFirst(root).isPresent(), is(false));
+    }
+
+    @Test
+    public void unregisteredIndexesStopFollowing() throws Exception {
+        assertThat(typeIndex.unregister(), is(true));
+        root.removeChild(rack2);
+
+        assertThat(typeIndex.get("host"), containsInAnyOrder(host1, host2, host3));
+    }
+
+    private static class TestTreeNode extends TreeNode<TestTreeNode> {
+
+        private final String name;
+        private final String type;
+        private String state;
+
+        TestTreeNode(String name, String type, String state) {
+            this.name = name;
+            this.type = type;
+            this.state = state;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
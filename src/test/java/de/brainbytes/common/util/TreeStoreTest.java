@@ -0,0 +1,341 @@
+package de.brainbytes.common.util;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class TreeStoreTest {
+
+    @Test
+    public void columnsFollowChanges() throws Exception {
+        TreeStore store = new TreeStore();
+        int root = store.createNode();
+        int a = store.createNode();
+        int b = store.createNode();
+        int c = store.createNode();
+
+        store.addChild(root, a);
+        store.addChild(root, c);
+        store.addChild(root, 1, b);
+
+        assertThat(store.size(), is(4));
+        assertThat(store.getChildCount(root), is(3));
+        assertThat(store.getFirstChild(root), is(a));
+        assertThat(store.getNextSibling(a), is(b));
+        assertThat(store.getNextSibling(b), is(c));
+        assertThat(store.getLastChild(root), is(c));
+        assertThat(store.getPreviousSibling(c), is(b));
+        assertThat(store.getParent(b), is(root));
+        assertThat(store.getDepth(b), is(1));
+
+        store.addChild(a, b);
+
+        assertThat(store.getNextSibling(a), is(c));
+        assertThat(store.getPreviousSibling(c), is(a));
+        assertThat(store.getFirstChild(a), is(b));
+        assertThat(store.getDepth(b), is(2));
+        assertThat(store.isAncestorOf(root, b), is(true));
+        assertThat(store.isAncestorOf(c, b), is(false));
+
+        assertThat(store.detach(a), is(true));
+        assertThat(store.getParent(a), is(TreeStore.NO_NODE));
+        assertThat(store.getDepth(b), is(1));
+        assertThat(store.getChildCount(root), is(1));
+    }
+
+    @Test
+    public void circlesAreRejected() throws Exception {
+        TreeStore store = new TreeStore();
+        int root = store.createNode();
+        int child = store.createNode();
+        store.addChild(root, child);
+
+        try {
+            store.addChild(child, root);
+            fail("Expected IllegalArgumentException is missing!");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        assertThat(store.getParent(root), is(TreeStore.NO_NODE));
+    }
+
+    @Test
+    public void deletedIdsAreReused() throws Exception {
+        TreeStore store = new TreeStore();
+        int root = store.createNode();
+        int a = store.createNode();
+        int a1 = store.createNode();
+        store.addChild(root, a);
+        store.addChild(a, a1);
+
+        store.delete(a);
+
+        assertThat(store.size(), is(1));
+        assertThat(store.contains(a), is(false));
+        assertThat(store.contains(a1), is(false));
+        assertThat(store.getChildCount(root), is(0));
+        assertThat(Arrays.asList(store.createNode(), store.createNode()), containsInAnyOrder(a, a1));
+        assertThat(store.getParent(a1), is(TreeStore.NO_NODE));
+    }
+
+    @Test
+    public void offHeapStoreGrowsBeyondInitialCapacity() throws Exception {
+        TreeStore store = new TreeStore(TreeStore.Backing.OFF_HEAP, 2);
+        int root = store.createNode();
+        int parent = root;
+        for (int i = 0; i < 10000; i++) {
+            int child = store.createNode();
+            store.addChild(parent, child);
+            parent = i % 100 == 0 ? child : parent;
+        }
+
+        assertThat(store.size(), is(10001));
+        assertThat(store.getDepth(parent), is(100));
+        int[] visited = {0};
+        store.forEachInSubtree(root, id -> visited[0]++);
+        assertThat(visited[0], is(10001));
+    }
+
+    @Test
+    public void flyweightsBehaveLikeTreeNodes() throws Exception {
+        TreeStore store = new TreeStore();
+        TreeStore.Node root = store.node(store.createNode());
+        TreeStore.Node a = store.node(store.createNode());
+        TreeStore.Node a1 = store.node(store.createNode());
+        TreeStore.Node b = store.node(store.createNode());
+
+        root.addChildren(Arrays.asList(a, b));
+        a.addChild(a1);
+
+        assertThat(store.node(a.getId()), is(a));
+        assertThat(root.getChildren(), contains(a, b));
+        assertThat(root.getChildAt(1), is(b));
+        assertThat(root.indexOf(b), is(1));
+        assertThat(a1.getParent(), is(Optional.of(a)));
+        assertThat(a1.getPathFromRoot(), contains(root, a, a1));
+        assertThat(root.isAncestorOf(a1), is(true));
+        assertThat(root.stream(TreeNode.TraversalOrder.PRE_ORDER).collect(Collectors.toList()), contains(root, a, a1, b));
+        assertThat(root.stream(TreeNode.TraversalOrder.POST_ORDER).collect(Collectors.toList()), contains(a1, a, b, root));
+        assertThat(root.reduce(0, node -> 1, Integer::sum), is(4));
+        assertThat(root.aggregate(SubtreeAggregates.size()), is(4));
+        assertThat(root.aggregate(SubtreeAggregates.height()), is(2));
+        assertThat(root.snapshot().stream().map(TreeSnapshot::getNode).collect(Collectors.toList()), contains(root, a, a1, b));
+
+        a.moveChildren(Collections.singleton(a1), b);
+        assertThat(b.getChildren(), contains(a1));
+
+        root.clearChildren();
+        assertThat(root.getChildCount(), is(0));
+        assertThat(a.getParent().isPresent(), is(false));
+    }
+
+    @Test
+    public void observersAreNotifiedForAnyFlyweightOfTheNode() throws Exception {
+        TreeStore store = new TreeStore();
+        int root = store.createNode();
+        int a = store.createNode();
+        int b = store.createNode();
+        int child = store.createNode();
+        store.addChild(root, a);
+        store.addChild(root, b);
+
+        List<String> events = new ArrayList<>();
+        store.node(root).addObserver(new TreeNode.HierarchyObserver<TreeStore.Node>() {
+            @Override
+            public void onChildrenAdded(TreeStore.Node eventSource, TreeStore.Node changedNode, Set<TreeStore.Node> addedChildren, int[] indexes) {
+                events.add("root: added " + addedChildren + " to " + changedNode + " at " + Arrays.toString(indexes));
+            }
+
+            @Override
+            public void onChildrenRemoved(TreeStore.Node eventSource, TreeStore.Node changedNode, Set<TreeStore.Node> removedChildren, int[] indexes) {
+                events.add("root: removed " + removedChildren + " from " + changedNode + " at " + Arrays.toString(indexes));
+            }
+        });
+        store.node(child).addObserver(new TreeNode.HierarchyObserver<TreeStore.Node>() {
+            @Override
+            public void onParentChanged(TreeStore.Node source, Optional<TreeStore.Node> newParent) {
+                events.add("child: parent " + newParent.map(TreeStore.Node::getId).orElse(TreeStore.NO_NODE));
+            }
+        });
+
+        store.addChild(a, child);
+        store.node(b).addChild(store.node(child)); // moves inside the root's subtree aren't forwarded to it
+        store.detach(child);
+
+        assertThat(events, contains(
+                "root: added [Node " + child + "] to Node " + a + " at [0]",
+                "child: parent " + a,
+                "child: parent " + b,
+                "root: removed [Node " + child + "] from Node " + b + " at [0]",
+                "child: parent " + TreeStore.NO_NODE));
+    }
+
+    @Test
+    public void validatorsAreKeptPerNode() throws Exception {
+        TreeStore store = new TreeStore();
+        int root = store.createNode();
+        int valid = store.createNode();
+        int invalid = store.createNode();
+
+        store.node(root).addChildValidator((parent, child) -> {
+            if (child.getId() == invalid) {
+                throw new TreeNode.ChildValidator.ChildValidationException("Invalid child!");
+            }
+        });
+
+        try {
+            store.node(root).addChildren(Arrays.asList(store.node(valid), store.node(invalid)));
+            fail("Expected ChildValidationException is missing!");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            //expected
+        }
+        assertThat(store.getChildCount(root), is(0));
+
+        assertThat(store.addChild(root, valid), is(true));
+        assertThat(store.getChildCount(root), is(1));
+    }
+
+    @Test
+    public void metricsAreRecordedForTheWholeStore() throws Exception {
+        TreeStore store = new TreeStore();
+        TreeMetrics metrics = new TreeMetrics();
+        int root = store.createNode();
+        int a = store.createNode();
+        int b = store.createNode();
+        int other = store.createNode();
+        store.node(other).setMetrics(metrics);
+
+        store.addChild(root, a);
+        store.addChild(root, b);
+        store.addChild(a, b);
+        store.detach(b);
+        store.node(root).addChildren(Arrays.asList(store.node(b), store.node(other)));
+        store.node(root).moveChildren(Arrays.asList(store.node(b), store.node(other)), store.node(a));
+
+        assertThat(store.getMetrics(), is(Optional.of(metrics)));
+        assertThat(store.node(root).getMetrics(), is(Optional.of(metrics)));
+        assertThat(metrics.getAdds(), is(4L));
+        assertThat(metrics.getMoves(), is(3L));
+        assertThat(metrics.getRemoves(), is(1L));
+
+        store.node(root).addChildValidator((parent, child) -> {
+            throw new TreeNode.ChildValidator.ChildValidationException("Invalid child!");
+        });
+        store.node(root).addObserver(new TreeNode.HierarchyObserver<TreeStore.Node>() {
+        });
+        try {
+            store.addChild(root, b);
+            fail("Expected ChildValidationException is missing!");
+        } catch (TreeNode.ChildValidator.ChildValidationException e) {
+            //expected
+        }
+        store.detach(a);
+
+        assertThat(metrics.getValidations(), is(1L));
+        assertThat(metrics.getRejectedValidations(), is(1L));
+        assertThat(metrics.getNotifications(), is(1L));
+        assertThat(metrics.getRemoves(), is(2L));
+
+        store.setMetrics(null);
+        store.addChild(b, store.createNode());
+        assertThat(store.node(b).getMetrics(), is(Optional.empty()));
+        assertThat(metrics.getAdds(), is(4L));
+    }
+
+    @Test
+    public void movingSeveralChildrenNotifiesLikeTreeNode() throws Exception {
+        TreeStore store = new TreeStore();
+        List<TreeStore.Node> stored = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            stored.add(store.node(store.createNode()));
+        }
+        List<NamedTreeNode> named = new ArrayList<>();
+        for (String name : Arrays.asList("R", "A", "B", "C", "D", "T")) {
+            named.add(new NamedTreeNode(name));
+        }
+
+        List<String> storeEvents = multiChildMoveEvents(stored, node -> "RABCDT".substring(node.getId(), node.getId() + 1));
+        List<String> nodeEvents = multiChildMoveEvents(named, node -> node.name);
+
+        assertThat(nodeEvents, contains("removed [C]", "removed [D]", "added [C, D]"));
+        assertThat(storeEvents, is(nodeEvents));
+    }
+
+    /**
+     * Moves C and D from their parents A and B to T at once, all below R, whose observer records the events.
+     */
+    private static <T extends TreeNode<T>> List<String> multiChildMoveEvents(List<T> nodes, Function<T, String> name)
+            throws TreeNode.ChildValidator.ChildValidationException {
+        T root = nodes.get(0), a = nodes.get(1), b = nodes.get(2), c = nodes.get(3), d = nodes.get(4), target = nodes.get(5);
+        root.addChildren(Arrays.asList(a, b, target));
+        a.addChild(c);
+        b.addChild(d);
+
+        List<String> events = new ArrayList<>();
+        root.addObserver(new TreeNode.HierarchyObserver<T>() {
+            @Override
+            public void onChildrenAdded(T eventSource, T changedNode, Set<T> addedChildren) {
+                events.add("added " + addedChildren.stream().map(name).collect(Collectors.toList()));
+            }
+
+            @Override
+            public void onChildrenRemoved(T eventSource, T changedNode, Set<T> removedChildren) {
+                events.add("removed " + removedChildren.stream().map(name).collect(Collectors.toList()));
+            }
+        });
+        target.addChildren(Arrays.asList(c, d));
+        return events;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodesOfOtherStoresAreRejected() throws Exception {
+        TreeStore store = new TreeStore();
+        TreeStore other = new TreeStore();
+
+        store.node(store.createNode()).addChild(other.node(other.createNode()));
+    }
+
+    @Test
+    public void lowestCommonAncestorFollowsMoves() throws Exception {
+        TreeStore store = new TreeStore();
+        int[] chain = new int[100];
+        chain[0] = store.createNode();
+        for (int i = 1; i < chain.length; i++) {
+            chain[i] = store.createNode();
+            store.addChild(chain[i - 1], chain[i]);
+        }
+        int leaf = store.createNode();
+        store.addChild(chain[37], leaf);
+
+        assertThat(store.getLowestCommonAncestor(chain[99], leaf), is(chain[37]));
+        assertThat(store.getDistance(chain[99], leaf), is(63));
+        assertThat(store.getAncestorAtDepth(chain[99], 12), is(chain[12]));
+
+        store.addChild(leaf, chain[50]);
+
+        assertThat(store.getDepth(chain[99]), is(88));
+        assertThat(store.getAncestorAtDepth(chain[99], 38), is(leaf));
+        assertThat(store.getLowestCommonAncestor(chain[99], chain[49]), is(chain[37]));
+        assertThat(store.node(chain[99]).getPathTo(store.node(chain[97])),
+                contains(store.node(chain[99]), store.node(chain[98]), store.node(chain[97])));
+
+        store.detach(chain[50]);
+
+        assertThat(store.getLowestCommonAncestor(chain[99], leaf), is(TreeStore.NO_NODE));
+        assertThat(store.getDistance(chain[99], leaf), is(-1));
+        assertThat(store.getAncestorAtDepth(chain[99], 0), is(chain[50]));
+    }
+
+    private static class NamedTreeNode extends TreeNode<NamedTreeNode> {
+        private final String name;
+
+        NamedTreeNode(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.brainbytes.common.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class WeakHierarchyObserverTest {
+
+    private TestTreeNode nodeUnderTest;
+    private List<String> events;
+
+    @Before
+    public void setUp() throws Exception {
+        nodeUnderTest = new TestTreeNode();
+        events = new ArrayList<>();
+    }
+
+    @Test
+    public void referencedObserversAreNotified() throws Exception {
+        TreeNode.HierarchyObserver<TestTreeNode> weak = new RecordingObserver("weak");
+        TreeNode.HierarchyObserver<TestTreeNode> soft = new RecordingObserver("soft");
+        nodeUnderTest.addObserver(weak, WeakHierarchyObserver.Strength.WEAK);
+        TreeNode.HierarchyObserver<TestTreeNode> softDecorator = nodeUnderTest.addObserver(soft, WeakHierarchyObserver.Strength.SOFT);
+
+        nodeUnderTest.addChild(new TestTreeNode());
+        assertThat(events, containsInAnyOrder("weak", "soft"));
+
+        assertThat(nodeUnderTest.removeObserver(softDecorator), is(true));
+        nodeUnderTest.addChild(new TestTreeNode());
+        assertThat(events, containsInAnyOrder("weak", "soft", "weak"));
+    }
+
+    @Test
+    public void collectedObserversArePurgedOnNextRegistration() throws Exception {
+        WeakReference<TreeNode.HierarchyObserver<TestTreeNode>> collected = new WeakReference<>(new RecordingObserver("collected"));
+        TreeNode.HierarchyObserver<TestTreeNode> decorator = nodeUnderTest.addObserver(collected.get(), WeakHierarchyObserver.Strength.WEAK);
+
+        awaitCollection(collected);
+        nodeUnderTest.addObserver(new RecordingObserver("other"));
+
+        assertThat(nodeUnderTest.removeObserver(decorator), is(false));
+    }
+
+    @Test
+    public void registrationPurgesOnlyItsOwnNode() throws Exception {
+        TestTreeNode otherTree = new TestTreeNode();
+        TestTreeNode child = new TestTreeNode();
+        nodeUnderTest.addChild(child);
+        WeakReference<TreeNode.HierarchyObserver<TestTreeNode>> collected = new WeakReference<>(new RecordingObserver("collected"));
+        TreeNode.HierarchyObserver<TestTreeNode> decorator = nodeUnderTest.addObserver(collected.get(), WeakHierarchyObserver.Strength.WEAK);
+
+        awaitCollection(collected);
+        otherTree.addObserver(new RecordingObserver("other"));
+        child.addObserver(new RecordingObserver("child"));
+
+        assertThat(nodeUnderTest.removeObserver(decorator), is(true));
+    }
+
+    @Test
+    public void collectedObserversUnregisterOnNotification() throws Exception {
+        WeakReference<TreeNode.HierarchyObserver<TestTreeNode>> collected = new WeakReference<>(new RecordingObserver("collected"));
+        WeakHierarchyObserver<TestTreeNode> decorator = (WeakHierarchyObserver<TestTreeNode>) nodeUnderTest.addObserver(collected.get(), WeakHierarchyObserver.Strength.WEAK);
+
+        awaitCollection(collected);
+        nodeUnderTest.addChild(new TestTreeNode());
+
+        assertThat(decorator.getObserver(), is(nullValue()));
+        assertThat(nodeUnderTest.removeObserver(decorator), is(false));
+        assertThat(events, is(empty()));
+    }
+
+    private static void awaitCollection(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat("Observer wasn't collected", reference.get(), is(nullValue()));
+    }
+
+    private class RecordingObserver implements TreeNode.HierarchyObserver<TestTreeNode> {
+
+        private final String name;
+
+        RecordingObserver(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onChildrenAdded(TestTreeNode eventSource, TestTreeNode changedNode, Set<TestTreeNode> addedChildren) {
+            events.add(name);
+        }
+    }
+
+    private static class TestTreeNode extends TreeNode<TestTreeNode> {
+    }
+}